@@ -0,0 +1,141 @@
+package smartthings.benchmark
+
+import com.datastax.driver.core.Cluster
+import com.datastax.driver.core.Session
+import org.cassandraunit.utils.EmbeddedCassandraServerHelper
+import smartthings.migration.MigrationParameters
+import smartthings.migration.MigrationRunner
+
+/**
+ * Runs MigrationRunner end to end against embedded Cassandra on generated migrations and reports, per phase, the
+ * wall time, round trips, lock operations and schema agreement wait time.
+ *
+ * Phases:
+ * - bootstrap: every migration pending on an empty keyspace
+ * - no-op: the same migrations again, all applied
+ * - partial: the first appliedRatio of the migrations applied beforehand, the rest pending
+ *
+ * Each migration creates its own table, then alters it or inserts into it, so migrations don't depend on each
+ * other and directory order doesn't matter. Settings are system properties, see the benchmark task in build.gradle.
+ */
+class MigrationBenchmark {
+
+	static final String KEYSPACE = 'benchmark'
+
+	int files = Integer.getInteger('benchmark.files', 50)
+	int statements = Integer.getInteger('benchmark.statements', 20)
+	double ddlRatio = Double.parseDouble(System.getProperty('benchmark.ddlRatio', '0.1'))
+	double appliedRatio = Double.parseDouble(System.getProperty('benchmark.appliedRatio', '0.9'))
+	int iterations = Integer.getInteger('benchmark.iterations', 3)
+	File output = new File(System.getProperty('benchmark.output', 'build/reports/migration-benchmark.csv'))
+
+	Closure<MigrationParameters.Builder> configure = { MigrationParameters.Builder builder ->
+		builder.setPipelineDml(Boolean.getBoolean('benchmark.pipelineDml'))
+			.setBatchDml(Boolean.getBoolean('benchmark.batchDml'))
+			.setDeferSchemaAgreement(Boolean.getBoolean('benchmark.deferSchemaAgreement'))
+			.setMigrationParallelism(Integer.getInteger('benchmark.parallelism', 1))
+			.setPreflight(Boolean.getBoolean('benchmark.preflight'))
+	}
+
+	static void main(String[] args) {
+		EmbeddedCassandraServerHelper.startEmbeddedCassandra('test-cassandra.yaml', 30000L)
+		new MigrationBenchmark().run()
+		System.exit(0)
+	}
+
+	void run() {
+		File root = File.createTempDir()
+		File all = generate(new File(root, 'all'), files)
+		File applied = copy(all, new File(root, 'applied'), (int) Math.round(files * appliedRatio))
+
+		RequestCounter counter = new RequestCounter()
+		Cluster cluster = Cluster.builder().addContactPoint('localhost').withPort(9142).build()
+		cluster.register(counter)
+		List<Map<String, Object>> results = []
+		try {
+			Session session = cluster.connect()
+			(1..iterations).each { int iteration ->
+				recreateKeyspace(session)
+				results << measure('bootstrap', iteration, all, session, counter)
+				results << measure('no-op', iteration, all, session, counter)
+
+				recreateKeyspace(session)
+				migrate(applied, session)
+				results << measure('partial', iteration, all, session, counter)
+			}
+			session.execute("DROP KEYSPACE IF EXISTS ${KEYSPACE}")
+		} finally {
+			cluster.close()
+			root.deleteDir()
+		}
+		report(results)
+	}
+
+	private Map<String, Object> measure(String phase, int iteration, File migrations, Session session, RequestCounter counter) {
+		counter.reset()
+		long start = System.nanoTime()
+		migrate(migrations, session)
+		long wallMillis = (System.nanoTime() - start).intdiv(1000000)
+		[phase: phase, iteration: iteration, wallMillis: wallMillis] + counter.snapshot()
+	}
+
+	private void migrate(File migrations, Session session) {
+		MigrationParameters.Builder builder = new MigrationParameters.Builder()
+			.setSession(session)
+			.setKeyspace(KEYSPACE)
+			.setMigrationsPath(migrations.path)
+		MigrationParameters parameters = configure(builder).build()
+		// parameters built around a session only take a changelog, so the directory is set afterwards
+		parameters.migrationsPath = migrations.path
+		new MigrationRunner().run(parameters)
+	}
+
+	private File generate(File dir, int count) {
+		dir.mkdirs()
+		int ddl = (int) Math.round((statements - 1) * ddlRatio)
+		(0..<count).each { int file ->
+			String table = "t${file}"
+			StringBuilder text = new StringBuilder("CREATE TABLE ${table} (id int, c int, value text, PRIMARY KEY (id, c));\n")
+			(1..<statements).each { int statement ->
+				if (statement <= ddl) {
+					text << "ALTER TABLE ${table} ADD extra${statement} text;\n"
+				} else {
+					text << "INSERT INTO ${table} (id, c, value) VALUES (${statement % 4}, ${statement}, 'value ${statement}');\n"
+				}
+			}
+			new File(dir, String.format('%05d.cql', file)).text = text.toString()
+		}
+		dir
+	}
+
+	private static File copy(File from, File to, int count) {
+		to.mkdirs()
+		from.listFiles().sort { it.name }.take(count).each { File file ->
+			new File(to, file.name).bytes = file.bytes
+		}
+		to
+	}
+
+	private static void recreateKeyspace(Session session) {
+		session.execute("DROP KEYSPACE IF EXISTS ${KEYSPACE}")
+		session.execute("CREATE KEYSPACE ${KEYSPACE} WITH replication = {'class': 'SimpleStrategy', 'replication_factor': 1}")
+	}
+
+	private void report(List<Map<String, Object>> results) {
+		List<String> columns = results[0].keySet() as List
+		println "${files} files x ${statements} statements, ${ddlRatio} DDL, ${appliedRatio} applied for partial"
+		println columns.collect { it.padLeft(18) }.join('')
+		results.each { result ->
+			println columns.collect { String.valueOf(result[it]).padLeft(18) }.join('')
+		}
+
+		output.parentFile?.mkdirs()
+		output.withWriter { writer ->
+			writer << columns.join(',') << '\n'
+			results.each { result ->
+				writer << columns.collect { result[it] }.join(',') << '\n'
+			}
+		}
+		println "Results written to ${output}"
+	}
+}
@@ -0,0 +1,104 @@
+package smartthings.benchmark
+
+import com.datastax.driver.core.BatchStatement
+import com.datastax.driver.core.BoundStatement
+import com.datastax.driver.core.Cluster
+import com.datastax.driver.core.Host
+import com.datastax.driver.core.LatencyTracker
+import com.datastax.driver.core.RegularStatement
+import com.datastax.driver.core.Statement
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Counts the requests a run sends, by what they are for. Schema agreement wait time is taken from the outside:
+ * each unbroken run of agreement checks is one wait, lasting from the start of its first check to the end of its
+ * last one. Lock renewals from the heartbeat thread don't break a wait.
+ */
+class RequestCounter implements LatencyTracker {
+
+	enum Kind {
+		LOCK, LEDGER, AGREEMENT, MIGRATION
+	}
+
+	private final Map<Kind, Integer> counts = new EnumMap<>(Kind)
+	private long waitStart = -1
+	private long waitEnd
+	private long waitNanos
+	private int waits
+
+	@Override
+	synchronized void update(Host host, Statement statement, Exception exception, long latencyNanos) {
+		Kind kind = kind(statement)
+		counts[kind] = (counts[kind] ?: 0) + 1
+
+		long end = System.nanoTime()
+		if (kind == Kind.AGREEMENT) {
+			if (waitStart == -1) {
+				waitStart = end - latencyNanos
+				waits++
+			}
+			waitEnd = end
+		} else if (kind != Kind.LOCK) {
+			endWait()
+		}
+	}
+
+	synchronized Map<String, Object> snapshot() {
+		endWait()
+		[
+			roundTrips      : counts.values().sum(0),
+			lockOperations  : counts[Kind.LOCK] ?: 0,
+			ledgerRequests  : counts[Kind.LEDGER] ?: 0,
+			migrationRequests: counts[Kind.MIGRATION] ?: 0,
+			agreementChecks : counts[Kind.AGREEMENT] ?: 0,
+			schemaWaits     : waits,
+			schemaWaitMillis: TimeUnit.NANOSECONDS.toMillis(waitNanos),
+		]
+	}
+
+	synchronized void reset() {
+		counts.clear()
+		waitStart = -1
+		waitNanos = 0
+		waits = 0
+	}
+
+	@Override
+	void onRegister(Cluster cluster) {
+	}
+
+	@Override
+	void onUnregister(Cluster cluster) {
+	}
+
+	private void endWait() {
+		if (waitStart != -1) {
+			waitNanos += waitEnd - waitStart
+			waitStart = -1
+		}
+	}
+
+	private static Kind kind(Statement statement) {
+		String query
+		if (statement instanceof RegularStatement) {
+			query = ((RegularStatement) statement).queryString
+		} else if (statement instanceof BoundStatement) {
+			query = ((BoundStatement) statement).preparedStatement().queryString
+		} else if (statement instanceof BatchStatement) {
+			return Kind.MIGRATION
+		} else {
+			query = statement.toString()
+		}
+		query = query.toLowerCase()
+		if (query.contains('databasechangelock')) {
+			Kind.LOCK
+		} else if (query.contains('system.peers') || query.contains('system.local')) {
+			Kind.AGREEMENT
+		} else if (query =~ /\b(from|into|update|table( if not exists)?) migrations\b/) {
+			Kind.LEDGER
+		} else {
+			Kind.MIGRATION
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package smartthings.cassandra;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import smartthings.util.Migrations;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting a migration into statements and classifying them, the work runMigration does before anything is sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CqlStatementReaderBenchmark {
+
+	@Param({"inserts", "schema"})
+	public String shape;
+
+	@Param({"65536", "1048576"})
+	public int size;
+
+	private String text;
+
+	@Setup
+	public void setup() {
+		text = shape.equals("inserts") ? Migrations.inserts(size) : Migrations.schema(size / 256);
+	}
+
+	@Benchmark
+	public void split(Blackhole blackhole) throws IOException {
+		try (CqlStatementReader reader = new CqlStatementReader(new StringReader(text))) {
+			String statement;
+			while ((statement = reader.next()) != null) {
+				blackhole.consume(statement);
+			}
+		}
+	}
+
+	@Benchmark
+	public void splitAndParse(Blackhole blackhole) throws IOException {
+		try (CqlStatementReader reader = new CqlStatementReader(new StringReader(text))) {
+			String statement;
+			while ((statement = reader.next()) != null) {
+				blackhole.consume(CqlStatement.parse(statement).getKind());
+			}
+		}
+	}
+}
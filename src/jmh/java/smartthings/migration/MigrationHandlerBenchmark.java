@@ -0,0 +1,93 @@
+package smartthings.migration;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.CharSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import smartthings.cassandra.CassandraConnection;
+import smartthings.util.MigrationDigest;
+import smartthings.util.Migrations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-migration decision in MigrationHandler against a connection that answers from memory, so only the
+ * handler's own work is measured: every migration already applied, recorded with the configured algorithm or
+ * with MD5 before the algorithm was changed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MigrationHandlerBenchmark {
+
+	@Param({"1000"})
+	public int migrations;
+
+	@Param({"md5", "murmur3_128"})
+	public String algorithm;
+
+	@Param({"false", "true"})
+	public boolean recordedWithMd5;
+
+	private MigrationDigest digest;
+	private List<String> names;
+	private List<ByteSource> sources;
+	private List<String> digests;
+	private MigrationHandler handler;
+
+	@Setup
+	public void setup() throws IOException {
+		digest = MigrationDigest.forName(algorithm);
+		Map<String, String> ledger = new HashMap<>();
+		names = new ArrayList<>(migrations);
+		sources = new ArrayList<>(migrations);
+		digests = new ArrayList<>(migrations);
+		for (int i = 0; i < migrations; i++) {
+			String name = String.format("%05d.cql", i);
+			ByteSource source = ByteSource.wrap(Migrations.inserts(1024).replace("'0'", "'" + name + "'").getBytes("UTF-8"));
+			ledger.put(name, (recordedWithMd5 ? MigrationDigest.MD5 : digest).digest(source));
+			names.add(name);
+			sources.add(source);
+			digests.add(digest.digest(source));
+		}
+		handler = new MigrationHandler(new LedgerConnection(ledger), false);
+	}
+
+	// files are created as the loader creates them, with only the configured digest known
+	@Benchmark
+	public void handle() {
+		for (int i = 0; i < migrations; i++) {
+			handler.handle(new MigrationFile(names.get(i), sources.get(i), digest, digests.get(i)));
+		}
+	}
+
+	private static class LedgerConnection extends CassandraConnection {
+		private final Map<String, String> ledger;
+
+		LedgerConnection(Map<String, String> ledger) {
+			super(new MigrationParameters.Builder().build(), "benchmark");
+			this.ledger = ledger;
+		}
+
+		@Override
+		public String getMigrationMd5(String fileName) {
+			return ledger.get(fileName);
+		}
+
+		@Override
+		public void runMigration(String fileName, CharSource source, String sha, boolean override) {
+			throw new IllegalStateException(fileName + " should already be applied");
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package smartthings.migration;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import smartthings.util.Migrations;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading and hashing a migrations directory, with and without the digest cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MigrationLoaderBenchmark {
+
+	@Param({"100", "1000"})
+	public int files;
+
+	@Param({"false", "true"})
+	public boolean digestCache;
+
+	private File dir;
+	private MigrationParameters parameters;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, InterruptedException {
+		File root = Files.createTempDir();
+		dir = new File(root, "migrations");
+		dir.mkdirs();
+		long modified = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+		for (int i = 0; i < files; i++) {
+			File file = new File(dir, String.format("%05d.cql", i));
+			Files.write(Migrations.inserts(8192), file, Charsets.UTF_8);
+			file.setLastModified(modified);
+		}
+		parameters = new MigrationParameters.Builder()
+				.setMigrationsPath(dir.getPath())
+				.setDigestCachePath(digestCache ? new File(root, "digests").getPath() : null)
+				.build();
+		load();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		File root = dir.getParentFile();
+		File[] children = dir.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				child.delete();
+			}
+		}
+		dir.delete();
+		new File(root, "digests").delete();
+		root.delete();
+	}
+
+	@Benchmark
+	public List<MigrationFile> load() throws IOException, InterruptedException {
+		return MigrationLoader.start(parameters).get();
+	}
+}
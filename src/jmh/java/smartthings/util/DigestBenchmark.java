@@ -0,0 +1,57 @@
+package smartthings.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing a migration, from a decoded string as the handlers used to and streamed from its bytes with each
+ * supported algorithm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DigestBenchmark {
+
+	@Param({"1024", "65536", "1048576", "10485760"})
+	public int size;
+
+	private String text;
+	private ByteSource bytes;
+
+	@Setup
+	public void setup() {
+		text = Migrations.inserts(size);
+		bytes = ByteSource.wrap(text.getBytes(Charsets.UTF_8));
+	}
+
+	@Benchmark
+	public String md5String() {
+		return Util.calculateMd5(text);
+	}
+
+	@Benchmark
+	public String md5Streamed() throws IOException {
+		return Util.calculateMd5(bytes);
+	}
+
+	@Benchmark
+	public String sha256() throws IOException {
+		return MigrationDigest.SHA256.digest(bytes);
+	}
+
+	@Benchmark
+	public String murmur3() throws IOException {
+		return MigrationDigest.MURMUR3_128.digest(bytes);
+	}
+}
@@ -0,0 +1,38 @@
+package smartthings.util;
+
+/**
+ * Synthetic migration text for the benchmarks.
+ */
+public class Migrations {
+
+	private Migrations() {
+	}
+
+	/**
+	 * Inserts into a single table, padded out to roughly the given number of bytes.
+	 */
+	public static String inserts(int size) {
+		StringBuilder text = new StringBuilder(size + 128);
+		text.append("CREATE TABLE IF NOT EXISTS a (id text, value text, PRIMARY KEY (id));\n");
+		for (int i = 0; text.length() < size; i++) {
+			text.append("INSERT INTO a (id, value) VALUES ('").append(i).append("', 'value; ").append(i).append("');\n");
+		}
+		return text.toString();
+	}
+
+	/**
+	 * A schema migration with comments, quoted names and a function body, the constructs that make splitting
+	 * statements more than a search for semicolons.
+	 */
+	public static String schema(int tables) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < tables; i++) {
+			text.append("-- table ").append(i).append("; with a semicolon in the comment\n")
+					.append("CREATE TABLE \"Table").append(i).append("\" (\n")
+					.append("\tid uuid,\n\tname text, /* inline; comment */\n\tPRIMARY KEY (id)\n);\n")
+					.append("CREATE FUNCTION f").append(i).append(" (input int) RETURNS NULL ON NULL INPUT RETURNS int ")
+					.append("LANGUAGE java AS $$ return input; $$;\n");
+		}
+		return text.toString();
+	}
+}
@@ -1,12 +1,17 @@
 package smartthings.cassandra;
 
 import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.CoordinatorException;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
 import com.google.common.base.Charsets;
+import com.google.common.io.CharSource;
 import com.google.common.io.Files;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import smartthings.metrics.MigrationMetrics;
 import smartthings.migration.CassandraMigrationException;
 import smartthings.migration.MigrationParameters;
+import smartthings.util.MigrationDigest;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -14,17 +19,48 @@ import javax.net.ssl.TrustManagerFactory;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.security.KeyStore;
 import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 import static smartthings.util.Util.all;
 
 public class CassandraConnection implements AutoCloseable {
+	/**
+	 * Version of the migrations table layout, recorded in migrations_metadata once the table has been upgraded to it.
+	 * 1: every migration is recorded under its file name, not the path older versions recorded.
+	 */
+	public static final int LEDGER_VERSION = 1;
+	/**
+	 * 2: the ledger was copied to migration_ledger, which is used from then on instead of the migrations table.
+	 */
+	public static final int CLUSTERED_LEDGER_VERSION = 2;
+
 	private Logger logger = LoggerFactory.getLogger(CassandraConnection.class);
 
+	private static final int LEDGER_FETCH_SIZE = 500;
+	private static final int STATEMENT_CACHE_SIZE = 100;
+	private static final int FAILURE_LOG_STATEMENTS = 20;
+	private static final int MARK_BATCH_SIZE = 50;
+	// where migrations keep their own state, which doesn't make a keyspace any less empty
+	private static final Set<String> MIGRATION_TABLES = new HashSet<>(Arrays.asList("databasechangelock", "migrations", "migrations_metadata",
+			"migration_ledger", "migration_checkpoints"));
+	// the driver only checks briefly after a schema change, SchemaAgreement does the actual waiting
+	private static final int DRIVER_SCHEMA_AGREEMENT_WAIT_SECONDS = 1;
+
 	private static String[] cipherSuites = new String[2];
 	private String truststorePath;
 	private String truststorePassword;
@@ -38,18 +74,54 @@ public class CassandraConnection implements AutoCloseable {
 	private String username;
 	private String password;
 
-	private String cassandraVersion;
 	private final String ownerName;
+	private final int lockTtl;
+	private final int lockRenewThreshold;
+	private final boolean lockHeartbeat;
+	private final LockRetryPolicy lockRetryPolicy;
+	private final boolean pipelineDml;
+	private final int maxDmlInFlight;
+	private final boolean batchDml;
+	private final int maxBatchStatements;
+	private final int maxBatchBytes;
+	private final int schemaAgreementTimeout;
+	private final Set<String> schemaAgreementDataCenters;
+	private final boolean schemaAgreementKeyspaceScope;
+	private final boolean deferSchemaAgreement;
+	private final int checkpointInterval;
+	private final boolean clusteredLedger;
+	private final boolean preflight;
+	private final MigrationMetrics metrics;
 
 	private CassandraLock lock;
+	private MigrationLedger ledger;
+	// set once setupMigration made sure the ledger has the pending column
+	private volatile boolean trackPending;
+	private SchemaAgreement schemaAgreement;
+	private SchemaMetadata schemaMetadata;
+	private final StatementCache statementCache = new StatementCache(STATEMENT_CACHE_SIZE);
 
 	public CassandraConnection(MigrationParameters parameters, String ownerName) {
+		this(parameters, ownerName, parameters.getSession());
+	}
+
+	/**
+	 * Uses the given session when it isn't null, instead of the one in the parameters. The session is left open on close.
+	 */
+	public CassandraConnection(MigrationParameters parameters, String ownerName, Session session) {
+		this(parameters, ownerName, session, parameters.getMetrics());
+	}
+
+	/**
+	 * Reports to the given metrics instead of the ones in the parameters.
+	 */
+	public CassandraConnection(MigrationParameters parameters, String ownerName, Session session, MigrationMetrics metrics) {
 		this.ownerName = ownerName;
 
 		cipherSuites[0] = "TLS_RSA_WITH_AES_128_CBC_SHA";
 		cipherSuites[1] = "TLS_RSA_WITH_AES_256_CBC_SHA";
 
-		session = parameters.getSession();
+		this.session = session;
 		if (session == null) {
 			this.host = parameters.getHost();
 			this.port = parameters.getPort();
@@ -61,53 +133,78 @@ public class CassandraConnection implements AutoCloseable {
 			this.keystorePath = parameters.getKeystorePath();
 		}
 		this.keyspace = parameters.getKeyspace();
-
+		this.lockTtl = parameters.getLockTtl();
+		this.lockRenewThreshold = parameters.getLockRenewThreshold();
+		this.lockHeartbeat = parameters.getLockHeartbeat();
+		this.lockRetryPolicy = new LockRetryPolicy(parameters.getLockRetryInitialDelay(), parameters.getLockRetryMaxDelay(),
+				parameters.getLockWaitTimeout(), parameters.getLockWaitForExpiry());
+		this.pipelineDml = parameters.getPipelineDml();
+		this.maxDmlInFlight = parameters.getMaxDmlInFlight();
+		this.batchDml = parameters.getBatchDml();
+		this.maxBatchStatements = parameters.getMaxBatchStatements();
+		this.maxBatchBytes = parameters.getMaxBatchBytes();
+		this.schemaAgreementTimeout = parameters.getSchemaAgreementTimeout();
+		this.schemaAgreementDataCenters = parameters.getSchemaAgreementDataCenters();
+		this.schemaAgreementKeyspaceScope = parameters.getSchemaAgreementKeyspaceScope();
+		this.deferSchemaAgreement = parameters.getDeferSchemaAgreement();
+		this.checkpointInterval = parameters.getCheckpointInterval();
+		this.clusteredLedger = parameters.getClusteredLedger();
+		this.preflight = parameters.getPreflight();
+		this.metrics = metrics != null ? metrics : MigrationMetrics.NOOP;
 	}
 
 	public void connect() throws Exception {
 		if (session == null) {
-			logger.debug("Connecting to Cassandra at " + host + ":" + port);
-
-			QueryOptions queryOptions = new QueryOptions().setConsistencyLevel(ConsistencyLevel.QUORUM);
-
-			Cluster.Builder builder = Cluster.builder()
-				.withoutJMXReporting()
-				.addContactPoint(host)
-				.withPort(port)
-				.withMaxSchemaAgreementWaitSeconds(20)
-				.withQueryOptions(queryOptions);
-
-			if (all(truststorePath, truststorePassword, keystorePath, keystorePassword)) {
-				logger.debug("Using SSL for the connection");
-				SSLContext sslContext = getSSLContext(truststorePath, truststorePassword, keystorePath, keystorePassword);
-				builder.withSSL(JdkSSLOptions.builder().withSSLContext(sslContext).withCipherSuites(cipherSuites).build());
-			}
-
-			if (username != null && password != null) {
-				logger.debug("Using withCredentials for the connection");
-				builder.withCredentials(username, password);
-			}
-
-			cluster = builder.build();
+			cluster = buildCluster();
 			session = cluster.connect();
 		}
 
 		if (keyspace != null) {
 			setKeyspace(keyspace);
 		}
+	}
 
-		cassandraVersion = execute("select release_version from system.local where key = 'local'")
-				.one().getString(0);
+	/**
+	 * Builds a cluster from the connection parameters without connecting it, for callers that open their own sessions.
+	 */
+	public Cluster buildCluster() throws Exception {
+		logger.debug("Connecting to Cassandra at " + host + ":" + port);
+
+		QueryOptions queryOptions = new QueryOptions().setConsistencyLevel(ConsistencyLevel.QUORUM);
+
+		Cluster.Builder builder = Cluster.builder()
+			.withoutJMXReporting()
+			.addContactPoint(host)
+			.withPort(port)
+			.withMaxSchemaAgreementWaitSeconds(DRIVER_SCHEMA_AGREEMENT_WAIT_SECONDS)
+			.withQueryOptions(queryOptions);
+
+		if (all(truststorePath, truststorePassword, keystorePath, keystorePassword)) {
+			logger.debug("Using SSL for the connection");
+			SSLContext sslContext = getSSLContext(truststorePath, truststorePassword, keystorePath, keystorePassword);
+			builder.withSSL(JdkSSLOptions.builder().withSSLContext(sslContext).withCipherSuites(cipherSuites).build());
+		}
 
-		lock = new CassandraLock(this);
+		if (username != null && password != null) {
+			logger.debug("Using withCredentials for the connection");
+			builder.withCredentials(username, password);
+		}
+
+		return builder.build();
 	}
 
 	@Override
 	public void close() {
+		logger.debug("Prepared statement cache: {}", statementCache.stats());
+
 		if (lock != null) {
 			lock.unlock();
 		}
 
+		if (schemaMetadata != null) {
+			schemaMetadata.close();
+		}
+
 		if (cluster != null) {
 			//We don't close the connection if we were given a session
 			cluster.close();
@@ -136,166 +233,766 @@ public class CassandraConnection implements AutoCloseable {
 
 	public void setKeyspace(String keyspace) {
 		this.keyspace = keyspace;
-		execute("use " + keyspace);
+		// sessions opened with Cluster.connect(keyspace) are already in it
+		if (!keyspace.equals(session.getLoggedKeyspace())) {
+			execute("use " + keyspace);
+		}
 	}
 
+	/**
+	 * Queries with bind parameters are prepared once per keyspace and sent as bound statements afterwards.
+	 */
 	public ResultSet execute(String query, Object... params) {
-		return session.execute(query, params);
+		if (params.length == 0) {
+			return session.execute(query);
+		}
+		return session.execute(prepare(query).bind(params));
+	}
+
+	public PreparedStatement prepare(String query) {
+		return statementCache.prepare(session, keyspace, query);
+	}
+
+	public StatementCache getStatementCache() {
+		return statementCache;
 	}
 
 
 	public ResultSet executeWithLock(String query, Object... params) {
-		if (lock.isMine()) {
-			lock.keepAlive();
-			ResultSet rs = execute(query, params);
-			lock.keepAlive();
-			return rs;
-		}
+		ensureLease();
+		ResultSet rs = execute(query, params);
+		ensureLease();
+		return rs;
+	}
 
-		throw new CassandraLockException("attempt to execute without lock ownership");
+	public ResultSet executeWithLock(Statement statement) {
+		ensureLease();
+		ResultSet rs = session.execute(statement);
+		ensureLease();
+		return rs;
+	}
+
+	private void ensureLease() {
+		if (lock == null) {
+			throw new CassandraLockException("attempt to execute without lock ownership");
+		}
+		lock.ensureLease();
 	}
 
+	/**
+	 * Upgrades the ledger to the current version, once. After that this is a single read.
+	 * <ul>
+	 * <li>{@link #LEDGER_VERSION}: legacy path-style names in the migrations table are recorded under their file name.</li>
+	 * <li>{@link #CLUSTERED_LEDGER_VERSION}: with the clustered ledger on, the migrations table is copied to migration_ledger.</li>
+	 * </ul>
+	 */
 	public void backfillMigrations() {
-		if (tableExists("migrations")) {
-			ResultSet result = executeWithLock("SELECT * FROM migrations");
-			List<Row> results = result.all();
-			int numMigrated = 0;
-			logger.info("Checking for migrations that need to be backfilled");
-			for (Row row : results) {
-				String sha = row.getString("sha");
-				String name = row.getString("name");
+		int version = getLedgerVersion();
+		if (version >= CLUSTERED_LEDGER_VERSION && !clusteredLedger) {
+			throw new CassandraMigrationException("The ledger of keyspace " + keyspace + " was moved to migration_ledger, migrate it with the clustered ledger on");
+		}
+		int target = clusteredLedger ? CLUSTERED_LEDGER_VERSION : LEDGER_VERSION;
+		if (version >= target) {
+			logger.debug("Ledger is at version {}, nothing to backfill", version);
+			return;
+		}
+
+		if (version < LEDGER_VERSION && tableExists("migrations")) {
+			backfillNames();
+		}
+		if (clusteredLedger && tableExists("migrations")) {
+			copyToClusteredLedger();
+		}
+		setLedgerVersion(target);
+	}
+
+	private void backfillNames() {
+		logger.info("Checking for migrations that need to be backfilled");
+		long start = System.nanoTime();
+		Set<String> names = new HashSet<>();
+		Map<String, String> legacy = new LinkedHashMap<>();
+		int rows = 0;
+		Statement select = new SimpleStatement("SELECT name, sha FROM migrations").setFetchSize(LEDGER_FETCH_SIZE);
+		for (Row row : executeWithLock(select)) {
+			String name = row.getString("name");
+			names.add(name);
+			if (name.contains("/")) {
+				legacy.putIfAbsent(name.substring(name.lastIndexOf("/") + 1), row.getString("sha"));
+			}
+			rows++;
+		}
+		metrics.ledgerRead(System.nanoTime() - start, rows);
+
+		// we hold the lock and have seen every row, so names that are already there can be left out without an LWT
+		legacy.keySet().removeAll(names);
+		for (Map.Entry<String, String> migration : legacy.entrySet()) {
+			logger.info("Backfilling migration {}", migration.getKey());
+		}
+		if (!legacy.isEmpty()) {
+			insertMigrations(legacy, false);
+		}
+		logger.info("{} migrations records backfilled", legacy.size());
+	}
+
+	/**
+	 * Copies the migrations table into this keyspace's partition of migration_ledger. The migrations table doesn't
+	 * say when or by whom a migration was applied, so copied rows get the time of the copy and the runner doing it.
+	 */
+	private void copyToClusteredLedger() {
+		logger.info("Copying the migrations table to migration_ledger");
+		long start = System.nanoTime();
+		Map<String, String> shas = new LinkedHashMap<>();
+		Statement select = new SimpleStatement("SELECT name, sha FROM migrations").setFetchSize(LEDGER_FETCH_SIZE);
+		for (Row row : executeWithLock(select)) {
+			String name = row.getString("name");
+			if (!name.contains("/")) {
+				shas.put(name, row.getString("sha"));
+			}
+		}
+		metrics.ledgerRead(System.nanoTime() - start, shas.size());
+		if (!shas.isEmpty()) {
+			insertMigrations(shas, true);
+		}
+		logger.info("{} migrations records copied", shas.size());
+	}
+
+	/**
+	 * Version the ledger was last upgraded to, 0 if it never was.
+	 */
+	public int getLedgerVersion() {
+		if (!tableExists("migrations_metadata")) {
+			return 0;
+		}
+		Row row = executeWithLock("SELECT value FROM migrations_metadata WHERE key = ?", "ledger_version").one();
+		return row == null ? 0 : Integer.parseInt(row.getString("value"));
+	}
 
-				if (name.contains("/")) {
-					String truncatedName = name.substring(name.lastIndexOf("/") + 1);
-					ResultSet rs = executeWithLock("INSERT INTO migrations (name, sha) VALUES (?, ?) IF NOT EXISTS", truncatedName, sha);
-					if (rs.wasApplied()) {
-						numMigrated++;
-						logger.info("Backfilled migration. {} -> {}", name, truncatedName);
+	private void setLedgerVersion(int version) {
+		long start = System.nanoTime();
+		executeWithLock("INSERT INTO migrations_metadata (key, value) VALUES (?, ?)", "ledger_version", String.valueOf(version));
+		metrics.ledgerWrite(System.nanoTime() - start);
+		logger.info("Ledger is at version {}", version);
+	}
+
+	/**
+	 * Reads the whole migrations table once, a page at a time, so handlers can check files without a query per file.
+	 */
+	public MigrationLedger loadLedger() {
+		ledger = readLedger(true);
+		return ledger;
+	}
+
+	/**
+	 * Lock free read of the migrations table, used to decide whether the lock is needed at all.
+	 */
+	public MigrationLedger readLedger() {
+		return readLedger(false);
+	}
+
+	private MigrationLedger readLedger(boolean withLock) {
+		MigrationLedger loaded = new MigrationLedger();
+		// before its first run with the clustered ledger on, a keyspace only has the migrations table
+		boolean clustered = clusteredLedger && tableExists("migration_ledger");
+		if (clustered || tableExists("migrations")) {
+			String table = clustered ? "migration_ledger" : "migrations";
+			// rows written before the pending column was added are all complete
+			boolean tracked = getSchemaMetadata().columnExists(keyspace, table, "pending");
+			String columns = tracked ? "name, sha, pending" : "name, sha";
+			long start = System.nanoTime();
+			Statement select = clustered ? prepare("SELECT " + columns + " FROM migration_ledger WHERE ledger = ?").bind(keyspace)
+					: new SimpleStatement("SELECT " + columns + " FROM migrations");
+			select.setFetchSize(LEDGER_FETCH_SIZE);
+			List<String> abandoned = new ArrayList<>();
+			for (Row row : withLock ? executeWithLock(select) : session.execute(select)) {
+				String name = row.getString("name");
+				if (tracked && row.getBool("pending") && !withLock) {
+					loaded.putPending(name, row.getString("sha"));
+				} else {
+					if (tracked && row.getBool("pending")) {
+						logger.warn("Migration {} was marked by a run that never finished it, treating it as applied", name);
+						abandoned.add(name);
 					}
+					loaded.put(name, row.getString("sha"));
 				}
 			}
-			logger.info("{} migrations records backfilled", numMigrated);
+			metrics.ledgerRead(System.nanoTime() - start, loaded.size());
+			// otherwise lock free readers would keep seeing a migration in progress
+			for (String name : abandoned) {
+				clearPending(clustered, name);
+			}
 		}
+		logger.info("Loaded {} migration records", loaded.size());
+		return loaded;
+	}
+
+	public MigrationLedger getLedger() {
+		return ledger;
 	}
 
 	public void setupMigration() {
 		if (!session.getCluster().getMetadata().checkSchemaAgreement()) {
-			throw new CassandraMigrationException("Migration table setup precheck: schema not in agreement");
+			awaitSchemaAgreement("migration table setup precheck");
+		}
+		if (clusteredLedger && !tableExists("migration_ledger")) {
+			logger.info("migration_ledger table not found creating.");
+			ResultSet rs = executeWithLock("CREATE TABLE IF NOT EXISTS migration_ledger " +
+					"(ledger text, name text, sha text, pending boolean, applied_at timestamp, duration_ms bigint, applied_by text, statements int, digest_algorithm text," +
+					"PRIMARY KEY ((ledger), name));");
+			if (!rs.getExecutionInfo().isSchemaInAgreement()) {
+				awaitSchemaAgreement("migration ledger table creation");
+			}
 		}
-		if (!tableExists("migrations")) {
+		if (!clusteredLedger && !tableExists("migrations")) {
 			logger.info("migrations table not found creating.");
 			ResultSet rs = executeWithLock("CREATE TABLE IF NOT EXISTS migrations " +
-					"(name text, sha text," +
+					"(name text, sha text, pending boolean," +
 					"PRIMARY KEY (name));");
 			if (!rs.getExecutionInfo().isSchemaInAgreement()) {
-				throw new CassandraMigrationException("Migration table creation postcheck: schema not in agreement");
+				awaitSchemaAgreement("migration table creation");
+			}
+		}
+		addPendingColumn(clusteredLedger ? "migration_ledger" : "migrations");
+		if (!tableExists("migrations_metadata")) {
+			logger.info("migrations_metadata table not found creating.");
+			ResultSet rs = executeWithLock("CREATE TABLE IF NOT EXISTS migrations_metadata " +
+					"(key text, value text," +
+					"PRIMARY KEY (key));");
+			if (!rs.getExecutionInfo().isSchemaInAgreement()) {
+				awaitSchemaAgreement("migration metadata table creation");
+			}
+		}
+		if (checkpointInterval > 0 && !tableExists("migration_checkpoints")) {
+			logger.info("migration_checkpoints table not found creating.");
+			ResultSet rs = executeWithLock("CREATE TABLE IF NOT EXISTS migration_checkpoints " +
+					"(name text, sha text, ordinal int, digest text," +
+					"PRIMARY KEY (name));");
+			if (!rs.getExecutionInfo().isSchemaInAgreement()) {
+				awaitSchemaAgreement("migration checkpoint table creation");
 			}
 		}
 	}
 
-	public boolean tableExists(String tableName) {
-		logger.debug("Checking for {} table ", tableName);
-		ResultSet tableExisting;
-		if (cassandraVersion.startsWith("3.")) {
-			tableExisting = execute("SELECT table_name " +
-							"FROM system_schema.tables	" +
-							"WHERE keyspace_name=? and table_name = ?;",
-					keyspace, tableName);
-		} else {
-			tableExisting = execute("SELECT columnfamily_name " +
-							"FROM System.schema_columnfamilies	" +
-							"WHERE keyspace_name=? and columnfamily_name = ?;",
-					keyspace, tableName);
+	/**
+	 * Migrations are marked pending before their statements run and cleared once they all completed, so lock free
+	 * readers can tell a finished migration from one that is still running or about to be rolled back. Only
+	 * preflight reads the ledger without the lock, so existing tables only get the column when it is on.
+	 */
+	private void addPendingColumn(String table) {
+		if (!getSchemaMetadata().columnExists(keyspace, table, "pending")) {
+			if (!preflight) {
+				return;
+			}
+			logger.info("{} table has no pending column adding.", table);
+			try {
+				ResultSet rs = executeWithLock("ALTER TABLE " + table + " ADD pending boolean;");
+				if (!rs.getExecutionInfo().isSchemaInAgreement()) {
+					awaitSchemaAgreement("migration table pending column");
+				}
+			} catch (InvalidQueryException e) {
+				// the schema metadata lags behind, another runner may have just added it
+				if (e.getMessage() == null || !e.getMessage().contains("conflicts with an existing column")) {
+					throw e;
+				}
+				logger.info("{} table already has a pending column.", table);
+			}
 		}
-		return (tableExisting.one() != null);
+		trackPending = true;
 	}
 
-	public void runMigration(File file, String sha, boolean override) {
+	/**
+	 * Blocks until the nodes in scope agree on the schema.
+	 *
+	 * @param reason what the wait is for, used in the log and in the exception on timeout
+	 * @return milliseconds spent waiting
+	 */
+	public long awaitSchemaAgreement(String reason) {
+		long start = System.nanoTime();
 		try {
-			runMigration(file.getName(), Files.toString(file, Charsets.UTF_8), sha, override);
-		} catch (IOException e) {
-			logger.error("Failed to run migration", e);
-			e.printStackTrace();
+			long waited = getSchemaAgreement().await(reason);
+			metrics.schemaAgreementWait(reason, System.nanoTime() - start, true);
+			return waited;
+		} catch (CassandraMigrationException e) {
+			metrics.schemaAgreementWait(reason, System.nanoTime() - start, false);
+			throw e;
 		}
 	}
 
+	public synchronized SchemaAgreement getSchemaAgreement() {
+		if (schemaAgreement == null) {
+			schemaAgreement = new SchemaAgreement(session, keyspace, schemaAgreementTimeout, schemaAgreementDataCenters,
+					schemaAgreementKeyspaceScope);
+		}
+		return schemaAgreement;
+	}
+
+	/**
+	 * Whether the keyspace has no tables except the ones migrations keep their state in.
+	 */
+	public boolean isKeyspaceEmpty() {
+		Set<String> tables = getSchemaMetadata().tableNames(keyspace);
+		tables.removeAll(MIGRATION_TABLES);
+		return tables.isEmpty();
+	}
+
+	public boolean tableExists(String tableName) {
+		return getSchemaMetadata().tableExists(keyspace, tableName);
+	}
+
+	public synchronized SchemaMetadata getSchemaMetadata() {
+		if (schemaMetadata == null) {
+			schemaMetadata = new SchemaMetadata(session);
+		}
+		return schemaMetadata;
+	}
+
+	public void runMigration(File file, String sha, boolean override) {
+		runMigration(file.getName(), Files.asCharSource(file, Charsets.UTF_8), sha, override);
+	}
+
 	public void runMigration(String fileName, String fileContents, String sha, boolean override) {
-		if (markMigration(fileName, sha, override)) {
+		runMigration(fileName, CharSource.wrap(fileContents), sha, override);
+	}
+
+	/**
+	 * Executes the statements of a migration as they are read from the source, without holding the whole file in memory.
+	 *
+	 * With checkpoints on, progress is recorded every checkpointInterval statements once everything sent so far has
+	 * completed. After a failure the next attempt skips the checkpointed statements, if the file still starts with them.
+	 */
+	public void runMigration(String fileName, CharSource source, String sha, boolean override) {
+		if (markMigration(fileName, sha, override, trackPending)) {
 			logger.info("Running migration " + fileName + " with sha " + sha);
-			List<String> statements = Arrays.asList(fileContents.split(";"));
-			List<String> runStatements = new ArrayList<>();
+			long start = System.nanoTime();
+			Deque<String> recentStatements = new ArrayDeque<>();
+			int count = 0;
+			// statements counted in count that were skipped because a checkpoint covered them
+			int resumed = 0;
+			MigrationCheckpoint.Prefix prefix = checkpointInterval > 0 ? new MigrationCheckpoint.Prefix() : null;
+			int checkpointed = 0;
+			boolean checkpointStored = false;
+
+			StatementPipeline pipeline = pipelineDml ? new StatementPipeline(session, maxDmlInFlight, metrics, fileName) : null;
+			DmlBatcher batcher = batchDml ? new DmlBatcher(this::tableKey, (ordinal, batch) -> send(pipeline, fileName, ordinal, batch),
+					maxBatchStatements, maxBatchBytes) : null;
+
+			// with deferred agreement, schema changes that haven't been agreed on yet and the objects they named
+			boolean schemaPending = false;
+			Set<String> pendingSchemaObjects = new HashSet<>();
+
+			try (CqlStatementReader statements = new CqlStatementReader(source.openBufferedStream())) {
+				int resumeAfter = 0;
+				if (prefix != null) {
+					MigrationCheckpoint checkpoint = readCheckpoint(fileName);
+					checkpointStored = checkpoint != null;
+					resumeAfter = checkpoint != null ? verifiedPrefix(fileName, source, checkpoint) : 0;
+					checkpointed = resumeAfter;
+					resumed = resumeAfter;
+				}
 
-			try {
-				for (String statement : statements) {
-					String trimmedStatement = statement.trim();
-					if (!trimmedStatement.equals("")) {
-						ResultSet resultSet = executeWithLock(trimmedStatement + ";");
-						// may need to up Cluster.Builder.withMaxSchemaAgreementWaitSeconds
-						if (!resultSet.getExecutionInfo().isSchemaInAgreement()) {
-							logger.error("Schema is not in agreement");
-							throw new CassandraMigrationException("Schema is not in agreement.");
+				String statement;
+				while ((statement = statements.next()) != null) {
+					if (prefix != null) {
+						prefix.add(statement);
+						if (count < resumeAfter) {
+							count++;
+							continue;
 						}
-						runStatements.add(trimmedStatement);
 					}
-				}
-			} catch (Exception e) {
+					CqlStatement cql = CqlStatement.parse(statement);
+					if (schemaPending && (cql.getKind() != CqlStatement.Kind.DDL || cql.mentions(pendingSchemaObjects))) {
+						awaitSchemaAgreement(fileName);
+						schemaPending = false;
+						pendingSchemaObjects.clear();
+					}
 
-				if (!runStatements.isEmpty()) {
-					String msg = "Statements run prior to failure:\n";
-					for (String statement : runStatements) {
-						msg += statement + ";\n";
+					if (batcher != null && batcher.add(count + 1, cql)) {
+						// sent once its batch is complete
+					} else if (pipeline != null && cql.isPipelineable()) {
+						send(pipeline, fileName, count + 1, new SimpleStatement(statement + ";"));
+					} else {
+						if (pipeline != null) {
+							pipeline.drain();
+						}
+						String text = statement + ";";
+						ResultSet resultSet = executeStatement(fileName, count + 1, () -> executeWithLock(text));
+						if (resultSet.getExecutionInfo().isSchemaInAgreement()) {
+							schemaPending = false;
+							pendingSchemaObjects.clear();
+						} else if (deferSchemaAgreement && cql.getKind() == CqlStatement.Kind.DDL) {
+							schemaPending = true;
+							if (cql.getSchemaObject() != null) {
+								pendingSchemaObjects.add(cql.getSchemaObject());
+							}
+						} else {
+							awaitSchemaAgreement(fileName);
+						}
+					}
+					count++;
+					recentStatements.addLast(statement);
+					if (recentStatements.size() > FAILURE_LOG_STATEMENTS) {
+						recentStatements.removeFirst();
 					}
-					logger.error(msg);
-				}
 
-				logger.error("removing mark for migration " + fileName);
-				removeMigration(fileName);
+					if (prefix != null && count % checkpointInterval == 0) {
+						if (batcher != null) {
+							batcher.flush();
+						}
+						if (pipeline != null) {
+							pipeline.drain();
+						}
+						writeCheckpoint(fileName, sha, count, prefix.current());
+						checkpointed = count;
+						checkpointStored = true;
+					}
+				}
+				if (batcher != null) {
+					batcher.flush();
+				}
+				if (pipeline != null) {
+					pipeline.drain();
+					ensureLease();
+				}
+				if (schemaPending) {
+					awaitSchemaAgreement(fileName);
+				}
+			} catch (IOException e) {
+				awaitQuietly(pipeline);
+				migrationFailed(fileName, count - resumed, recentStatements, checkpointed);
+				throw new CassandraMigrationException("Failed reading migration " + fileName, e);
+			} catch (RuntimeException e) {
+				awaitQuietly(pipeline);
+				migrationFailed(fileName, count - resumed, recentStatements, checkpointed);
 				throw e;
 			}
 
+			if (checkpointStored) {
+				removeCheckpoint(fileName);
+			}
+			migrationCompleted(fileName, System.nanoTime() - start, count - resumed);
+
 		} else {
 			logger.warn("Not running " + fileName + " as another process has already marked it.");
 		}
 	}
 
+	private void send(StatementPipeline pipeline, String fileName, int ordinal, Statement statement) {
+		if (pipeline != null) {
+			ensureLease();
+			pipeline.submit(ordinal, statement);
+		} else {
+			executeStatement(fileName, ordinal, () -> executeWithLock(statement));
+		}
+	}
+
+	private ResultSet executeStatement(String fileName, int ordinal, Supplier<ResultSet> execution) {
+		long start = System.nanoTime();
+		ResultSet rs;
+		try {
+			rs = execution.get();
+		} catch (RuntimeException e) {
+			metrics.statementExecuted(fileName, ordinal, System.nanoTime() - start, false, coordinator(e));
+			throw e;
+		}
+		// nothing to look the coordinator up for without a listener
+		metrics.statementExecuted(fileName, ordinal, System.nanoTime() - start, true,
+				metrics == MigrationMetrics.NOOP ? null : coordinator(rs.getExecutionInfo()));
+		return rs;
+	}
+
+	static InetAddress coordinator(ExecutionInfo executionInfo) {
+		Host host = executionInfo == null ? null : executionInfo.getQueriedHost();
+		return host == null ? null : host.getAddress();
+	}
+
+	static InetAddress coordinator(Throwable failure) {
+		return failure instanceof CoordinatorException ? ((CoordinatorException) failure).getHost() : null;
+	}
+
+	private DmlBatcher.TableKey tableKey(String keyspaceName, String tableName) {
+		if (keyspaceName == null) {
+			keyspaceName = session.getLoggedKeyspace() != null ? session.getLoggedKeyspace() : keyspace;
+		}
+		if (keyspaceName == null) {
+			return null;
+		}
+		KeyspaceMetadata keyspaceMetadata = session.getCluster().getMetadata().getKeyspace(Metadata.quote(keyspaceName));
+		TableMetadata table = keyspaceMetadata == null ? null : keyspaceMetadata.getTable(Metadata.quote(tableName));
+		if (table == null) {
+			return null;
+		}
+		for (ColumnMetadata column : table.getColumns()) {
+			if (column.getType().getName() == DataType.Name.COUNTER) {
+				return null;
+			}
+		}
+		return new DmlBatcher.TableKey(columnNames(table.getPartitionKey()), columnNames(table.getClusteringColumns()));
+	}
+
+	private static List<String> columnNames(List<ColumnMetadata> columns) {
+		List<String> names = new ArrayList<>(columns.size());
+		for (ColumnMetadata column : columns) {
+			names.add(column.getName());
+		}
+		return names;
+	}
+
+	private static void awaitQuietly(StatementPipeline pipeline) {
+		if (pipeline != null) {
+			pipeline.await();
+		}
+	}
+
+	private void migrationFailed(String fileName, int count, Deque<String> recentStatements, int checkpointed) {
+		if (count > 0) {
+			String msg = count + " statements run prior to failure, the last " + recentStatements.size() + " were:\n";
+			for (String statement : recentStatements) {
+				msg += statement + ";\n";
+			}
+			logger.error(msg);
+		}
+		if (checkpointed > 0) {
+			logger.info("The next attempt at " + fileName + " resumes after statement #" + checkpointed);
+		}
+
+		logger.error("removing mark for migration " + fileName);
+		removeMigration(fileName);
+	}
+
+	private MigrationCheckpoint readCheckpoint(String fileName) {
+		Row row = executeWithLock("SELECT sha, ordinal, digest FROM migration_checkpoints WHERE name = ?", new File(fileName).getName()).one();
+		return row == null ? null : new MigrationCheckpoint(row.getString("sha"), row.getInt("ordinal"), row.getString("digest"));
+	}
+
+	/**
+	 * Rereads the start of the migration and returns the number of statements that can be skipped, 0 when the
+	 * checkpointed statements no longer match the file.
+	 */
+	private int verifiedPrefix(String fileName, CharSource source, MigrationCheckpoint checkpoint) throws IOException {
+		MigrationCheckpoint.Prefix prefix = new MigrationCheckpoint.Prefix();
+		try (CqlStatementReader statements = new CqlStatementReader(source.openBufferedStream())) {
+			String statement;
+			while (prefix.getStatements() < checkpoint.getOrdinal() && (statement = statements.next()) != null) {
+				prefix.add(statement);
+			}
+		}
+		if (prefix.getStatements() == checkpoint.getOrdinal() && prefix.current().equals(checkpoint.getDigest())) {
+			logger.info("Resuming migration " + fileName + " after statement #" + checkpoint.getOrdinal() + ", checkpointed with sha " + checkpoint.getSha());
+			return checkpoint.getOrdinal();
+		}
+		logger.warn("The first " + checkpoint.getOrdinal() + " statements of " + fileName + " changed since they were checkpointed, running it from the start");
+		return 0;
+	}
+
+	private void writeCheckpoint(String fileName, String sha, int ordinal, String digest) {
+		long start = System.nanoTime();
+		executeWithLock("INSERT INTO migration_checkpoints (name, sha, ordinal, digest) VALUES (?, ?, ?, ?)",
+				new File(fileName).getName(), sha, ordinal, digest);
+		metrics.ledgerWrite(System.nanoTime() - start);
+		logger.debug("Checkpointed {} after statement #{}", fileName, ordinal);
+	}
+
+	private void removeCheckpoint(String fileName) {
+		long start = System.nanoTime();
+		executeWithLock("DELETE FROM migration_checkpoints WHERE name = ?", new File(fileName).getName());
+		metrics.ledgerWrite(System.nanoTime() - start);
+	}
+
 	private void removeMigration(String fileName) {
 		File file = new File(fileName);
-		ResultSet result = executeWithLock("DELETE FROM migrations WHERE name = ? IF EXISTS", file.getName());
+		long start = System.nanoTime();
+		ResultSet result = clusteredLedger
+				? executeWithLock("DELETE FROM migration_ledger WHERE ledger = ? AND name = ? IF EXISTS", keyspace, file.getName())
+				: executeWithLock("DELETE FROM migrations WHERE name = ? IF EXISTS", file.getName());
+		metrics.ledgerWrite(System.nanoTime() - start);
 		if (!result.wasApplied()) {
 			logger.error("removing migration mark failed for " + fileName);
 		}
+		if (ledger != null) {
+			ledger.remove(file.getName());
+		}
 	}
 
-	private boolean markMigration(String fileName, String sha, boolean override) {
+	private boolean markMigration(String fileName, String sha, boolean override, boolean pending) {
 
 		File file = new File(fileName);
 
 		//We use the light weight transaction to make sure another process hasn't started the work, but only if we aren't overriding
 		String ifClause = override ? "" : "IF NOT EXISTS";
-		ResultSet result = executeWithLock("INSERT INTO migrations (name, sha) VALUES (?, ?) " + ifClause + ";", file.getName(), sha);
+		long start = System.nanoTime();
+		ResultSet result;
+		if (clusteredLedger) {
+			result = executeWithLock("INSERT INTO migration_ledger (ledger, name, sha, applied_at, applied_by, digest_algorithm" + (pending ? ", pending" : "") +
+					") VALUES (?, ?, ?, ?, ?, ?" + (pending ? ", true" : "") + ") " + ifClause + ";",
+					keyspace, file.getName(), sha, new Date(), ownerName, digestAlgorithm(sha));
+		} else if (pending) {
+			result = executeWithLock("INSERT INTO migrations (name, sha, pending) VALUES (?, ?, true) " + ifClause + ";", file.getName(), sha);
+		} else {
+			result = executeWithLock("INSERT INTO migrations (name, sha) VALUES (?, ?) " + ifClause + ";", file.getName(), sha);
+		}
+		metrics.ledgerWrite(System.nanoTime() - start);
 
-		return override || result.wasApplied();
+		boolean marked = override || result.wasApplied();
+		if (marked && ledger != null) {
+			ledger.put(file.getName(), sha);
+		}
+		return marked;
 	}
 
 	public boolean markMigration(String fileName, String sha) {
-		return markMigration(fileName, sha, false);
+		return markMigration(fileName, sha, false, false);
+	}
+
+	/**
+	 * Records a new digest for an applied migration, leaving the rest of its row alone.
+	 */
+	public void updateMigrationDigest(String fileName, String sha) {
+		File file = new File(fileName);
+		long start = System.nanoTime();
+		if (clusteredLedger) {
+			executeWithLock("UPDATE migration_ledger SET sha = ?, digest_algorithm = ? WHERE ledger = ? AND name = ?",
+					sha, digestAlgorithm(sha), keyspace, file.getName());
+		} else {
+			executeWithLock("UPDATE migrations SET sha = ? WHERE name = ?", sha, file.getName());
+		}
+		metrics.ledgerWrite(System.nanoTime() - start);
+		if (ledger != null) {
+			ledger.put(file.getName(), sha);
+		}
+	}
+
+	/**
+	 * Records migrations as applied without running them, in unlogged batches and without checking for existing
+	 * rows, so only for a keyspace no one else is migrating.
+	 *
+	 * @param shas digest to record for each migration, keyed by file name
+	 */
+	public void markMigrations(Map<String, String> shas) {
+		insertMigrations(shas, clusteredLedger);
+		if (ledger != null) {
+			for (Map.Entry<String, String> sha : shas.entrySet()) {
+				ledger.put(new File(sha.getKey()).getName(), sha.getValue());
+			}
+		}
+	}
+
+	private void insertMigrations(Map<String, String> shas, boolean clustered) {
+		PreparedStatement insert = clustered
+				? prepare("INSERT INTO migration_ledger (ledger, name, sha, applied_at, applied_by, digest_algorithm) VALUES (?, ?, ?, ?, ?, ?)")
+				: prepare("INSERT INTO migrations (name, sha) VALUES (?, ?)");
+		Date now = new Date();
+		BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+		for (Map.Entry<String, String> sha : shas.entrySet()) {
+			String name = new File(sha.getKey()).getName();
+			batch.add(clustered ? insert.bind(keyspace, name, sha.getValue(), now, ownerName, digestAlgorithm(sha.getValue()))
+					: insert.bind(name, sha.getValue()));
+			if (batch.size() == MARK_BATCH_SIZE) {
+				executeMarks(batch);
+				batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+			}
+		}
+		if (batch.size() > 0) {
+			executeMarks(batch);
+		}
+	}
+
+	/**
+	 * Clears the pending mark once every statement of the migration completed. The clustered ledger also records
+	 * how long it took and how many statements it ran, which leaves out statements a checkpoint let it skip.
+	 */
+	private void migrationCompleted(String fileName, long nanos, int statements) {
+		if (clusteredLedger) {
+			long start = System.nanoTime();
+			executeWithLock("UPDATE migration_ledger SET duration_ms = ?, statements = ?" + (trackPending ? ", pending = null" : "") +
+					" WHERE ledger = ? AND name = ?", TimeUnit.NANOSECONDS.toMillis(nanos), statements, keyspace, new File(fileName).getName());
+			metrics.ledgerWrite(System.nanoTime() - start);
+		} else if (trackPending) {
+			clearPending(false, new File(fileName).getName());
+		}
+	}
+
+	private void clearPending(boolean clustered, String name) {
+		long start = System.nanoTime();
+		if (clustered) {
+			executeWithLock("UPDATE migration_ledger SET pending = null WHERE ledger = ? AND name = ?", keyspace, name);
+		} else {
+			executeWithLock("UPDATE migrations SET pending = null WHERE name = ?", name);
+		}
+		metrics.ledgerWrite(System.nanoTime() - start);
+	}
+
+	private static String digestAlgorithm(String sha) {
+		MigrationDigest digest = MigrationDigest.forRecorded(sha);
+		return digest != null ? digest.getName() : null;
+	}
+
+	private void executeMarks(BatchStatement batch) {
+		long start = System.nanoTime();
+		executeWithLock(batch);
+		metrics.ledgerWrite(System.nanoTime() - start);
 	}
 
 	public void acquireLock() throws InterruptedException {
-		while(!lock.tryLock()) {
-			logger.info("Unable to acquire lock owned by %s. Sleeping...", lock.getOwner());
-			Thread.sleep(1000);
+		acquireLock(() -> false);
+	}
+
+	/**
+	 * Waits for the lock according to the configured {@link LockRetryPolicy}.
+	 *
+	 * @param abandon checked after every wait, before trying again, so waiters can give up once the holder has done their work
+	 * @return true if the lock was acquired, false if the wait was abandoned
+	 */
+	public boolean acquireLock(BooleanSupplier abandon) throws InterruptedException {
+		if (lock == null) {
+			lock = new CassandraLock(this, lockTtl, lockRenewThreshold, lockHeartbeat);
+		}
+		long start = System.nanoTime();
+		long deadline = lockRetryPolicy.deadline(System.currentTimeMillis());
+		int attempt = 0;
+		boolean acquired = false;
+		try {
+			while (!lock.tryLock()) {
+				long delay = lockRetryPolicy.isWaitForExpiry() ? lockRetryPolicy.untilExpiry(lock.getTtl()) : lockRetryPolicy.backoff(attempt);
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw new CassandraLockException("Timed out after " + lockRetryPolicy.getTimeoutMillis() + "ms waiting for lock owned by " + lock.getLastSeenOwner());
+				}
+				logger.info("Unable to acquire lock owned by {}. Sleeping {}ms...", lock.getLastSeenOwner(), delay);
+				Thread.sleep(Math.min(delay, remaining));
+				attempt++;
+
+				if (abandon.getAsBoolean()) {
+					logger.info("No longer waiting for lock owned by {}", lock.getLastSeenOwner());
+					return false;
+				}
+			}
+			acquired = true;
+		} finally {
+			metrics.lockAcquisition(System.nanoTime() - start, attempt + 1, acquired);
 		}
 		logger.info("Lock acquired!");
+		return true;
+	}
+
+	/**
+	 * Whether anyone holds the migration lock, read without trying to take it. False before the lock was first tried.
+	 */
+	public boolean isLocked() {
+		return lock != null && lock.isLocked();
 	}
 
 	public void keepLockAlive() {
-		lock.keepAlive();
+		ensureLease();
 	}
 
 	public String getMigrationMd5(String fileName) {
 		File file = new File(fileName);
-		ResultSet result = executeWithLock("SELECT sha FROM migrations WHERE name=?", file.getName());
+		if (ledger != null) {
+			return ledger.getSha(file.getName());
+		}
+
+		ResultSet result = clusteredLedger
+				? executeWithLock("SELECT sha FROM migration_ledger WHERE ledger = ? AND name = ?", keyspace, file.getName())
+				: executeWithLock("SELECT sha FROM migrations WHERE name=?", file.getName());
 		if (result.isExhausted()) {
 			return null;
 		}
@@ -382,4 +1079,8 @@ public class CassandraConnection implements AutoCloseable {
 	public String getOwnerName() {
 		return ownerName;
 	}
+
+	public MigrationMetrics getMetrics() {
+		return metrics;
+	}
 }
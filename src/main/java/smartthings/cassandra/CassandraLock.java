@@ -1,9 +1,14 @@
 package smartthings.cassandra;
 
 import com.datastax.driver.core.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import smartthings.migration.CassandraMigrationException;
+import smartthings.metrics.MigrationMetrics;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class CassandraLock implements AutoCloseable {
 	private static final Logger logger = LoggerFactory.getLogger(CassandraLock.class);
@@ -11,7 +16,9 @@ public class CassandraLock implements AutoCloseable {
 	private static final int lockId = 1;
 
 	private final int ttl;
+	private final long renewThresholdNanos;
 	private final CassandraConnection cassandraConnection;
+	private final MigrationMetrics metrics;
 	private final String owner;
 	private final Session session;
 	private final PreparedStatement insertLock;
@@ -19,15 +26,38 @@ public class CassandraLock implements AutoCloseable {
 	private final PreparedStatement selectLock;
 	private final PreparedStatement updateLock;
 
+	// System.nanoTime() at which the lock row written by our last successful LWT expires, 0 when no lease is held
+	private volatile long leaseExpiresAt;
+
+	private final boolean heartbeat;
+	private ScheduledExecutorService heartbeatExecutor;
+	private volatile boolean lost;
+	private volatile LockListener listener;
+	private volatile String lastSeenOwner;
+
 	public CassandraLock(CassandraConnection cassandraConnection) {
 		this(cassandraConnection, 60);
 	}
 
 	public CassandraLock(CassandraConnection cassandraConnection, int ttl) {
+		this(cassandraConnection, ttl, ttl / 2);
+	}
+
+	public CassandraLock(CassandraConnection cassandraConnection, int ttl, int renewThreshold) {
+		this(cassandraConnection, ttl, renewThreshold, false);
+	}
+
+	/**
+	 * @param heartbeat renew the lock from a background thread every third of the ttl while it is held
+	 */
+	public CassandraLock(CassandraConnection cassandraConnection, int ttl, int renewThreshold, boolean heartbeat) {
 		this.ttl = ttl;
+		this.heartbeat = heartbeat;
+		this.renewThresholdNanos = TimeUnit.SECONDS.toNanos(renewThreshold);
 		this.cassandraConnection = cassandraConnection;
 		this.session = cassandraConnection.getSession();
 		this.owner = cassandraConnection.getOwnerName();
+		this.metrics = cassandraConnection.getMetrics() != null ? cassandraConnection.getMetrics() : MigrationMetrics.NOOP;
 
 		setupTables();
 
@@ -45,17 +75,26 @@ public class CassandraLock implements AutoCloseable {
 	}
 
 	public boolean tryLock() {
+		long requestedAt = System.nanoTime();
 		ResultSet rs = session.execute(insertLock.bind().setInt("lockId", lockId)
 				.setInt("ttl", ttl).setString("owner", owner));
 		if (rs.wasApplied()) {
+			leaseExpiresAt = requestedAt + TimeUnit.SECONDS.toNanos(ttl);
+			lost = false;
+			lastSeenOwner = owner;
+			startHeartbeat();
 			return true;
 		} else {
 			Row row = rs.one();
-			return owner.equals(row.getString("lockedby"));
+			lastSeenOwner = row.getString("lockedby");
+			// already ours, but we don't know when it expires so the next ensureLease renews it
+			return owner.equals(lastSeenOwner);
 		}
 	}
 
 	public void unlock() {
+		stopHeartbeat();
+		leaseExpiresAt = 0;
 		// Only try to release lock if its mine
 		if (isMine()) {
 			ResultSet rs = session.execute(deleteLock.bind().setInt("lockId", lockId).setString("owner", owner));
@@ -69,11 +108,100 @@ public class CassandraLock implements AutoCloseable {
 	}
 
 	public void keepAlive() {
+		long requestedAt = System.nanoTime();
 		ResultSet rs = session.execute(updateLock.bind().setInt("lockId", lockId)
 				.setInt("ttl", ttl).setString("owner", owner));
+		metrics.lockRenewal(System.nanoTime() - requestedAt, rs.wasApplied());
 		if (!rs.wasApplied()) {
+			leaseExpiresAt = 0;
 			throw new CassandraLockException("unable to keep alive lock");
 		}
+		leaseExpiresAt = requestedAt + TimeUnit.SECONDS.toNanos(ttl);
+	}
+
+	/**
+	 * Renews the lock only when less than the renew threshold is left on the lease. While the lease is
+	 * comfortably valid no other owner can hold the lock, so no round trip is needed.
+	 */
+	public void ensureLease() {
+		if (lost) {
+			throw new CassandraLockException("lock ownership was lost");
+		}
+		if (getLeaseRemainingNanos() > renewThresholdNanos) {
+			return;
+		}
+		// migrations running in parallel share the lock, only one of them needs to renew it
+		synchronized (this) {
+			if (getLeaseRemainingNanos() <= renewThresholdNanos) {
+				keepAlive();
+			}
+		}
+	}
+
+	public long getLeaseRemainingMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(getLeaseRemainingNanos());
+	}
+
+	public boolean isLost() {
+		return lost;
+	}
+
+	public void setListener(LockListener listener) {
+		this.listener = listener;
+	}
+
+	private synchronized void startHeartbeat() {
+		if (!heartbeat || heartbeatExecutor != null) {
+			return;
+		}
+		long period = Math.max(1, TimeUnit.SECONDS.toMillis(ttl) / 3);
+		heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat("cassandra-lock-heartbeat-%d")
+				.build());
+		heartbeatExecutor.scheduleWithFixedDelay(this::beat, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void stopHeartbeat() {
+		if (heartbeatExecutor != null) {
+			heartbeatExecutor.shutdownNow();
+			heartbeatExecutor = null;
+		}
+	}
+
+	private void beat() {
+		if (lost) {
+			return;
+		}
+		try {
+			keepAlive();
+		} catch (CassandraLockException e) {
+			lockLost(e);
+		} catch (Exception e) {
+			if (getLeaseRemainingNanos() == 0) {
+				lockLost(new CassandraLockException("lock lease expired while renewing: " + e.getMessage()));
+			} else {
+				logger.warn("Lock heartbeat failed, will retry", e);
+			}
+		}
+	}
+
+	private void lockLost(CassandraLockException e) {
+		logger.error("Lost ownership of the migration lock", e);
+		lost = true;
+		leaseExpiresAt = 0;
+		LockListener current = listener;
+		if (current != null) {
+			current.lockLost(e);
+		}
+	}
+
+	private long getLeaseRemainingNanos() {
+		long expiresAt = leaseExpiresAt;
+		if (expiresAt == 0) {
+			return 0;
+		}
+		return Math.max(0, expiresAt - System.nanoTime());
 	}
 
 	public String getOwner() {
@@ -85,6 +213,13 @@ public class CassandraLock implements AutoCloseable {
 		return null;
 	}
 
+	/**
+	 * Owner reported by the last tryLock, without another read of the lock table.
+	 */
+	public String getLastSeenOwner() {
+		return lastSeenOwner;
+	}
+
 	public int getTtl() {
 		Row row = session.execute(selectLock.bind().setInt("lockId", lockId)).one();
 		if (row != null) {
@@ -104,6 +239,7 @@ public class CassandraLock implements AutoCloseable {
 
 	@Override
 	public void close() {
+		stopHeartbeat();
 		if (isMine()) {
 			unlock();
 		}
@@ -116,8 +252,12 @@ public class CassandraLock implements AutoCloseable {
 					"(id int, lockedby text, " +
 					"PRIMARY KEY (id));");
 			if (!rs.getExecutionInfo().isSchemaInAgreement()) {
-				throw new CassandraMigrationException("databasechangelock table creation postcheck: schema not in agreement");
+				cassandraConnection.awaitSchemaAgreement("databasechangelock table creation");
 			}
 		}
 	}
+
+	public interface LockListener {
+		void lockLost(CassandraLockException cause);
+	}
 }
@@ -0,0 +1,436 @@
+package smartthings.cassandra;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lightweight analysis of a single CQL statement, enough to decide how a migration can execute it.
+ */
+public class CqlStatement {
+	private static final Set<String> SCHEMA_OBJECT_KEYWORDS = new HashSet<>(Arrays.asList("OR", "REPLACE", "CUSTOM",
+			"MATERIALIZED", "TABLE", "COLUMNFAMILY", "INDEX", "VIEW", "TYPE", "KEYSPACE", "SCHEMA", "FUNCTION", "AGGREGATE",
+			"TRIGGER", "ROLE", "USER", "IF", "NOT", "EXISTS"));
+	// keywords followed by the name of a table or other schema object
+	private static final Set<String> OBJECT_KEYWORDS = new HashSet<>(Arrays.asList("INTO", "UPDATE", "FROM", "TRUNCATE", "ON",
+			"TABLE", "COLUMNFAMILY", "INDEX", "VIEW", "TYPE", "FUNCTION", "AGGREGATE", "TRIGGER"));
+	private static final Set<String> NATIVE_TYPES = new HashSet<>(Arrays.asList("ascii", "bigint", "blob", "boolean", "counter",
+			"date", "decimal", "double", "duration", "float", "inet", "int", "smallint", "text", "time", "timestamp", "timeuuid",
+			"tinyint", "uuid", "varchar", "varint", "frozen", "list", "map", "set", "tuple"));
+
+	public enum Kind {
+		/** Schema changes, which must run one at a time and reach schema agreement. */
+		DDL,
+		/** INSERT, UPDATE, DELETE and batches of them. */
+		DML,
+		/** Anything else, such as USE, TRUNCATE, GRANT or SELECT. */
+		OTHER
+	}
+
+	private final String text;
+	private final List<String> tokens;
+	private final Kind kind;
+	private final boolean conditional;
+	private String keyspace;
+	private String table;
+	private Map<String, String> columnValues;
+	private String schemaObject;
+	private String schemaObjectType;
+
+	private CqlStatement(String text, List<String> tokens) {
+		this.text = text;
+		this.tokens = tokens;
+		this.kind = kindOf(keyword(0));
+		this.conditional = kind == Kind.DML && containsKeyword("IF");
+		if (kind == Kind.DML) {
+			analyzeWrite();
+		} else if (kind == Kind.DDL) {
+			analyzeSchemaChange();
+		}
+	}
+
+	public static CqlStatement parse(String text) {
+		return new CqlStatement(text, tokenize(text));
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * Light weight transactions, which depend on the outcome of the statements before them.
+	 */
+	public boolean isConditional() {
+		return conditional;
+	}
+
+	/**
+	 * Writes that can be sent without waiting for the statements before them. The driver assigns client side
+	 * timestamps in submission order, so concurrent writes to the same cells still resolve in file order.
+	 */
+	public boolean isPipelineable() {
+		return kind == Kind.DML && !conditional;
+	}
+
+	/**
+	 * Keyspace the statement writes to, or null when it is unqualified or not a single table write.
+	 */
+	public String getKeyspace() {
+		return keyspace;
+	}
+
+	/**
+	 * Table a single INSERT, UPDATE or DELETE writes to, or null for anything else.
+	 */
+	public String getTable() {
+		return table;
+	}
+
+	/**
+	 * Literal values a single table write assigns or is restricted to, by column: the inserted values of an INSERT
+	 * and the equality relations in the WHERE clause of an UPDATE or DELETE. Values that aren't literals, such as
+	 * function calls and bind markers, map to null. Returns null when the statement has any other shape.
+	 */
+	public Map<String, String> getColumnValues() {
+		return columnValues == null ? null : Collections.unmodifiableMap(columnValues);
+	}
+
+	/**
+	 * Name of the keyspace, table, type or other object a schema change creates, alters or drops, without its
+	 * keyspace. Null for other statements and for unnamed indexes.
+	 */
+	public String getSchemaObject() {
+		return schemaObject;
+	}
+
+	/**
+	 * The statement's first keyword, upper cased.
+	 */
+	public String getKeyword() {
+		return keyword(0);
+	}
+
+	/**
+	 * Kind of object a schema change applies to, such as TABLE, TYPE or KEYSPACE, or null for other statements.
+	 */
+	public String getSchemaObjectType() {
+		return schemaObjectType;
+	}
+
+	/**
+	 * Whether this creates, alters or drops a keyspace.
+	 */
+	public boolean isKeyspaceChange() {
+		return "KEYSPACE".equals(schemaObjectType) || "SCHEMA".equals(schemaObjectType);
+	}
+
+	/**
+	 * Keyspace a USE statement switches the session to, or null for any other statement.
+	 */
+	public String getUsedKeyspace() {
+		return keyword(0).equals("USE") && isName(1) ? name(tokens.get(1)) : null;
+	}
+
+	/**
+	 * Tables and other schema objects the statement reads, writes or changes, as keyspace.name. Unqualified names
+	 * are resolved against the given keyspace. Keyspaces themselves are not included.
+	 */
+	public Set<String> getObjects(String defaultKeyspace) {
+		Set<String> objects = new LinkedHashSet<>();
+		for (int i = 0; i < tokens.size(); i++) {
+			if (!OBJECT_KEYWORDS.contains(keyword(i))) {
+				continue;
+			}
+			int j = i + 1;
+			while (keyword(j).equals("IF") || keyword(j).equals("NOT") || keyword(j).equals("EXISTS")
+					|| keyword(j).equals("TABLE") || keyword(j).equals("COLUMNFAMILY")) {
+				j++;
+			}
+			if (OBJECT_KEYWORDS.contains(keyword(j)) || keyword(j).equals("ALL") || keyword(j).equals("KEYSPACE") || !isName(j)) {
+				continue;
+			}
+			boolean qualified = ".".equals(token(j + 1)) && isName(j + 2);
+			String object = name(tokens.get(qualified ? j + 2 : j));
+			if (!NATIVE_TYPES.contains(object)) {
+				objects.add((qualified ? name(tokens.get(j)) : defaultKeyspace) + "." + object);
+			}
+		}
+		return objects;
+	}
+
+	/**
+	 * Whether any of the given names appears as an identifier in the statement.
+	 */
+	public boolean mentions(Collection<String> names) {
+		for (int i = 0; i < tokens.size(); i++) {
+			if (isName(i) && names.contains(name(tokens.get(i)))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	List<String> getTokens() {
+		return Collections.unmodifiableList(tokens);
+	}
+
+	String keyword(int index) {
+		return index < tokens.size() ? tokens.get(index).toUpperCase(Locale.ROOT) : "";
+	}
+
+	private boolean containsKeyword(String keyword) {
+		for (String token : tokens) {
+			if (token.equalsIgnoreCase(keyword)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void analyzeWrite() {
+		int i;
+		switch (keyword(0)) {
+			case "INSERT":
+				i = readTable(keyword(1).equals("INTO") ? 2 : -1);
+				if (i > 0) {
+					columnValues = insertValues(i);
+				}
+				break;
+			case "UPDATE":
+				i = readTable(1);
+				if (i > 0) {
+					columnValues = whereValues(indexOf("WHERE", i));
+				}
+				break;
+			case "DELETE":
+				i = readTable(indexOf("FROM", 1) + 1);
+				if (i > 0) {
+					columnValues = whereValues(indexOf("WHERE", i));
+				}
+				break;
+			default:
+		}
+		if (columnValues == null) {
+			keyspace = null;
+			table = null;
+		}
+	}
+
+	private void analyzeSchemaChange() {
+		int i = 1;
+		while (SCHEMA_OBJECT_KEYWORDS.contains(keyword(i))) {
+			if (!keyword(i).equals("IF") && !keyword(i).equals("NOT") && !keyword(i).equals("EXISTS")) {
+				schemaObjectType = keyword(i);
+			}
+			i++;
+		}
+		if (isName(i) && !keyword(i).equals("ON")) {
+			boolean qualified = ".".equals(token(i + 1)) && isName(i + 2);
+			schemaObject = name(tokens.get(qualified ? i + 2 : i));
+		}
+	}
+
+	// reads [keyspace.]table at index and returns the index after it
+	private int readTable(int index) {
+		if (index <= 0 || !isName(index)) {
+			return -1;
+		}
+		if (".".equals(token(index + 1)) && isName(index + 2)) {
+			keyspace = name(tokens.get(index));
+			table = name(tokens.get(index + 2));
+			return index + 3;
+		}
+		table = name(tokens.get(index));
+		return index + 1;
+	}
+
+	private Map<String, String> insertValues(int index) {
+		if (!"(".equals(token(index))) {
+			return null;
+		}
+		List<List<String>> columns = new ArrayList<>();
+		int i = readList(index, columns);
+		if (i < 0 || !keyword(i).equals("VALUES")) {
+			return null;
+		}
+		List<List<String>> values = new ArrayList<>();
+		if (readList(i + 1, values) < 0 || values.size() != columns.size()) {
+			return null;
+		}
+		Map<String, String> result = new LinkedHashMap<>();
+		for (int c = 0; c < columns.size(); c++) {
+			List<String> column = columns.get(c);
+			if (column.size() != 1) {
+				return null;
+			}
+			result.put(name(column.get(0)), literal(values.get(c)));
+		}
+		return result;
+	}
+
+	// reads a parenthesized, comma separated list starting at index and returns the index after it
+	private int readList(int index, List<List<String>> items) {
+		if (!"(".equals(token(index))) {
+			return -1;
+		}
+		int depth = 0;
+		List<String> item = new ArrayList<>();
+		for (int i = index + 1; i < tokens.size(); i++) {
+			String token = tokens.get(i);
+			if (depth == 0 && (token.equals(",") || token.equals(")"))) {
+				items.add(item);
+				item = new ArrayList<>();
+				if (token.equals(")")) {
+					return i + 1;
+				}
+				continue;
+			}
+			if (token.equals("(") || token.equals("[") || token.equals("{")) {
+				depth++;
+			} else if (token.equals(")") || token.equals("]") || token.equals("}")) {
+				depth--;
+			}
+			item.add(token);
+		}
+		return -1;
+	}
+
+	private Map<String, String> whereValues(int index) {
+		if (index < 0) {
+			return null;
+		}
+		Map<String, String> result = new LinkedHashMap<>();
+		int i = index + 1;
+		while (true) {
+			if (!isName(i) || !"=".equals(token(i + 1))) {
+				return null;
+			}
+			String column = name(tokens.get(i));
+			List<String> value = new ArrayList<>();
+			i += 2;
+			while (i < tokens.size() && !keyword(i).equals("AND") && !keyword(i).equals("IF")) {
+				value.add(tokens.get(i++));
+			}
+			result.put(column, literal(value));
+			if (!keyword(i).equals("AND")) {
+				return result;
+			}
+			i++;
+		}
+	}
+
+	private int indexOf(String keyword, int from) {
+		for (int i = Math.max(0, from); i < tokens.size(); i++) {
+			if (keyword(i).equals(keyword)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private String token(int index) {
+		return index < tokens.size() ? tokens.get(index) : "";
+	}
+
+	private boolean isName(int index) {
+		String token = token(index);
+		return !token.isEmpty() && (token.charAt(0) == '"' || Character.isLetter(token.charAt(0)));
+	}
+
+	// unquoted names are case insensitive, quoted ones are taken as written
+	private static String name(String token) {
+		if (token.startsWith("\"")) {
+			return token.substring(1, token.length() - 1).replace("\"\"", "\"");
+		}
+		return token.toLowerCase(Locale.ROOT);
+	}
+
+	// constants, including signed numbers and uuids split by the tokenizer; null for anything computed
+	private static String literal(List<String> value) {
+		if (value.isEmpty()) {
+			return null;
+		}
+		StringBuilder literal = new StringBuilder();
+		for (String token : value) {
+			char first = token.charAt(0);
+			if (!(Character.isLetterOrDigit(first) || first == '\'' || first == '-' || first == '+' || first == '.' || first == '_')) {
+				return null;
+			}
+			literal.append(token);
+		}
+		return literal.toString();
+	}
+
+	private static Kind kindOf(String keyword) {
+		switch (keyword) {
+			case "CREATE":
+			case "ALTER":
+			case "DROP":
+				return Kind.DDL;
+			case "INSERT":
+			case "UPDATE":
+			case "DELETE":
+			case "BEGIN":
+				return Kind.DML;
+			default:
+				return Kind.OTHER;
+		}
+	}
+
+	/**
+	 * Splits a statement into words, literals and single character symbols. String literals, quoted identifiers and
+	 * dollar quoted bodies are kept whole, with their quotes.
+	 */
+	static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<>();
+		int i = 0;
+		int length = text.length();
+		while (i < length) {
+			char c = text.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (Character.isLetterOrDigit(c) || c == '_') {
+				int start = i;
+				while (i < length && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_')) {
+					i++;
+				}
+				tokens.add(text.substring(start, i));
+			} else if (c == '\'' || c == '"') {
+				int start = i++;
+				while (i < length) {
+					if (text.charAt(i) == c) {
+						if (i + 1 < length && text.charAt(i + 1) == c) {
+							i += 2;
+							continue;
+						}
+						i++;
+						break;
+					}
+					i++;
+				}
+				tokens.add(text.substring(start, i));
+			} else if (c == '$' && i + 1 < length && text.charAt(i + 1) == '$') {
+				int end = text.indexOf("$$", i + 2);
+				end = end < 0 ? length : end + 2;
+				tokens.add(text.substring(i, end));
+				i = end;
+			} else {
+				tokens.add(String.valueOf(c));
+				i++;
+			}
+		}
+		return tokens;
+	}
+}
@@ -0,0 +1,167 @@
+package smartthings.cassandra;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.util.Locale;
+
+/**
+ * Reads CQL statements one at a time from a stream of text. Semicolons only end a statement when they are
+ * outside of string literals, quoted identifiers, dollar quoted bodies, comments and BEGIN ... APPLY BATCH
+ * blocks. Comments are dropped and statements are returned trimmed, without their terminating semicolon.
+ */
+public class CqlStatementReader implements Closeable {
+	private static final int EOF = -1;
+
+	private final PushbackReader reader;
+
+	public CqlStatementReader(Reader reader) {
+		this.reader = new PushbackReader(reader, 1);
+	}
+
+	/**
+	 * @return the next non empty statement, or null at the end of the stream
+	 */
+	public String next() throws IOException {
+		StringBuilder statement = new StringBuilder();
+		StringBuilder word = new StringBuilder();
+		String firstWord = null;
+		String previousWord = null;
+		boolean inBatch = false;
+
+		int c;
+		while ((c = reader.read()) != EOF) {
+			if (Character.isLetterOrDigit(c) || c == '_') {
+				word.append((char) c);
+				statement.append((char) c);
+				continue;
+			}
+
+			if (word.length() > 0) {
+				String current = word.toString().toUpperCase(Locale.ROOT);
+				word.setLength(0);
+				if (firstWord == null) {
+					firstWord = current;
+					inBatch = firstWord.equals("BEGIN");
+				} else if (inBatch && current.equals("BATCH") && "APPLY".equals(previousWord)) {
+					inBatch = false;
+				}
+				previousWord = current;
+			}
+
+			switch (c) {
+				case '\'':
+				case '"':
+					statement.append((char) c);
+					readQuoted((char) c, statement);
+					break;
+				case '$':
+					if (peek() == '$') {
+						reader.read();
+						statement.append("$$");
+						readDollarQuoted(statement);
+					} else {
+						statement.append((char) c);
+					}
+					break;
+				case '-':
+					if (peek() == '-') {
+						skipLine(statement);
+					} else {
+						statement.append((char) c);
+					}
+					break;
+				case '/':
+					int next = peek();
+					if (next == '/') {
+						skipLine(statement);
+					} else if (next == '*') {
+						reader.read();
+						skipBlockComment(statement);
+					} else {
+						statement.append((char) c);
+					}
+					break;
+				case ';':
+					if (inBatch) {
+						statement.append((char) c);
+						break;
+					}
+					String trimmed = statement.toString().trim();
+					if (!trimmed.isEmpty()) {
+						return trimmed;
+					}
+					statement.setLength(0);
+					firstWord = null;
+					previousWord = null;
+					break;
+				default:
+					statement.append((char) c);
+			}
+		}
+
+		String trimmed = statement.toString().trim();
+		return trimmed.isEmpty() ? null : trimmed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private int peek() throws IOException {
+		int c = reader.read();
+		if (c != EOF) {
+			reader.unread(c);
+		}
+		return c;
+	}
+
+	// quotes inside literals and quoted identifiers are escaped by doubling them
+	private void readQuoted(char quote, StringBuilder statement) throws IOException {
+		int c;
+		while ((c = reader.read()) != EOF) {
+			statement.append((char) c);
+			if (c == quote) {
+				if (peek() == quote) {
+					statement.append((char) reader.read());
+				} else {
+					return;
+				}
+			}
+		}
+	}
+
+	private void readDollarQuoted(StringBuilder statement) throws IOException {
+		int c;
+		while ((c = reader.read()) != EOF) {
+			statement.append((char) c);
+			if (c == '$' && peek() == '$') {
+				statement.append((char) reader.read());
+				return;
+			}
+		}
+	}
+
+	private void skipLine(StringBuilder statement) throws IOException {
+		int c;
+		while ((c = reader.read()) != EOF) {
+			if (c == '\n') {
+				statement.append('\n');
+				return;
+			}
+		}
+	}
+
+	private void skipBlockComment(StringBuilder statement) throws IOException {
+		int c;
+		while ((c = reader.read()) != EOF) {
+			if (c == '*' && peek() == '/') {
+				reader.read();
+				break;
+			}
+		}
+		statement.append(' ');
+	}
+}
@@ -0,0 +1,146 @@
+package smartthings.cassandra;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.google.common.base.Charsets;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Groups consecutive writes to the same partition of the same table into unlogged batches. A single partition
+ * batch is applied atomically by one replica set, so it costs one round trip instead of one per statement.
+ *
+ * Every statement in a batch gets the same write timestamp, so a batch never holds two writes to the same row;
+ * the second one starts a new batch and keeps its place in file order. Statements whose partition and row
+ * can't be read from literals, conditional statements and writes to counter tables are never batched.
+ */
+public class DmlBatcher {
+
+	/**
+	 * Looks up the primary key of a table, returning null when the table is unknown or can't be batched.
+	 */
+	public interface KeyResolver {
+		TableKey resolve(String keyspace, String table);
+	}
+
+	/**
+	 * Receives each statement or batch as it is completed, with the ordinal of its first statement.
+	 */
+	public interface Sink {
+		void send(int ordinal, Statement statement);
+	}
+
+	public static class TableKey {
+		private final List<String> partitionKey;
+		private final List<String> clusteringColumns;
+
+		public TableKey(List<String> partitionKey, List<String> clusteringColumns) {
+			this.partitionKey = partitionKey;
+			this.clusteringColumns = clusteringColumns;
+		}
+
+		public List<String> getPartitionKey() {
+			return partitionKey;
+		}
+
+		public List<String> getClusteringColumns() {
+			return clusteringColumns;
+		}
+	}
+
+	private final KeyResolver keyResolver;
+	private final Sink sink;
+	private final int maxStatements;
+	private final int maxBytes;
+
+	private final List<String> statements = new ArrayList<>();
+	private final Set<List<String>> rows = new HashSet<>();
+	private String keyspace;
+	private String table;
+	private List<String> partition;
+	private int firstOrdinal;
+	private int bytes;
+
+	public DmlBatcher(KeyResolver keyResolver, Sink sink, int maxStatements, int maxBytes) {
+		this.keyResolver = keyResolver;
+		this.sink = sink;
+		this.maxStatements = Math.max(1, maxStatements);
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Queues a statement. When it can't be batched, everything queued so far is flushed and false is returned so
+	 * the caller can run the statement itself.
+	 */
+	public boolean add(int ordinal, CqlStatement statement) {
+		Map<String, String> values = statement.isPipelineable() ? statement.getColumnValues() : null;
+		TableKey key = values == null ? null : keyResolver.resolve(statement.getKeyspace(), statement.getTable());
+		List<String> partitionValues = key == null ? null : valuesOf(key.getPartitionKey(), values);
+		List<String> clusteringValues = key == null ? null : valuesOf(key.getClusteringColumns(), values);
+		if (partitionValues == null || clusteringValues == null) {
+			flush();
+			return false;
+		}
+
+		int size = statement.getText().getBytes(Charsets.UTF_8).length;
+		if (!statements.isEmpty() && (!Objects.equals(keyspace, statement.getKeyspace())
+				|| !table.equals(statement.getTable())
+				|| !partition.equals(partitionValues)
+				|| rows.contains(clusteringValues)
+				|| statements.size() >= maxStatements
+				|| bytes + size > maxBytes)) {
+			flush();
+		}
+		if (statements.isEmpty()) {
+			keyspace = statement.getKeyspace();
+			table = statement.getTable();
+			partition = partitionValues;
+			firstOrdinal = ordinal;
+		}
+		statements.add(statement.getText());
+		rows.add(clusteringValues);
+		bytes += size;
+		return true;
+	}
+
+	/**
+	 * Sends whatever is queued.
+	 */
+	public void flush() {
+		if (statements.isEmpty()) {
+			return;
+		}
+		Statement statement;
+		if (statements.size() == 1) {
+			statement = new SimpleStatement(statements.get(0) + ";");
+		} else {
+			BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+			for (String text : statements) {
+				batch.add(new SimpleStatement(text));
+			}
+			statement = batch;
+		}
+		statements.clear();
+		rows.clear();
+		bytes = 0;
+		sink.send(firstOrdinal, statement);
+	}
+
+	private static List<String> valuesOf(List<String> columns, Map<String, String> values) {
+		List<String> result = new ArrayList<>(columns.size());
+		for (String column : columns) {
+			String value = values.get(column);
+			if (value == null) {
+				return null;
+			}
+			result.add(value);
+		}
+		return result;
+	}
+}
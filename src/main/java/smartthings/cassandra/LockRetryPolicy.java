@@ -0,0 +1,61 @@
+package smartthings.cassandra;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long to sleep between attempts to take the migration lock: exponential backoff with jitter,
+ * optionally sleeping until the holder's lock expires, bounded by an overall wait timeout.
+ */
+public class LockRetryPolicy {
+	private final long initialDelayMillis;
+	private final long maxDelayMillis;
+	private final long timeoutMillis;
+	private final boolean waitForExpiry;
+
+	/**
+	 * @param timeoutSeconds how long to wait for the lock in total, 0 to wait forever
+	 * @param waitForExpiry sleep until the current holder's lock ttl runs out instead of backing off
+	 */
+	public LockRetryPolicy(long initialDelayMillis, long maxDelayMillis, int timeoutSeconds, boolean waitForExpiry) {
+		this.initialDelayMillis = Math.max(1, initialDelayMillis);
+		this.maxDelayMillis = Math.max(this.initialDelayMillis, maxDelayMillis);
+		this.timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+		this.waitForExpiry = waitForExpiry;
+	}
+
+	/**
+	 * Backoff for the given attempt, starting at 0. Half of the delay is fixed and half is random so
+	 * waiters that started together spread out.
+	 */
+	public long backoff(int attempt) {
+		long ceiling = initialDelayMillis << Math.min(attempt, 30);
+		if (ceiling <= 0 || ceiling > maxDelayMillis) {
+			ceiling = maxDelayMillis;
+		}
+		long half = ceiling / 2;
+		return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+	}
+
+	/**
+	 * Delay until a lock with the given remaining ttl expires, plus a little jitter.
+	 */
+	public long untilExpiry(int ttlSeconds) {
+		return TimeUnit.SECONDS.toMillis(Math.max(0, ttlSeconds)) + ThreadLocalRandom.current().nextLong(initialDelayMillis + 1);
+	}
+
+	/**
+	 * @return the deadline in milliseconds for a wait started at {@code startMillis}, or Long.MAX_VALUE
+	 */
+	public long deadline(long startMillis) {
+		return timeoutMillis > 0 ? startMillis + timeoutMillis : Long.MAX_VALUE;
+	}
+
+	public boolean isWaitForExpiry() {
+		return waitForExpiry;
+	}
+
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+}
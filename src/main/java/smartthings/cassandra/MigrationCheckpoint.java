@@ -0,0 +1,72 @@
+package smartthings.cassandra;
+
+import com.google.common.io.BaseEncoding;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Progress through a migration that failed partway: the number of statements known to have been applied and a
+ * digest of their text. A retry skips that many statements only if the file still starts with the same ones.
+ */
+public class MigrationCheckpoint {
+	private final String sha;
+	private final int ordinal;
+	private final String digest;
+
+	public MigrationCheckpoint(String sha, int ordinal, String digest) {
+		this.sha = sha;
+		this.ordinal = ordinal;
+		this.digest = digest;
+	}
+
+	/**
+	 * Digest of the whole migration when the checkpoint was written.
+	 */
+	public String getSha() {
+		return sha;
+	}
+
+	public int getOrdinal() {
+		return ordinal;
+	}
+
+	public String getDigest() {
+		return digest;
+	}
+
+	/**
+	 * Running SHA-256 of the statements read so far, which can be taken at any point without stopping.
+	 */
+	static class Prefix {
+		private final MessageDigest digest;
+		private int statements;
+
+		Prefix() {
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void add(String statement) {
+			digest.update(statement.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) ';');
+			statements++;
+		}
+
+		int getStatements() {
+			return statements;
+		}
+
+		String current() {
+			try {
+				return BaseEncoding.base16().lowerCase().encode(((MessageDigest) digest.clone()).digest());
+			} catch (CloneNotSupportedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
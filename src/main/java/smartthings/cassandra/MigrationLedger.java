@@ -0,0 +1,47 @@
+package smartthings.cassandra;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In memory snapshot of the migrations table, keyed by migration name.
+ */
+public class MigrationLedger {
+	private final Map<String, String> shas = new ConcurrentHashMap<>();
+	private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+	public String getSha(String name) {
+		return shas.get(name);
+	}
+
+	public boolean contains(String name) {
+		return shas.containsKey(name);
+	}
+
+	/**
+	 * Whether the migration was marked by a run that hasn't finished its statements, or never did.
+	 */
+	public boolean isPending(String name) {
+		return pending.contains(name);
+	}
+
+	public void put(String name, String sha) {
+		shas.put(name, sha);
+		pending.remove(name);
+	}
+
+	public void putPending(String name, String sha) {
+		shas.put(name, sha);
+		pending.add(name);
+	}
+
+	public void remove(String name) {
+		shas.remove(name);
+		pending.remove(name);
+	}
+
+	public int size() {
+		return shas.size();
+	}
+}
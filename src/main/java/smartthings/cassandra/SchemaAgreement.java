@@ -0,0 +1,160 @@
+package smartthings.cassandra;
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smartthings.migration.CassandraMigrationException;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for the nodes that matter to a migration to report the same schema version. Polls with a growing delay,
+ * optionally looking only at some data centers, either configured or those the keyspace is replicated to. Nodes
+ * the driver considers down are ignored, as the driver's own check does.
+ */
+public class SchemaAgreement {
+	private static final Logger logger = LoggerFactory.getLogger(SchemaAgreement.class);
+
+	private static final long INITIAL_DELAY_MILLIS = 50;
+	private static final long MAX_DELAY_MILLIS = 2000;
+
+	private static final String SELECT_LOCAL = "SELECT data_center, schema_version FROM system.local WHERE key = 'local'";
+	private static final String SELECT_PEERS = "SELECT data_center, rpc_address, schema_version FROM system.peers";
+
+	private final Session session;
+	private final String keyspace;
+	private final long timeoutMillis;
+	private final Set<String> dataCenters;
+	private final boolean keyspaceScope;
+
+	private int waits;
+	private long totalWaitMillis;
+
+	public SchemaAgreement(Session session, String keyspace, int timeoutSeconds, Set<String> dataCenters, boolean keyspaceScope) {
+		this.session = session;
+		this.keyspace = keyspace;
+		this.timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+		this.dataCenters = dataCenters == null ? Collections.emptySet() : dataCenters;
+		this.keyspaceScope = keyspaceScope;
+	}
+
+	/**
+	 * Blocks until the schema is in agreement, throwing once the timeout has passed.
+	 *
+	 * @param reason what the wait is for, used in the log
+	 * @return milliseconds spent waiting
+	 */
+	public long await(String reason) throws CassandraMigrationException {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		long delay = INITIAL_DELAY_MILLIS;
+		int checks = 0;
+		while (true) {
+			checks++;
+			if (isInAgreement()) {
+				long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				record(elapsed);
+				logger.info("Schema agreement for {} reached in {} ms after {} checks", reason, elapsed, checks);
+				return elapsed;
+			}
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (remaining <= 0) {
+				record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+				throw new CassandraMigrationException("Schema is not in agreement for " + reason + " after " + timeoutMillis + " ms.");
+			}
+			try {
+				Thread.sleep(Math.min(delay, remaining));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CassandraMigrationException("Interrupted waiting for schema agreement for " + reason, e);
+			}
+			delay = Math.min(delay * 2, MAX_DELAY_MILLIS);
+		}
+	}
+
+	/**
+	 * Checks once whether every live node in scope reports the same schema version. The driver's control connection
+	 * reads system.local and system.peers from a single node, so when it sees the whole cluster agree that settles it.
+	 * Otherwise, with a data center scope, the versions are read here, and the node answering system.peers, which
+	 * leaves itself out, only counts as agreeing once system.local has been answered by that same node.
+	 */
+	public boolean isInAgreement() {
+		Metadata metadata = session.getCluster().getMetadata();
+		if (metadata.checkSchemaAgreement()) {
+			return true;
+		}
+		Set<String> scope = dataCenters();
+		if (scope.isEmpty()) {
+			return false;
+		}
+		Map<InetAddress, Boolean> up = new HashMap<>();
+		for (Host host : metadata.getAllHosts()) {
+			up.put(host.getAddress(), host.isUp());
+		}
+
+		ResultSet peers = session.execute(SELECT_PEERS);
+		Host coordinator = peers.getExecutionInfo().getQueriedHost();
+		Set<UUID> versions = new HashSet<>();
+		for (Row peer : peers) {
+			InetAddress address = peer.getInet("rpc_address");
+			if (address != null && up.getOrDefault(address, true) && inScope(peer, scope)) {
+				versions.add(peer.getUUID("schema_version"));
+			}
+		}
+
+		if (coordinator == null || scope.contains(coordinator.getDatacenter())) {
+			ResultSet local = session.execute(SELECT_LOCAL);
+			if (coordinator == null || !coordinator.equals(local.getExecutionInfo().getQueriedHost())) {
+				logger.debug("Could not read the schema version of {}, checking again", coordinator);
+				return false;
+			}
+			Row row = local.one();
+			if (row != null && inScope(row, scope)) {
+				versions.add(row.getUUID("schema_version"));
+			}
+		}
+		return versions.size() <= 1;
+	}
+
+	public synchronized int getWaits() {
+		return waits;
+	}
+
+	public synchronized long getTotalWaitMillis() {
+		return totalWaitMillis;
+	}
+
+	private synchronized void record(long elapsed) {
+		waits++;
+		totalWaitMillis += elapsed;
+	}
+
+	private static boolean inScope(Row row, Set<String> scope) {
+		return row.getUUID("schema_version") != null && (scope.isEmpty() || scope.contains(row.getString("data_center")));
+	}
+
+	private Set<String> dataCenters() {
+		if (!dataCenters.isEmpty() || !keyspaceScope || keyspace == null) {
+			return dataCenters;
+		}
+		KeyspaceMetadata metadata = session.getCluster().getMetadata().getKeyspace(Metadata.quote(keyspace));
+		if (metadata == null || !metadata.getReplication().getOrDefault("class", "").endsWith("NetworkTopologyStrategy")) {
+			return dataCenters;
+		}
+		Set<String> replicated = new HashSet<>(metadata.getReplication().keySet());
+		replicated.remove("class");
+		return replicated;
+	}
+}
@@ -0,0 +1,162 @@
+package smartthings.cassandra;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.SchemaChangeListenerBase;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.VersionNumber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers keyspace and table existence from the driver's schema metadata, which the driver keeps current from
+ * schema change events, so checks don't cost a round trip. When the session was built with metadata disabled,
+ * falls back to the system schema tables of the oldest node's Cassandra version and remembers the tables it
+ * found until a schema change event removes them.
+ */
+public class SchemaMetadata implements AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(SchemaMetadata.class);
+
+	private final Session session;
+	private final Cluster cluster;
+	private final Set<String> knownTables = ConcurrentHashMap.newKeySet();
+	private final Listener listener = new Listener();
+
+	public SchemaMetadata(Session session) {
+		this.session = session;
+		this.cluster = session.getCluster();
+		cluster.register(listener);
+	}
+
+	public boolean keyspaceExists(String keyspace) {
+		if (isMetadataEnabled()) {
+			return cluster.getMetadata().getKeyspace(keyspace) != null;
+		}
+		String query = isSchemaTableLayout()
+				? "SELECT keyspace_name FROM system_schema.keyspaces WHERE keyspace_name = ?"
+				: "SELECT keyspace_name FROM system.schema_keyspaces WHERE keyspace_name = ?";
+		return session.execute(query, identifier(keyspace)).one() != null;
+	}
+
+	public boolean tableExists(String keyspace, String table) {
+		if (isMetadataEnabled()) {
+			KeyspaceMetadata keyspaceMetadata = cluster.getMetadata().getKeyspace(keyspace);
+			return keyspaceMetadata != null && keyspaceMetadata.getTable(table) != null;
+		}
+
+		String key = key(identifier(keyspace), identifier(table));
+		if (knownTables.contains(key)) {
+			return true;
+		}
+		logger.debug("Checking for {} table in the system schema", table);
+		ResultSet rs = isSchemaTableLayout()
+				? session.execute("SELECT table_name FROM system_schema.tables WHERE keyspace_name = ? AND table_name = ?",
+						identifier(keyspace), identifier(table))
+				: session.execute("SELECT columnfamily_name FROM system.schema_columnfamilies WHERE keyspace_name = ? AND columnfamily_name = ?",
+						identifier(keyspace), identifier(table));
+		boolean exists = rs.one() != null;
+		if (exists) {
+			knownTables.add(key);
+		}
+		return exists;
+	}
+
+	/**
+	 * Columns can be added at any time, so unlike tables they aren't remembered when read from the system schema.
+	 */
+	public boolean columnExists(String keyspace, String table, String column) {
+		if (isMetadataEnabled()) {
+			KeyspaceMetadata keyspaceMetadata = cluster.getMetadata().getKeyspace(keyspace);
+			TableMetadata tableMetadata = keyspaceMetadata != null ? keyspaceMetadata.getTable(table) : null;
+			return tableMetadata != null && tableMetadata.getColumn(column) != null;
+		}
+		ResultSet rs = isSchemaTableLayout()
+				? session.execute("SELECT column_name FROM system_schema.columns WHERE keyspace_name = ? AND table_name = ? AND column_name = ?",
+						identifier(keyspace), identifier(table), identifier(column))
+				: session.execute("SELECT column_name FROM system.schema_columns WHERE keyspace_name = ? AND columnfamily_name = ? AND column_name = ?",
+						identifier(keyspace), identifier(table), identifier(column));
+		return rs.one() != null;
+	}
+
+	/**
+	 * Names of the tables in the keyspace, lower case unless they were created quoted.
+	 */
+	public Set<String> tableNames(String keyspace) {
+		Set<String> names = new HashSet<>();
+		if (isMetadataEnabled()) {
+			KeyspaceMetadata keyspaceMetadata = cluster.getMetadata().getKeyspace(keyspace);
+			if (keyspaceMetadata != null) {
+				for (TableMetadata table : keyspaceMetadata.getTables()) {
+					names.add(table.getName());
+				}
+			}
+			return names;
+		}
+		ResultSet rs = isSchemaTableLayout()
+				? session.execute("SELECT table_name FROM system_schema.tables WHERE keyspace_name = ?", identifier(keyspace))
+				: session.execute("SELECT columnfamily_name FROM system.schema_columnfamilies WHERE keyspace_name = ?", identifier(keyspace));
+		for (Row row : rs) {
+			names.add(row.getString(0));
+		}
+		return names;
+	}
+
+	@Override
+	public void close() {
+		cluster.unregister(listener);
+	}
+
+	private boolean isMetadataEnabled() {
+		return cluster.getConfiguration().getQueryOptions().isMetadataEnabled();
+	}
+
+	// the schema tables moved to the system_schema keyspace in 3.0
+	private boolean isSchemaTableLayout() {
+		int major = Integer.MAX_VALUE;
+		for (Host host : cluster.getMetadata().getAllHosts()) {
+			VersionNumber version = host.getCassandraVersion();
+			if (version != null) {
+				major = Math.min(major, version.getMajor());
+			}
+		}
+		return major >= 3;
+	}
+
+	// unquoted identifiers are case insensitive, quoted ones are taken as written
+	private static String identifier(String name) {
+		if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\"")) {
+			return name.substring(1, name.length() - 1).replace("\"\"", "\"");
+		}
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	private static String key(String keyspace, String table) {
+		return keyspace + "." + table;
+	}
+
+	private class Listener extends SchemaChangeListenerBase {
+		@Override
+		public void onTableAdded(TableMetadata table) {
+			knownTables.add(key(table.getKeyspace().getName(), table.getName()));
+		}
+
+		@Override
+		public void onTableRemoved(TableMetadata table) {
+			knownTables.remove(key(table.getKeyspace().getName(), table.getName()));
+		}
+
+		@Override
+		public void onKeyspaceRemoved(KeyspaceMetadata keyspace) {
+			knownTables.removeIf(key -> key.startsWith(keyspace.getName() + "."));
+		}
+	}
+}
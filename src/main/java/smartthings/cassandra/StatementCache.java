@@ -0,0 +1,78 @@
+package smartthings.cassandra;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Bounded cache of prepared statements keyed by keyspace and query text.
+ */
+public class StatementCache {
+	private static final Logger logger = LoggerFactory.getLogger(StatementCache.class);
+
+	private final Cache<Key, PreparedStatement> statements;
+
+	public StatementCache(long maximumSize) {
+		statements = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.recordStats()
+				.removalListener((RemovalNotification<Key, PreparedStatement> notification) ->
+						logger.debug("Evicted prepared statement {}", notification.getKey()))
+				.build();
+	}
+
+	public PreparedStatement prepare(Session session, String keyspace, String query) {
+		try {
+			return statements.get(new Key(keyspace, query), () -> session.prepare(query));
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+	public long size() {
+		return statements.size();
+	}
+
+	public CacheStats stats() {
+		return statements.stats();
+	}
+
+	private static class Key {
+		private final String keyspace;
+		private final String query;
+
+		Key(String keyspace, String query) {
+			this.keyspace = keyspace;
+			this.query = query;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return Objects.equal(keyspace, other.keyspace) && query.equals(other.query);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(keyspace, query);
+		}
+
+		@Override
+		public String toString() {
+			return keyspace + ": " + query;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package smartthings.cassandra;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smartthings.metrics.MigrationMetrics;
+import smartthings.migration.CassandraMigrationException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Executes statements asynchronously with a bounded number of requests in flight. Submitting blocks while the
+ * pipeline is full, and failures are collected by statement ordinal so they can be reported in file order.
+ */
+public class StatementPipeline {
+	private static final Logger logger = LoggerFactory.getLogger(StatementPipeline.class);
+
+	private final Session session;
+	private final int maxInFlight;
+	private final Semaphore inFlight;
+	private final MigrationMetrics metrics;
+	private final String migration;
+	private final ConcurrentSkipListMap<Integer, Throwable> failures = new ConcurrentSkipListMap<>();
+
+	public StatementPipeline(Session session, int maxInFlight) {
+		this(session, maxInFlight, MigrationMetrics.NOOP, null);
+	}
+
+	/**
+	 * @param migration name statements are reported to the metrics under
+	 */
+	public StatementPipeline(Session session, int maxInFlight, MigrationMetrics metrics, String migration) {
+		this.session = session;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.inFlight = new Semaphore(this.maxInFlight);
+		this.metrics = metrics;
+		this.migration = migration;
+	}
+
+	/**
+	 * @param ordinal position of the statement in its migration, used to order failures
+	 */
+	public void submit(int ordinal, Statement statement) {
+		if (!failures.isEmpty()) {
+			drain();
+		}
+		inFlight.acquireUninterruptibly();
+		long start = System.nanoTime();
+		ResultSetFuture future;
+		try {
+			future = session.executeAsync(statement);
+		} catch (RuntimeException e) {
+			inFlight.release();
+			failures.put(ordinal, e);
+			throw failure();
+		}
+		future.addListener(() -> {
+			ResultSet rs;
+			try {
+				rs = future.getUninterruptibly();
+			} catch (Throwable t) {
+				failures.put(ordinal, t);
+				metrics.statementExecuted(migration, ordinal, System.nanoTime() - start, false, CassandraConnection.coordinator(t));
+				inFlight.release();
+				return;
+			}
+			try {
+				metrics.statementExecuted(migration, ordinal, System.nanoTime() - start, true,
+						metrics == MigrationMetrics.NOOP ? null : CassandraConnection.coordinator(rs.getExecutionInfo()));
+			} finally {
+				inFlight.release();
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	/**
+	 * Waits for every submitted statement to complete and throws if any of them failed.
+	 */
+	public void drain() {
+		await();
+		if (!failures.isEmpty()) {
+			throw failure();
+		}
+	}
+
+	/**
+	 * Waits for every submitted statement to complete, ignoring failures.
+	 */
+	public void await() {
+		inFlight.acquireUninterruptibly(maxInFlight);
+		inFlight.release(maxInFlight);
+	}
+
+	private CassandraMigrationException failure() {
+		for (Map.Entry<Integer, Throwable> failure : failures.entrySet()) {
+			logger.error("Statement #" + failure.getKey() + " failed: " + failure.getValue().getMessage());
+		}
+		Map.Entry<Integer, Throwable> first = failures.firstEntry();
+		Throwable cause = first.getValue();
+		return new CassandraMigrationException(failures.size() + " statements failed, first at statement #" + first.getKey() + ": " + cause.getMessage(),
+				cause instanceof Exception ? (Exception) cause : new RuntimeException(cause));
+	}
+}
@@ -0,0 +1,119 @@
+package smartthings.metrics;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Passes every call on to each of several listeners, in order.
+ */
+public class CompositeMigrationMetrics implements MigrationMetrics {
+	private final List<MigrationMetrics> listeners = new ArrayList<>();
+
+	public CompositeMigrationMetrics(MigrationMetrics... listeners) {
+		for (MigrationMetrics listener : Arrays.asList(listeners)) {
+			if (listener != null && listener != NOOP) {
+				this.listeners.add(listener);
+			}
+		}
+	}
+
+	@Override
+	public void runStarted(String keyspace, int migrations) {
+		for (MigrationMetrics listener : listeners) {
+			listener.runStarted(keyspace, migrations);
+		}
+	}
+
+	@Override
+	public void phaseCompleted(String phase, long nanos) {
+		for (MigrationMetrics listener : listeners) {
+			listener.phaseCompleted(phase, nanos);
+		}
+	}
+
+	@Override
+	public void migrationLoaded(String name, long loadNanos, long hashNanos) {
+		for (MigrationMetrics listener : listeners) {
+			listener.migrationLoaded(name, loadNanos, hashNanos);
+		}
+	}
+
+	@Override
+	public void runFinished(String keyspace, long nanos, Exception failure) {
+		for (MigrationMetrics listener : listeners) {
+			listener.runFinished(keyspace, nanos, failure);
+		}
+	}
+
+	@Override
+	public void lockAcquisition(long nanos, int attempts, boolean acquired) {
+		for (MigrationMetrics listener : listeners) {
+			listener.lockAcquisition(nanos, attempts, acquired);
+		}
+	}
+
+	@Override
+	public void lockRenewal(long nanos, boolean renewed) {
+		for (MigrationMetrics listener : listeners) {
+			listener.lockRenewal(nanos, renewed);
+		}
+	}
+
+	@Override
+	public void statementExecuted(String migration, int ordinal, long nanos, boolean succeeded, InetAddress coordinator) {
+		for (MigrationMetrics listener : listeners) {
+			listener.statementExecuted(migration, ordinal, nanos, succeeded, coordinator);
+		}
+	}
+
+	@Override
+	public void schemaAgreementWait(String reason, long nanos, boolean reached) {
+		for (MigrationMetrics listener : listeners) {
+			listener.schemaAgreementWait(reason, nanos, reached);
+		}
+	}
+
+	@Override
+	public void ledgerRead(long nanos, int rows) {
+		for (MigrationMetrics listener : listeners) {
+			listener.ledgerRead(nanos, rows);
+		}
+	}
+
+	@Override
+	public void ledgerWrite(long nanos) {
+		for (MigrationMetrics listener : listeners) {
+			listener.ledgerWrite(nanos);
+		}
+	}
+
+	@Override
+	public void ledgerCheck(String name, long nanos) {
+		for (MigrationMetrics listener : listeners) {
+			listener.ledgerCheck(name, nanos);
+		}
+	}
+
+	@Override
+	public void migrationSkipped(String name) {
+		for (MigrationMetrics listener : listeners) {
+			listener.migrationSkipped(name);
+		}
+	}
+
+	@Override
+	public void migrationApplied(String name, long nanos) {
+		for (MigrationMetrics listener : listeners) {
+			listener.migrationApplied(name, nanos);
+		}
+	}
+
+	@Override
+	public void migrationFailed(String name, long nanos, Exception cause) {
+		for (MigrationMetrics listener : listeners) {
+			listener.migrationFailed(name, nanos, cause);
+		}
+	}
+}
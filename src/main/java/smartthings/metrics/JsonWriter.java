@@ -0,0 +1,132 @@
+package smartthings.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+
+/**
+ * Just enough of a streaming JSON writer for the run report, which shouldn't pull in a JSON library.
+ */
+class JsonWriter {
+	private final Writer out;
+	// whether the object or array being written already has a member, so the next one needs a comma
+	private final Deque<Boolean> scopes = new ArrayDeque<>();
+	private boolean afterName;
+
+	JsonWriter(Writer out) {
+		this.out = out;
+	}
+
+	JsonWriter beginObject() throws IOException {
+		separate();
+		out.write('{');
+		scopes.push(false);
+		return this;
+	}
+
+	JsonWriter endObject() throws IOException {
+		scopes.pop();
+		out.write('}');
+		return this;
+	}
+
+	JsonWriter beginArray() throws IOException {
+		separate();
+		out.write('[');
+		scopes.push(false);
+		return this;
+	}
+
+	JsonWriter endArray() throws IOException {
+		scopes.pop();
+		out.write(']');
+		return this;
+	}
+
+	JsonWriter name(String name) throws IOException {
+		separate();
+		string(name);
+		out.write(':');
+		afterName = true;
+		return this;
+	}
+
+	JsonWriter value(String value) throws IOException {
+		separate();
+		if (value == null) {
+			out.write("null");
+		} else {
+			string(value);
+		}
+		return this;
+	}
+
+	JsonWriter value(long value) throws IOException {
+		separate();
+		out.write(Long.toString(value));
+		return this;
+	}
+
+	JsonWriter value(boolean value) throws IOException {
+		separate();
+		out.write(Boolean.toString(value));
+		return this;
+	}
+
+	/**
+	 * Writes a duration in milliseconds, to the microsecond.
+	 */
+	JsonWriter millis(long nanos) throws IOException {
+		separate();
+		out.write(String.format(Locale.ROOT, "%.3f", nanos / 1e6));
+		return this;
+	}
+
+	private void separate() throws IOException {
+		if (afterName) {
+			afterName = false;
+			return;
+		}
+		if (!scopes.isEmpty()) {
+			if (scopes.peek()) {
+				out.write(',');
+			} else {
+				scopes.pop();
+				scopes.push(true);
+			}
+		}
+	}
+
+	private void string(String value) throws IOException {
+		out.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"':
+					out.write("\\\"");
+					break;
+				case '\\':
+					out.write("\\\\");
+					break;
+				case '\n':
+					out.write("\\n");
+					break;
+				case '\r':
+					out.write("\\r");
+					break;
+				case '\t':
+					out.write("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						out.write(String.format(Locale.ROOT, "\\u%04x", (int) c));
+					} else {
+						out.write(c);
+					}
+			}
+		}
+		out.write('"');
+	}
+}
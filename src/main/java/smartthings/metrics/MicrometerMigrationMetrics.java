@@ -0,0 +1,144 @@
+package smartthings.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records migration metrics in a Micrometer registry. Micrometer is not a dependency of this library, applications
+ * using this class provide it.
+ *
+ * Timers: migration.run, migration.lock.acquire, migration.lock.renew, migration.statement,
+ * migration.schema.agreement, migration.ledger.read, migration.ledger.write and migration.file, each with an
+ * outcome tag, and migration.phase tagged by phase. migration.lock.attempts and migration.ledger.rows are
+ * distribution summaries and migration.files counts migrations by outcome.
+ */
+public class MicrometerMigrationMetrics implements MigrationMetrics {
+	private final MeterRegistry registry;
+	private final Tags tags;
+
+	private final Timer lockAcquired;
+	private final Timer lockNotAcquired;
+	private final DistributionSummary lockAttempts;
+	private final Timer lockRenewed;
+	private final Timer lockRenewalRejected;
+	private final Timer statementSucceeded;
+	private final Timer statementFailed;
+	private final Timer schemaAgreementReached;
+	private final Timer schemaAgreementTimedOut;
+	private final Timer ledgerRead;
+	private final DistributionSummary ledgerRows;
+	private final Timer ledgerWrite;
+	private final Counter filesSkipped;
+	private final Counter filesApplied;
+	private final Counter filesFailed;
+	private final Timer fileApplied;
+	private final Timer fileFailed;
+
+	public MicrometerMigrationMetrics(MeterRegistry registry) {
+		this(registry, Tags.empty());
+	}
+
+	/**
+	 * @param tags added to every meter, for example the application or the keyspace
+	 */
+	public MicrometerMigrationMetrics(MeterRegistry registry, Iterable<Tag> tags) {
+		this.registry = registry;
+		this.tags = Tags.of(tags);
+		lockAcquired = timer("migration.lock.acquire", "acquired");
+		lockNotAcquired = timer("migration.lock.acquire", "not_acquired");
+		lockAttempts = DistributionSummary.builder("migration.lock.attempts").tags(this.tags).register(registry);
+		lockRenewed = timer("migration.lock.renew", "renewed");
+		lockRenewalRejected = timer("migration.lock.renew", "rejected");
+		statementSucceeded = timer("migration.statement", "success");
+		statementFailed = timer("migration.statement", "failure");
+		schemaAgreementReached = timer("migration.schema.agreement", "reached");
+		schemaAgreementTimedOut = timer("migration.schema.agreement", "timeout");
+		ledgerRead = timer("migration.ledger.read", "success");
+		ledgerRows = DistributionSummary.builder("migration.ledger.rows").tags(this.tags).register(registry);
+		ledgerWrite = timer("migration.ledger.write", "success");
+		filesSkipped = counter("skipped");
+		filesApplied = counter("applied");
+		filesFailed = counter("failed");
+		fileApplied = timer("migration.file", "applied");
+		fileFailed = timer("migration.file", "failed");
+	}
+
+	@Override
+	public void runFinished(String keyspace, long nanos, Exception failure) {
+		Timer.builder("migration.run")
+				.tags(tags)
+				.tag("keyspace", String.valueOf(keyspace))
+				.tag("outcome", failure == null ? "success" : "failure")
+				.register(registry)
+				.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void lockAcquisition(long nanos, int attempts, boolean acquired) {
+		(acquired ? lockAcquired : lockNotAcquired).record(nanos, TimeUnit.NANOSECONDS);
+		lockAttempts.record(attempts);
+	}
+
+	@Override
+	public void lockRenewal(long nanos, boolean renewed) {
+		(renewed ? lockRenewed : lockRenewalRejected).record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void phaseCompleted(String phase, long nanos) {
+		Timer.builder("migration.phase").tags(tags).tag("phase", phase).register(registry).record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void statementExecuted(String migration, int ordinal, long nanos, boolean succeeded, InetAddress coordinator) {
+		(succeeded ? statementSucceeded : statementFailed).record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void schemaAgreementWait(String reason, long nanos, boolean reached) {
+		(reached ? schemaAgreementReached : schemaAgreementTimedOut).record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void ledgerRead(long nanos, int rows) {
+		ledgerRead.record(nanos, TimeUnit.NANOSECONDS);
+		ledgerRows.record(rows);
+	}
+
+	@Override
+	public void ledgerWrite(long nanos) {
+		ledgerWrite.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void migrationSkipped(String name) {
+		filesSkipped.increment();
+	}
+
+	@Override
+	public void migrationApplied(String name, long nanos) {
+		filesApplied.increment();
+		fileApplied.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void migrationFailed(String name, long nanos, Exception cause) {
+		filesFailed.increment();
+		fileFailed.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	private Timer timer(String name, String outcome) {
+		return Timer.builder(name).tags(tags).tag("outcome", outcome).register(registry);
+	}
+
+	private Counter counter(String outcome) {
+		return Counter.builder("migration.files").tags(tags).tag("outcome", outcome).register(registry);
+	}
+}
@@ -0,0 +1,94 @@
+package smartthings.metrics;
+
+import java.net.InetAddress;
+
+/**
+ * Receives timings and counts from a migration run. Every method does nothing by default, so implementations only
+ * override what they record. Durations are in nanoseconds. Methods can be called from several threads at once when
+ * migrations run in parallel or the lock heartbeat is on.
+ */
+public interface MigrationMetrics {
+
+	MigrationMetrics NOOP = new MigrationMetrics() {
+	};
+
+	/**
+	 * A run has loaded its migrations and is about to check them against the ledger.
+	 */
+	default void runStarted(String keyspace, int migrations) {
+	}
+
+	/**
+	 * One of the steps of a run completed: connect, load, lock, setup, backfill, ledger, baseline or migrate.
+	 */
+	default void phaseCompleted(String phase, long nanos) {
+	}
+
+	/**
+	 * @param loadNanos time to find the migration's source
+	 * @param hashNanos time to read and hash it, or to find its digest in the digest cache
+	 */
+	default void migrationLoaded(String name, long loadNanos, long hashNanos) {
+	}
+
+	/**
+	 * Called at the end of every run, including runs that failed before their migrations were loaded.
+	 *
+	 * @param failure why the run failed, null when it succeeded
+	 */
+	default void runFinished(String keyspace, long nanos, Exception failure) {
+	}
+
+	/**
+	 * @param attempts number of times the lock was tried
+	 * @param acquired false when the wait was abandoned or timed out
+	 */
+	default void lockAcquisition(long nanos, int attempts, boolean acquired) {
+	}
+
+	/**
+	 * @param renewed false when the lock was no longer ours
+	 */
+	default void lockRenewal(long nanos, boolean renewed) {
+	}
+
+	/**
+	 * A statement or batch of statements from a migration completed.
+	 *
+	 * @param ordinal position of the statement in the migration, the first one's for a batch
+	 * @param coordinator node that coordinated the request, null if unknown
+	 */
+	default void statementExecuted(String migration, int ordinal, long nanos, boolean succeeded, InetAddress coordinator) {
+	}
+
+	/**
+	 * @param reason the migration the wait was for, or the table being set up
+	 * @param reached false when the wait timed out
+	 */
+	default void schemaAgreementWait(String reason, long nanos, boolean reached) {
+	}
+
+	default void ledgerRead(long nanos, int rows) {
+	}
+
+	default void ledgerWrite(long nanos) {
+	}
+
+	/**
+	 * The ledger was checked for the migration, before deciding whether to run it.
+	 */
+	default void ledgerCheck(String name, long nanos) {
+	}
+
+	/**
+	 * The migration was already applied with the same digest.
+	 */
+	default void migrationSkipped(String name) {
+	}
+
+	default void migrationApplied(String name, long nanos) {
+	}
+
+	default void migrationFailed(String name, long nanos, Exception cause) {
+	}
+}
@@ -0,0 +1,349 @@
+package smartthings.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Collects what happened during one run and writes it as JSON when the run finishes: how long each phase took, the
+ * lock wait and renewals, ledger reads and writes, schema agreement waits, and per migration the time to load,
+ * hash and check it against the ledger, its outcome, and its statement count, latencies and coordinators. Only the
+ * slowest statements of a migration, failed ones first, are kept one by one, so a large migration doesn't fill
+ * the report or the heap. Times are in milliseconds. A report that can't be written is logged and doesn't fail
+ * the run.
+ */
+public class RunReport implements MigrationMetrics {
+	private static final Logger logger = LoggerFactory.getLogger(RunReport.class);
+
+	static final int SLOWEST_STATEMENTS = 10;
+	// the statement to drop first when a migration has more than SLOWEST_STATEMENTS: a succeeded one, the fastest
+	private static final Comparator<Statement> INTEREST = Comparator.<Statement, Boolean>comparing(statement -> !statement.succeeded)
+			.thenComparingLong(statement -> statement.nanos);
+
+	private final File path;
+	private final boolean keyspaceInName;
+	private final long startedAt = System.currentTimeMillis();
+	private final long start = System.nanoTime();
+
+	private final Map<String, Long> phases = new LinkedHashMap<>();
+	private final Map<String, Migration> migrations = new LinkedHashMap<>();
+	private final List<SchemaAgreementWait> schemaAgreements = new ArrayList<>();
+	private final List<LockRenewal> renewals = new ArrayList<>();
+	private long lockNanos;
+	private int lockAttempts;
+	private boolean lockAcquired;
+	private int ledgerReads;
+	private long ledgerReadNanos;
+	private int ledgerRows;
+	private int ledgerWrites;
+	private long ledgerWriteNanos;
+	private File written;
+
+	/**
+	 * @param path file to write, or a directory to write a file named after the keyspace and start time in
+	 */
+	public RunReport(File path) {
+		this(path, false);
+	}
+
+	/**
+	 * @param keyspaceInName when the path is a file, add the keyspace to its name, for runs that migrate several
+	 * keyspaces with the same report path
+	 */
+	public RunReport(File path, boolean keyspaceInName) {
+		this.path = path;
+		this.keyspaceInName = keyspaceInName;
+	}
+
+	/**
+	 * The file the report was written to, null until the run finished or if it couldn't be written.
+	 */
+	public synchronized File getFile() {
+		return written;
+	}
+
+	@Override
+	public synchronized void phaseCompleted(String phase, long nanos) {
+		phases.merge(phase, nanos, Long::sum);
+	}
+
+	@Override
+	public synchronized void migrationLoaded(String name, long loadNanos, long hashNanos) {
+		Migration migration = migration(name);
+		migration.loadNanos = loadNanos;
+		migration.hashNanos = hashNanos;
+	}
+
+	@Override
+	public synchronized void lockAcquisition(long nanos, int attempts, boolean acquired) {
+		lockNanos += nanos;
+		lockAttempts += attempts;
+		lockAcquired = acquired;
+	}
+
+	@Override
+	public synchronized void lockRenewal(long nanos, boolean renewed) {
+		renewals.add(new LockRenewal(System.nanoTime() - start, nanos, renewed));
+	}
+
+	@Override
+	public synchronized void statementExecuted(String migration, int ordinal, long nanos, boolean succeeded, InetAddress coordinator) {
+		migration(migration).statementExecuted(new Statement(ordinal, nanos, succeeded, coordinator));
+	}
+
+	@Override
+	public synchronized void schemaAgreementWait(String reason, long nanos, boolean reached) {
+		SchemaAgreementWait wait = new SchemaAgreementWait(reason, nanos, reached);
+		Migration migration = reason != null ? migrations.get(reason) : null;
+		if (migration != null) {
+			migration.schemaAgreements.add(wait);
+		} else {
+			schemaAgreements.add(wait);
+		}
+	}
+
+	@Override
+	public synchronized void ledgerRead(long nanos, int rows) {
+		ledgerReads++;
+		ledgerReadNanos += nanos;
+		ledgerRows += rows;
+	}
+
+	@Override
+	public synchronized void ledgerWrite(long nanos) {
+		ledgerWrites++;
+		ledgerWriteNanos += nanos;
+	}
+
+	@Override
+	public synchronized void ledgerCheck(String name, long nanos) {
+		migration(name).ledgerCheckNanos = nanos;
+	}
+
+	@Override
+	public synchronized void migrationSkipped(String name) {
+		migration(name).outcome = "skipped";
+	}
+
+	@Override
+	public synchronized void migrationApplied(String name, long nanos) {
+		Migration migration = migration(name);
+		migration.outcome = "applied";
+		migration.nanos = nanos;
+	}
+
+	@Override
+	public synchronized void migrationFailed(String name, long nanos, Exception cause) {
+		Migration migration = migration(name);
+		migration.outcome = "failed";
+		migration.nanos = nanos;
+		migration.failure = String.valueOf(cause);
+	}
+
+	@Override
+	public synchronized void runFinished(String keyspace, long nanos, Exception failure) {
+		File file = path.isDirectory()
+				? new File(path, keyspace + "-" + new SimpleDateFormat("yyyyMMdd'T'HHmmss.SSS").format(new Date(startedAt)) + ".json")
+				: keyspaceInName ? withKeyspace(path, keyspace) : path;
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+			write(new JsonWriter(out), keyspace, nanos, failure);
+			written = file;
+			logger.info("Wrote migration report to {}", file);
+		} catch (IOException e) {
+			logger.warn("Could not write migration report to " + file, e);
+		}
+	}
+
+	// report.json becomes report-keyspace.json
+	private static File withKeyspace(File file, String keyspace) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		String named = dot > 0 ? name.substring(0, dot) + "-" + keyspace + name.substring(dot) : name + "-" + keyspace;
+		return new File(file.getAbsoluteFile().getParentFile(), named);
+	}
+
+	private Migration migration(String name) {
+		return migrations.computeIfAbsent(name, Migration::new);
+	}
+
+	private void write(JsonWriter json, String keyspace, long nanos, Exception failure) throws IOException {
+		json.beginObject()
+				.name("keyspace").value(keyspace)
+				.name("startedAt").value(Instant.ofEpochMilli(startedAt).toString())
+				.name("durationMs").millis(nanos)
+				.name("outcome").value(failure == null ? "succeeded" : "failed")
+				.name("failure").value(failure == null ? null : String.valueOf(failure));
+
+		json.name("phases").beginObject();
+		for (Map.Entry<String, Long> phase : phases.entrySet()) {
+			json.name(phase.getKey()).millis(phase.getValue());
+		}
+		json.endObject();
+
+		json.name("lock").beginObject()
+				.name("waitMs").millis(lockNanos)
+				.name("attempts").value(lockAttempts)
+				.name("acquired").value(lockAcquired)
+				.name("renewals").beginArray();
+		for (LockRenewal renewal : renewals) {
+			json.beginObject()
+					.name("atMs").millis(renewal.at)
+					.name("latencyMs").millis(renewal.nanos)
+					.name("renewed").value(renewal.renewed)
+					.endObject();
+		}
+		json.endArray().endObject();
+
+		json.name("ledger").beginObject()
+				.name("reads").value(ledgerReads)
+				.name("readMs").millis(ledgerReadNanos)
+				.name("rows").value(ledgerRows)
+				.name("writes").value(ledgerWrites)
+				.name("writeMs").millis(ledgerWriteNanos)
+				.endObject();
+
+		json.name("schemaAgreement");
+		write(json, schemaAgreements);
+
+		json.name("migrations").beginArray();
+		for (Migration migration : migrations.values()) {
+			json.beginObject()
+					.name("name").value(migration.name)
+					.name("loadMs").millis(migration.loadNanos)
+					.name("hashMs").millis(migration.hashNanos)
+					.name("ledgerCheckMs").millis(migration.ledgerCheckNanos)
+					.name("outcome").value(migration.outcome)
+					.name("durationMs").millis(migration.nanos)
+					.name("failure").value(migration.failure)
+					.name("statements").beginObject()
+					.name("count").value(migration.statementCount)
+					.name("failed").value(migration.failedStatements)
+					.name("totalMs").millis(migration.statementNanos)
+					.name("maxMs").millis(migration.maxStatementNanos)
+					.name("coordinators").beginObject();
+			for (Map.Entry<String, Integer> coordinator : migration.coordinators.entrySet()) {
+				json.name(coordinator.getKey()).value(coordinator.getValue());
+			}
+			json.endObject().name("slowest").beginArray();
+			List<Statement> slowest = new ArrayList<>(migration.slowest);
+			slowest.sort(Comparator.comparingInt(statement -> statement.ordinal));
+			for (Statement statement : slowest) {
+				json.beginObject()
+						.name("ordinal").value(statement.ordinal)
+						.name("latencyMs").millis(statement.nanos)
+						.name("succeeded").value(statement.succeeded)
+						.name("coordinator").value(statement.coordinator == null ? null : statement.coordinator.getHostAddress())
+						.endObject();
+			}
+			json.endArray().endObject().name("schemaAgreement");
+			write(json, migration.schemaAgreements);
+			json.endObject();
+		}
+		json.endArray().endObject();
+	}
+
+	private static void write(JsonWriter json, List<SchemaAgreementWait> waits) throws IOException {
+		json.beginArray();
+		for (SchemaAgreementWait wait : waits) {
+			json.beginObject()
+					.name("reason").value(wait.reason)
+					.name("waitMs").millis(wait.nanos)
+					.name("reached").value(wait.reached)
+					.endObject();
+		}
+		json.endArray();
+	}
+
+	private static class Migration {
+		private final String name;
+		private final PriorityQueue<Statement> slowest = new PriorityQueue<>(INTEREST);
+		private final Map<String, Integer> coordinators = new TreeMap<>();
+		private final List<SchemaAgreementWait> schemaAgreements = new ArrayList<>();
+		private int statementCount;
+		private int failedStatements;
+		private long statementNanos;
+		private long maxStatementNanos;
+		private long loadNanos;
+		private long hashNanos;
+		private long ledgerCheckNanos;
+		private String outcome = "not run";
+		private long nanos;
+		private String failure;
+
+		Migration(String name) {
+			this.name = name;
+		}
+
+		void statementExecuted(Statement statement) {
+			statementCount++;
+			if (!statement.succeeded) {
+				failedStatements++;
+			}
+			statementNanos += statement.nanos;
+			maxStatementNanos = Math.max(maxStatementNanos, statement.nanos);
+			if (statement.coordinator != null) {
+				coordinators.merge(statement.coordinator.getHostAddress(), 1, Integer::sum);
+			}
+			slowest.add(statement);
+			if (slowest.size() > SLOWEST_STATEMENTS) {
+				slowest.poll();
+			}
+		}
+	}
+
+	private static class Statement {
+		private final int ordinal;
+		private final long nanos;
+		private final boolean succeeded;
+		private final InetAddress coordinator;
+
+		Statement(int ordinal, long nanos, boolean succeeded, InetAddress coordinator) {
+			this.ordinal = ordinal;
+			this.nanos = nanos;
+			this.succeeded = succeeded;
+			this.coordinator = coordinator;
+		}
+	}
+
+	private static class SchemaAgreementWait {
+		private final String reason;
+		private final long nanos;
+		private final boolean reached;
+
+		SchemaAgreementWait(String reason, long nanos, boolean reached) {
+			this.reason = reason;
+			this.nanos = nanos;
+			this.reached = reached;
+		}
+	}
+
+	private static class LockRenewal {
+		private final long at;
+		private final long nanos;
+		private final boolean renewed;
+
+		LockRenewal(long at, long nanos, boolean renewed) {
+			this.at = at;
+			this.nanos = nanos;
+			this.renewed = renewed;
+		}
+	}
+}
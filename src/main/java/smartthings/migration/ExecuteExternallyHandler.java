@@ -3,10 +3,18 @@ package smartthings.migration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import smartthings.cassandra.CassandraConnection;
-import smartthings.util.Util;
+import smartthings.metrics.MigrationMetrics;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Runs migrations through an external program, cqlsh or anything that takes the same -k and -h arguments, with the
+ * migration on its standard input. A migration is recorded only when the program exits with 0.
+ */
 public class ExecuteExternallyHandler implements Handler {
 	private Logger logger = LoggerFactory.getLogger(ExecuteExternallyHandler.class);
 
@@ -17,34 +25,58 @@ public class ExecuteExternallyHandler implements Handler {
 
 	@Override
 	public void handle(final String fileName, final String fileContents) {
-		String md5 = Util.calculateMd5(fileContents);
+		handle(new MigrationFile(fileName, fileContents));
+	}
 
+	@Override
+	public void handle(MigrationFile migration) {
+		String fileName = migration.getName();
 		String existingMd5 = connection.getMigrationMd5(fileName);
-		if (existingMd5 != null && md5 != null && md5.equals(existingMd5)) {
+		if (existingMd5 != null && migration.matches(existingMd5)) {
 			logger.info(fileName + " was already run");
+			if (!migration.matchesBytes(existingMd5)) {
+				logger.info(fileName + " was recorded with the digest of its decoded text, recording the digest of its bytes");
+				connection.updateMigrationDigest(fileName, migration.getDigest());
+			}
+			metrics().migrationSkipped(fileName);
 		} else if (existingMd5 != null && !parameters.getOverride()) {
 			throw new CassandraMigrationException("ERROR! md5 of " + fileName + " is different from the last time it was run!");
 		} else {
 			logger.info("Running migration " + fileName);
 
-			String command = parameters.getLocation() + " -k " + parameters.getKeyspace() + " -h " + parameters.getHost() + " -x \"" + fileContents + "\"";
-			System.out.println(command);
+			List<String> command = new ArrayList<>(Arrays.asList(parameters.getLocation().trim().split("\\s+")));
+			command.addAll(Arrays.asList("-k", parameters.getKeyspace(), "-h", parameters.getHost()));
+			long start = System.nanoTime();
+			int exitValue;
 			try {
-				Process process = Runtime.getRuntime().exec(command);
-				while (process.isAlive()) {
-					connection.keepLockAlive();
-					Thread.sleep(1000);
-				}
-				if (process.exitValue() == 0) {
-					connection.markMigration(fileName, md5);
-				}
+				exitValue = new ExternalCommand(command, TimeUnit.SECONDS.toMillis(parameters.getExternalTimeout()))
+						.run(fileName, migration.getSource(), connection::keepLockAlive);
+			} catch (IOException e) {
+				metrics().migrationFailed(fileName, System.nanoTime() - start, e);
+				throw new CassandraMigrationException("Failed executing command " + command + " for " + fileName, e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				metrics().migrationFailed(fileName, System.nanoTime() - start, e);
+				throw new CassandraMigrationException("Interrupted while running " + fileName, e);
+			} catch (RuntimeException e) {
+				metrics().migrationFailed(fileName, System.nanoTime() - start, e);
+				throw e;
+			}
 
-			} catch (IOException | InterruptedException e ) {
-				logger.error("failed executing command: " + command, e);
+			if (exitValue != 0) {
+				CassandraMigrationException failure = new CassandraMigrationException(command.get(0) + " exited with " + exitValue + " running " + fileName);
+				metrics().migrationFailed(fileName, System.nanoTime() - start, failure);
+				throw failure;
 			}
+			connection.markMigration(fileName, migration.getDigest());
+			metrics().migrationApplied(fileName, System.nanoTime() - start);
 		}
 	}
 
+	private MigrationMetrics metrics() {
+		return connection.getMetrics() != null ? connection.getMetrics() : MigrationMetrics.NOOP;
+	}
+
 	public CassandraConnection getConnection() {
 		return connection;
 	}
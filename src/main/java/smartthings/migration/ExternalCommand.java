@@ -0,0 +1,106 @@
+package smartthings.migration;
+
+import com.google.common.io.CharSource;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs a program with a migration on its standard input. Input is written and output drained on their own threads,
+ * so neither a large migration nor a chatty program can fill a pipe and stall the other side.
+ */
+class ExternalCommand {
+	private static final Logger logger = LoggerFactory.getLogger(ExternalCommand.class);
+
+	private static final long CHECK_INTERVAL_MILLIS = 1000;
+	private static final long DESTROY_WAIT_SECONDS = 5;
+
+	private final List<String> command;
+	private final long timeoutMillis;
+
+	/**
+	 * @param timeoutMillis how long to wait for the program to exit, 0 waits forever
+	 */
+	ExternalCommand(List<String> command, long timeoutMillis) {
+		this.command = command;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Runs the program and waits for it to exit. It is killed if it runs past the timeout, if the check throws or
+	 * if the waiting thread is interrupted.
+	 *
+	 * @param name what the output is logged under
+	 * @param check called about once a second while the program runs
+	 * @return the exit value
+	 */
+	int run(String name, CharSource input, Runnable check) throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(command).start();
+		ExecutorService io = Executors.newFixedThreadPool(3, new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat("external-command-%d")
+				.build());
+		try {
+			io.submit(() -> drain(process.getInputStream(), line -> logger.info("{}: {}", name, line)));
+			io.submit(() -> drain(process.getErrorStream(), line -> logger.warn("{}: {}", name, line)));
+			Future<?> feed = io.submit(() -> {
+				try (Writer stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8)) {
+					input.copyTo(stdin);
+				}
+				return null;
+			});
+
+			long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+			while (!process.waitFor(Math.min(CHECK_INTERVAL_MILLIS, Math.max(0, deadline - System.currentTimeMillis())), TimeUnit.MILLISECONDS)) {
+				if (System.currentTimeMillis() >= deadline) {
+					throw new CassandraMigrationException(name + " was still running after " + timeoutMillis + "ms");
+				}
+				check.run();
+			}
+
+			try {
+				feed.get();
+			} catch (ExecutionException e) {
+				// a program that exits without reading all of its input closes the pipe on us
+				logger.debug("Could not write all of " + name + " to " + command.get(0), e.getCause());
+			}
+			return process.exitValue();
+		} finally {
+			if (process.isAlive()) {
+				logger.warn("Stopping {} running {}", command.get(0), name);
+				process.destroy();
+				if (!process.waitFor(DESTROY_WAIT_SECONDS, TimeUnit.SECONDS)) {
+					process.destroyForcibly();
+				}
+			}
+			io.shutdown();
+			// the rest of the output, which is gone once the streams close
+			io.awaitTermination(DESTROY_WAIT_SECONDS, TimeUnit.SECONDS);
+		}
+	}
+
+	private static Void drain(InputStream stream, Consumer<String> log) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				log.accept(line);
+			}
+		}
+		return null;
+	}
+}
@@ -2,4 +2,8 @@ package smartthings.migration;
 
 public interface Handler {
 	public void handle(String fileName, String fileContents);
+
+	default void handle(MigrationFile migration) {
+		handle(migration.getName(), migration.getContents());
+	}
 }
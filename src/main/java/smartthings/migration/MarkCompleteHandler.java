@@ -3,7 +3,7 @@ package smartthings.migration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import smartthings.cassandra.CassandraConnection;
-import smartthings.util.Util;
+import smartthings.metrics.MigrationMetrics;
 
 public class MarkCompleteHandler implements Handler {
 	private Logger logger = LoggerFactory.getLogger(MarkCompleteHandler.class);
@@ -14,15 +14,26 @@ public class MarkCompleteHandler implements Handler {
 
 	@Override
 	public void handle(final String fileName, final String fileContents) {
-		String md5 = Util.calculateMd5(fileContents);
-		String existingMd5 = connection.getMigrationMd5(fileName);
+		handle(new MigrationFile(fileName, fileContents));
+	}
+
+	@Override
+	public void handle(MigrationFile migration) {
+		String existingMd5 = connection.getMigrationMd5(migration.getName());
 		if (existingMd5 == null) {
-			logger.info("Marking migration " + fileName + " as run!");
-			connection.markMigration(fileName, md5);
+			logger.info("Marking migration " + migration.getName() + " as run!");
+			connection.markMigration(migration.getName(), migration.getDigest());
+			metrics().migrationApplied(migration.getName(), 0);
+		} else {
+			metrics().migrationSkipped(migration.getName());
 		}
 
 	}
 
+	private MigrationMetrics metrics() {
+		return connection.getMetrics() != null ? connection.getMetrics() : MigrationMetrics.NOOP;
+	}
+
 	public CassandraConnection getConnection() {
 		return connection;
 	}
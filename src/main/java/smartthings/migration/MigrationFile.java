@@ -0,0 +1,120 @@
+package smartthings.migration;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteSource;
+import com.google.common.io.CharSource;
+import smartthings.util.MigrationDigest;
+import smartthings.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A migration from the changelog with its digest computed up front. The contents are only read again
+ * when the migration actually has to run, or to check a ledger row recorded with another digest algorithm.
+ */
+public class MigrationFile {
+	private final String name;
+	private final ByteSource bytes;
+	private final CharSource source;
+	private final MigrationDigest algorithm;
+	private final Map<MigrationDigest, String> digests = new ConcurrentHashMap<>();
+
+	public MigrationFile(String name, String contents) {
+		this(name, ByteSource.wrap(contents.getBytes(Charsets.UTF_8)), CharSource.wrap(contents), MigrationDigest.MD5, null);
+	}
+
+	public MigrationFile(String name, ByteSource source, String md5) {
+		this(name, source, MigrationDigest.MD5, md5);
+	}
+
+	/**
+	 * @param digest the source's digest with the given algorithm, the value recorded when the migration runs
+	 */
+	public MigrationFile(String name, ByteSource source, MigrationDigest algorithm, String digest) {
+		this(name, source, source.asCharSource(Charsets.UTF_8), algorithm, digest);
+	}
+
+	private MigrationFile(String name, ByteSource bytes, CharSource source, MigrationDigest algorithm, String digest) {
+		this.name = name;
+		this.bytes = bytes;
+		this.source = source;
+		this.algorithm = algorithm;
+		if (digest != null) {
+			digests.put(algorithm, digest);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Name the file is recorded under in the migrations table.
+	 */
+	public String getLedgerName() {
+		return new File(name).getName();
+	}
+
+	public CharSource getSource() {
+		return source;
+	}
+
+	public String getContents() {
+		try {
+			return source.read();
+		} catch (IOException e) {
+			throw new CassandraMigrationException("Error loading cql file " + name, e);
+		}
+	}
+
+	/**
+	 * Digest to record for this migration, computed with the configured algorithm.
+	 */
+	public String getDigest() {
+		return getDigest(algorithm);
+	}
+
+	public String getDigest(MigrationDigest digest) {
+		return digests.computeIfAbsent(digest, d -> {
+			try {
+				return d.digest(bytes);
+			} catch (IOException e) {
+				throw new CassandraMigrationException("Error loading cql file " + name, e);
+			}
+		});
+	}
+
+	public String getMd5() {
+		return getDigest(MigrationDigest.MD5);
+	}
+
+	/**
+	 * Whether a digest recorded in the migrations table, with whichever algorithm, matches this migration.
+	 */
+	public boolean matches(String recorded) {
+		return matchesBytes(recorded) || matchesDecoded(recorded);
+	}
+
+	/**
+	 * Whether the recorded digest matches the one of the file's bytes, the way digests are computed now.
+	 */
+	public boolean matchesBytes(String recorded) {
+		if (recorded == null) {
+			return false;
+		}
+		MigrationDigest digest = MigrationDigest.forRecorded(recorded);
+		return digest != null && recorded.equals(getDigest(digest));
+	}
+
+	/**
+	 * Whether the recorded digest is the MD5 of the decoded text, as recorded before digests were taken from the
+	 * bytes. The two differ for files that aren't valid UTF-8. Only read when the bytes don't match.
+	 */
+	public boolean matchesDecoded(String recorded) {
+		return recorded != null && MigrationDigest.forRecorded(recorded) == MigrationDigest.MD5
+				&& recorded.equals(Util.calculateMd5(getContents()));
+	}
+}
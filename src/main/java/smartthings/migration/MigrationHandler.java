@@ -3,7 +3,7 @@ package smartthings.migration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import smartthings.cassandra.CassandraConnection;
-import smartthings.util.Util;
+import smartthings.metrics.MigrationMetrics;
 
 public class MigrationHandler implements Handler {
 
@@ -11,25 +11,46 @@ public class MigrationHandler implements Handler {
 
 	private CassandraConnection connection;
 	private boolean override;
+	private MigrationMetrics metrics;
 
 	public MigrationHandler(CassandraConnection connection, boolean override) {
 		this.connection = connection;
 		this.override = override;
+		this.metrics = connection.getMetrics() != null ? connection.getMetrics() : MigrationMetrics.NOOP;
 	}
 
 	@Override
 	public void handle(final String fileName, final String fileContents) {
-		logger.info("Handling file: " + fileName);
-		String md5 = Util.calculateMd5(fileContents);
+		handle(new MigrationFile(fileName, fileContents));
+	}
 
+	@Override
+	public void handle(MigrationFile migration) {
+		String fileName = migration.getName();
+		logger.info("Handling file: " + fileName);
+		long checkStart = System.nanoTime();
 		String existingMd5 = connection.getMigrationMd5(fileName);
-		if (existingMd5 != null && md5.equals(existingMd5)) {
+		boolean applied = existingMd5 != null && migration.matches(existingMd5);
+		metrics.ledgerCheck(fileName, System.nanoTime() - checkStart);
+		if (applied) {
 			logger.info(fileName + " was already run.");
+			if (!migration.matchesBytes(existingMd5)) {
+				logger.info(fileName + " was recorded with the digest of its decoded text, recording the digest of its bytes");
+				connection.updateMigrationDigest(fileName, migration.getDigest());
+			}
+			metrics.migrationSkipped(fileName);
 		} else if (existingMd5 != null && !override) {
 			throw new CassandraMigrationException("ERROR! md5 of " + fileName + " is different from the last time it was run!");
 		} else {
 			logger.info("Running migration " + fileName);
-			connection.runMigration(fileName, fileContents, md5, override);
+			long start = System.nanoTime();
+			try {
+				connection.runMigration(fileName, migration.getSource(), migration.getDigest(), override);
+			} catch (RuntimeException e) {
+				metrics.migrationFailed(fileName, System.nanoTime() - start, e);
+				throw e;
+			}
+			metrics.migrationApplied(fileName, System.nanoTime() - start);
 		}
 
 	}
@@ -0,0 +1,163 @@
+package smartthings.migration;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smartthings.metrics.MigrationMetrics;
+import smartthings.util.DigestCache;
+import smartthings.util.MigrationDigest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Resolves the migration sources for a run and hashes them on a bounded pool, so loading overlaps with
+ * connecting to Cassandra and waiting for the lock.
+ */
+public class MigrationLoader {
+	private static final Logger logger = LoggerFactory.getLogger(MigrationLoader.class);
+
+	private final ExecutorService executor;
+	private final List<Future<Loaded>> files = new ArrayList<>();
+	private final MigrationDigest algorithm;
+	private final MigrationMetrics metrics;
+	private DigestCache digestCache;
+
+	private MigrationLoader(int threads, MigrationDigest algorithm, MigrationMetrics metrics) {
+		this.algorithm = algorithm;
+		this.metrics = metrics;
+		executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat("migration-loader-%d")
+				.build());
+	}
+
+	public static MigrationLoader start(MigrationParameters migrationParameters) throws IOException {
+		return start(migrationParameters, migrationParameters.getMetrics());
+	}
+
+	public static MigrationLoader start(MigrationParameters migrationParameters, MigrationMetrics metrics) throws IOException {
+		MigrationLoader loader = new MigrationLoader(migrationParameters.getLoaderThreads(),
+				MigrationDigest.forName(migrationParameters.getDigestAlgorithm()), metrics != null ? metrics : MigrationMetrics.NOOP);
+		if (migrationParameters.getDigestCachePath() != null) {
+			loader.digestCache = DigestCache.load(new File(migrationParameters.getDigestCachePath()));
+		}
+		try {
+			loader.submitAll(migrationParameters);
+		} finally {
+			loader.executor.shutdown();
+		}
+		return loader;
+	}
+
+	/**
+	 * Waits for every file to be hashed and returns them in changelog order.
+	 */
+	public List<MigrationFile> get() throws InterruptedException {
+		List<MigrationFile> migrations = new ArrayList<>(files.size());
+		try {
+			for (Future<Loaded> file : files) {
+				Loaded loaded = file.get();
+				metrics.migrationLoaded(loaded.file.getName(), loaded.loadNanos, loaded.hashNanos);
+				migrations.add(loaded.file);
+			}
+		} catch (ExecutionException e) {
+			executor.shutdownNow();
+			throw Throwables.propagate(e.getCause());
+		}
+		if (digestCache != null) {
+			try {
+				digestCache.save();
+			} catch (IOException e) {
+				logger.warn("Could not save the digest cache", e);
+			}
+		}
+		return migrations;
+	}
+
+	private void submitAll(MigrationParameters migrationParameters) throws IOException {
+		if (migrationParameters.getMigrationsLogFile() != null) {
+			logger.info("Using Migration Log File: " + migrationParameters.getMigrationsLogFile());
+			List<String> lines = resource(migrationParameters.getMigrationsLogFile()).asCharSource(Charsets.UTF_8).readLines();
+			for (String file : lines) {
+				if (!file.equalsIgnoreCase("")) {
+					long start = System.nanoTime();
+					URL url = resourceUrl(file);
+					ByteSource source = Resources.asByteSource(url);
+					submit(file, source, () -> digestCache.digest(url, source, algorithm), System.nanoTime() - start);
+				}
+			}
+		} else if (migrationParameters.getMigrationFile() != null) {
+			File f = migrationParameters.getMigrationFile();
+			submit(f, f.getName());
+		} else {
+			File migrationsDir = migrationParameters.getMigrationsDir();
+			logger.info("Using migrations Directory " + migrationsDir);
+			if (migrationsDir != null) {
+				File[] dirFiles = migrationsDir.listFiles();
+				if (dirFiles != null) {
+					for (File file : dirFiles) {
+						submit(file, file.getName());
+					}
+				} else {
+					logger.warn("No files found in migrations directory.");
+				}
+			}
+		}
+	}
+
+	private void submit(File file, String name) {
+		submit(name, Files.asByteSource(file), () -> digestCache.digest(file, algorithm), 0);
+	}
+
+	private void submit(String name, ByteSource source, CachedDigest cachedDigest, long loadNanos) {
+		files.add(executor.submit(() -> {
+			try {
+				long start = System.nanoTime();
+				String digest = digestCache != null ? cachedDigest.get() : algorithm.digest(source);
+				return new Loaded(new MigrationFile(name, source, algorithm, digest), loadNanos, System.nanoTime() - start);
+			} catch (IOException e) {
+				throw new CassandraMigrationException("Error loading cql file " + name, e);
+			}
+		}));
+	}
+
+	static ByteSource resource(String r) {
+		return Resources.asByteSource(resourceUrl(r));
+	}
+
+	private static URL resourceUrl(String r) {
+		if (r.startsWith("/")) {
+			r = r.substring(1);
+		}
+		return Resources.getResource(r);
+	}
+
+	private interface CachedDigest {
+		String get() throws IOException;
+	}
+
+	private static class Loaded {
+		private final MigrationFile file;
+		private final long loadNanos;
+		private final long hashNanos;
+
+		Loaded(MigrationFile file, long loadNanos, long hashNanos) {
+			this.file = file;
+			this.loadNanos = loadNanos;
+			this.hashNanos = hashNanos;
+		}
+	}
+}
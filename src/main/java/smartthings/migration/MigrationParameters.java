@@ -1,14 +1,48 @@
 package smartthings.migration;
 
 import com.datastax.driver.core.Session;
+import com.google.common.base.Splitter;
+import smartthings.metrics.MigrationMetrics;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 
 public class MigrationParameters {
 
 	private Boolean override;
+	private boolean preflight;
+	private int lockTtl = 60;
+	// half the ttl while unset
+	private Integer lockRenewThreshold;
+	private boolean lockHeartbeat = true;
+	private long lockRetryInitialDelay = 250;
+	private long lockRetryMaxDelay = 4000;
+	private int lockWaitTimeout;
+	private boolean lockWaitForExpiry;
+	private int loaderThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+	private boolean pipelineDml;
+	private int maxDmlInFlight = 32;
+	private boolean batchDml;
+	private int maxBatchStatements = 100;
+	private int maxBatchBytes = 5120;
+	private int schemaAgreementTimeout = 20;
+	private Set<String> schemaAgreementDataCenters = Collections.emptySet();
+	private boolean schemaAgreementKeyspaceScope;
+	private boolean deferSchemaAgreement;
+	private int migrationParallelism = 1;
+	private String digestCachePath;
+	private String digestAlgorithm = "md5";
+	private MigrationMetrics metrics = MigrationMetrics.NOOP;
+	private String reportPath;
+	private int checkpointInterval = 0;
+	private int externalTimeout;
+	private String baselineFile;
+	private String baselineLogFile;
+	private boolean clusteredLedger;
 	private HandlerClass handlerClass;
 	private File migrationFile;
 	private String host = "localhost";
@@ -46,6 +80,34 @@ public class MigrationParameters {
 
 		location = System.getProperty("location");
 		override = new Boolean(System.getProperty("override"));
+		preflight = Boolean.parseBoolean(System.getProperty("preflight"));
+		lockTtl = Integer.parseInt(System.getProperty("lockTtl", "60"));
+		lockRenewThreshold = System.getProperty("lockRenewThreshold") != null ? Integer.valueOf(System.getProperty("lockRenewThreshold")) : null;
+		lockHeartbeat = Boolean.parseBoolean(System.getProperty("lockHeartbeat", "true"));
+		lockRetryInitialDelay = Long.parseLong(System.getProperty("lockRetryInitialDelay", "250"));
+		lockRetryMaxDelay = Long.parseLong(System.getProperty("lockRetryMaxDelay", "4000"));
+		lockWaitTimeout = Integer.parseInt(System.getProperty("lockWaitTimeout", "0"));
+		lockWaitForExpiry = Boolean.parseBoolean(System.getProperty("lockWaitForExpiry"));
+		loaderThreads = Integer.parseInt(System.getProperty("loaderThreads", String.valueOf(loaderThreads)));
+		pipelineDml = Boolean.parseBoolean(System.getProperty("pipelineDml"));
+		maxDmlInFlight = Integer.parseInt(System.getProperty("maxDmlInFlight", "32"));
+		batchDml = Boolean.parseBoolean(System.getProperty("batchDml"));
+		maxBatchStatements = Integer.parseInt(System.getProperty("maxBatchStatements", "100"));
+		maxBatchBytes = Integer.parseInt(System.getProperty("maxBatchBytes", "5120"));
+		schemaAgreementTimeout = Integer.parseInt(System.getProperty("schemaAgreementTimeout", "20"));
+		schemaAgreementDataCenters = new HashSet<>(Splitter.on(',').trimResults().omitEmptyStrings()
+				.splitToList(System.getProperty("schemaAgreementDataCenters", "")));
+		schemaAgreementKeyspaceScope = Boolean.parseBoolean(System.getProperty("schemaAgreementKeyspaceScope"));
+		deferSchemaAgreement = Boolean.parseBoolean(System.getProperty("deferSchemaAgreement"));
+		migrationParallelism = Integer.parseInt(System.getProperty("migrationParallelism", "1"));
+		digestCachePath = System.getProperty("digestCachePath");
+		digestAlgorithm = System.getProperty("digestAlgorithm", "md5");
+		reportPath = System.getProperty("reportPath");
+		checkpointInterval = Integer.parseInt(System.getProperty("checkpointInterval", "0"));
+		externalTimeout = Integer.parseInt(System.getProperty("externalTimeout", "0"));
+		baselineFile = System.getProperty("baselineFile");
+		baselineLogFile = System.getProperty("baselineLogFile");
+		clusteredLedger = Boolean.parseBoolean(System.getProperty("clusteredLedger"));
 	}
 
 	public MigrationParameters(Boolean override, HandlerClass handlerClass, File migrationFile, String host, String keyspace, String location, String migrationsPath, String password, String username, int port, String truststorePassword, String truststorePath, String keystorePassword, String keystorePath, String migrationsLogFile) {
@@ -97,6 +159,233 @@ public class MigrationParameters {
 		this.override = override;
 	}
 
+	public boolean getPreflight() {
+		return preflight;
+	}
+
+	public void setPreflight(boolean preflight) {
+		this.preflight = preflight;
+	}
+
+	public int getLockTtl() {
+		return lockTtl;
+	}
+
+	public void setLockTtl(int lockTtl) {
+		this.lockTtl = lockTtl;
+	}
+
+	/**
+	 * The threshold as set, kept below the lock ttl whichever setter ran last.
+	 */
+	public int getLockRenewThreshold() {
+		return renewThreshold(lockTtl, lockRenewThreshold);
+	}
+
+	public void setLockRenewThreshold(int lockRenewThreshold) {
+		this.lockRenewThreshold = lockRenewThreshold;
+	}
+
+	public boolean getLockHeartbeat() {
+		return lockHeartbeat;
+	}
+
+	public void setLockHeartbeat(boolean lockHeartbeat) {
+		this.lockHeartbeat = lockHeartbeat;
+	}
+
+	public long getLockRetryInitialDelay() {
+		return lockRetryInitialDelay;
+	}
+
+	public void setLockRetryInitialDelay(long lockRetryInitialDelay) {
+		this.lockRetryInitialDelay = lockRetryInitialDelay;
+	}
+
+	public long getLockRetryMaxDelay() {
+		return lockRetryMaxDelay;
+	}
+
+	public void setLockRetryMaxDelay(long lockRetryMaxDelay) {
+		this.lockRetryMaxDelay = lockRetryMaxDelay;
+	}
+
+	public int getLockWaitTimeout() {
+		return lockWaitTimeout;
+	}
+
+	public void setLockWaitTimeout(int lockWaitTimeout) {
+		this.lockWaitTimeout = lockWaitTimeout;
+	}
+
+	public boolean getLockWaitForExpiry() {
+		return lockWaitForExpiry;
+	}
+
+	public void setLockWaitForExpiry(boolean lockWaitForExpiry) {
+		this.lockWaitForExpiry = lockWaitForExpiry;
+	}
+
+	public int getLoaderThreads() {
+		return loaderThreads;
+	}
+
+	public void setLoaderThreads(int loaderThreads) {
+		this.loaderThreads = loaderThreads;
+	}
+
+	public boolean getPipelineDml() {
+		return pipelineDml;
+	}
+
+	public void setPipelineDml(boolean pipelineDml) {
+		this.pipelineDml = pipelineDml;
+	}
+
+	public int getMaxDmlInFlight() {
+		return maxDmlInFlight;
+	}
+
+	public void setMaxDmlInFlight(int maxDmlInFlight) {
+		this.maxDmlInFlight = maxDmlInFlight;
+	}
+
+	public boolean getBatchDml() {
+		return batchDml;
+	}
+
+	public void setBatchDml(boolean batchDml) {
+		this.batchDml = batchDml;
+	}
+
+	public int getMaxBatchStatements() {
+		return maxBatchStatements;
+	}
+
+	public void setMaxBatchStatements(int maxBatchStatements) {
+		this.maxBatchStatements = maxBatchStatements;
+	}
+
+	public int getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	public void setMaxBatchBytes(int maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	public int getSchemaAgreementTimeout() {
+		return schemaAgreementTimeout;
+	}
+
+	public void setSchemaAgreementTimeout(int schemaAgreementTimeout) {
+		this.schemaAgreementTimeout = schemaAgreementTimeout;
+	}
+
+	public Set<String> getSchemaAgreementDataCenters() {
+		return schemaAgreementDataCenters;
+	}
+
+	public void setSchemaAgreementDataCenters(Set<String> schemaAgreementDataCenters) {
+		this.schemaAgreementDataCenters = schemaAgreementDataCenters;
+	}
+
+	public boolean getSchemaAgreementKeyspaceScope() {
+		return schemaAgreementKeyspaceScope;
+	}
+
+	public void setSchemaAgreementKeyspaceScope(boolean schemaAgreementKeyspaceScope) {
+		this.schemaAgreementKeyspaceScope = schemaAgreementKeyspaceScope;
+	}
+
+	public boolean getDeferSchemaAgreement() {
+		return deferSchemaAgreement;
+	}
+
+	public void setDeferSchemaAgreement(boolean deferSchemaAgreement) {
+		this.deferSchemaAgreement = deferSchemaAgreement;
+	}
+
+	public int getMigrationParallelism() {
+		return migrationParallelism;
+	}
+
+	public void setMigrationParallelism(int migrationParallelism) {
+		this.migrationParallelism = migrationParallelism;
+	}
+
+	public String getDigestCachePath() {
+		return digestCachePath;
+	}
+
+	public void setDigestCachePath(String digestCachePath) {
+		this.digestCachePath = digestCachePath;
+	}
+
+	public String getDigestAlgorithm() {
+		return digestAlgorithm;
+	}
+
+	public void setDigestAlgorithm(String digestAlgorithm) {
+		this.digestAlgorithm = digestAlgorithm;
+	}
+
+	public MigrationMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void setMetrics(MigrationMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public String getReportPath() {
+		return reportPath;
+	}
+
+	public void setReportPath(String reportPath) {
+		this.reportPath = reportPath;
+	}
+
+	public int getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	public void setCheckpointInterval(int checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	public int getExternalTimeout() {
+		return externalTimeout;
+	}
+
+	public void setExternalTimeout(int externalTimeout) {
+		this.externalTimeout = externalTimeout;
+	}
+
+	public String getBaselineFile() {
+		return baselineFile;
+	}
+
+	public void setBaselineFile(String baselineFile) {
+		this.baselineFile = baselineFile;
+	}
+
+	public String getBaselineLogFile() {
+		return baselineLogFile;
+	}
+
+	public void setBaselineLogFile(String baselineLogFile) {
+		this.baselineLogFile = baselineLogFile;
+	}
+
+	public boolean getClusteredLedger() {
+		return clusteredLedger;
+	}
+
+	public void setClusteredLedger(boolean clusteredLedger) {
+		this.clusteredLedger = clusteredLedger;
+	}
+
 	public HandlerClass getHandlerClass() {
 		return handlerClass;
 	}
@@ -238,6 +527,34 @@ public class MigrationParameters {
 		private String keystorePassword;
 
 		private Session session;
+		private boolean preflight;
+		private int lockTtl = 60;
+		private Integer lockRenewThreshold;
+		private boolean lockHeartbeat = true;
+		private long lockRetryInitialDelay = 250;
+		private long lockRetryMaxDelay = 4000;
+		private int lockWaitTimeout;
+		private boolean lockWaitForExpiry;
+		private int loaderThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+		private boolean pipelineDml;
+		private int maxDmlInFlight = 32;
+		private boolean batchDml;
+		private int maxBatchStatements = 100;
+		private int maxBatchBytes = 5120;
+		private int schemaAgreementTimeout = 20;
+		private Set<String> schemaAgreementDataCenters = Collections.emptySet();
+		private boolean schemaAgreementKeyspaceScope;
+		private boolean deferSchemaAgreement;
+		private int migrationParallelism = 1;
+		private String digestCachePath;
+		private String digestAlgorithm = "md5";
+		private MigrationMetrics metrics = MigrationMetrics.NOOP;
+		private String reportPath;
+		private int checkpointInterval = 0;
+		private int externalTimeout;
+		private String baselineFile;
+		private String baselineLogFile;
+		private boolean clusteredLedger;
 
 		public Builder() {}
 
@@ -306,14 +623,277 @@ public class MigrationParameters {
 			return this;
 		}
 
-		public MigrationParameters build() {
+		/**
+		 * Check the changelog against the migrations table before taking the lock and skip the run when nothing is pending.
+		 */
+		public Builder setPreflight(boolean preflight) {
+			this.preflight = preflight;
+			return this;
+		}
+
+		public Builder setLockTtl(int lockTtl) {
+			this.lockTtl = lockTtl;
+			return this;
+		}
+
+		/**
+		 * Seconds of remaining lock lease below which statements renew the lock before running. Defaults to half
+		 * the lock ttl, and is kept below the ttl so a fresh lease doesn't need renewing.
+		 */
+		public Builder setLockRenewThreshold(int lockRenewThreshold) {
+			this.lockRenewThreshold = lockRenewThreshold;
+			return this;
+		}
+
+		/**
+		 * Renew the lock from a background thread every third of the lock ttl while migrations run.
+		 */
+		public Builder setLockHeartbeat(boolean lockHeartbeat) {
+			this.lockHeartbeat = lockHeartbeat;
+			return this;
+		}
+
+		/**
+		 * Milliseconds to back off after the first failed lock attempt, doubling up to the max delay.
+		 */
+		public Builder setLockRetryInitialDelay(long lockRetryInitialDelay) {
+			this.lockRetryInitialDelay = lockRetryInitialDelay;
+			return this;
+		}
+
+		public Builder setLockRetryMaxDelay(long lockRetryMaxDelay) {
+			this.lockRetryMaxDelay = lockRetryMaxDelay;
+			return this;
+		}
+
+		/**
+		 * Seconds to wait for the lock before failing, 0 waits forever.
+		 */
+		public Builder setLockWaitTimeout(int lockWaitTimeout) {
+			this.lockWaitTimeout = lockWaitTimeout;
+			return this;
+		}
+
+		/**
+		 * Sleep until the holder's lock expires instead of backing off.
+		 */
+		public Builder setLockWaitForExpiry(boolean lockWaitForExpiry) {
+			this.lockWaitForExpiry = lockWaitForExpiry;
+			return this;
+		}
+
+		/**
+		 * Number of threads reading and hashing migration files while the connection is set up.
+		 */
+		public Builder setLoaderThreads(int loaderThreads) {
+			this.loaderThreads = loaderThreads;
+			return this;
+		}
+
+		/**
+		 * Run consecutive INSERT, UPDATE and DELETE statements asynchronously. DDL and conditional statements still
+		 * run one at a time after the writes before them have completed.
+		 */
+		public Builder setPipelineDml(boolean pipelineDml) {
+			this.pipelineDml = pipelineDml;
+			return this;
+		}
+
+		public Builder setMaxDmlInFlight(int maxDmlInFlight) {
+			this.maxDmlInFlight = maxDmlInFlight;
+			return this;
+		}
+
+		/**
+		 * Group consecutive writes to the same partition of a table into unlogged batches.
+		 */
+		public Builder setBatchDml(boolean batchDml) {
+			this.batchDml = batchDml;
+			return this;
+		}
+
+		public Builder setMaxBatchStatements(int maxBatchStatements) {
+			this.maxBatchStatements = maxBatchStatements;
+			return this;
+		}
 
+		/**
+		 * Cap on the CQL text in a batch, defaulting to Cassandra's batch size warning threshold of 5kb.
+		 */
+		public Builder setMaxBatchBytes(int maxBatchBytes) {
+			this.maxBatchBytes = maxBatchBytes;
+			return this;
+		}
+
+		/**
+		 * Seconds to wait for schema agreement after a schema change before failing the migration.
+		 */
+		public Builder setSchemaAgreementTimeout(int schemaAgreementTimeout) {
+			this.schemaAgreementTimeout = schemaAgreementTimeout;
+			return this;
+		}
+
+		/**
+		 * Only wait for nodes in these data centers to agree on the schema.
+		 */
+		public Builder setSchemaAgreementDataCenters(Set<String> schemaAgreementDataCenters) {
+			this.schemaAgreementDataCenters = schemaAgreementDataCenters;
+			return this;
+		}
+
+		/**
+		 * Only wait for nodes in the data centers the keyspace is replicated to, when it uses NetworkTopologyStrategy.
+		 */
+		public Builder setSchemaAgreementKeyspaceScope(boolean schemaAgreementKeyspaceScope) {
+			this.schemaAgreementKeyspaceScope = schemaAgreementKeyspaceScope;
+			return this;
+		}
+
+		/**
+		 * Let consecutive independent schema changes in a file run back to back, waiting for agreement once before
+		 * anything that depends on them.
+		 */
+		public Builder setDeferSchemaAgreement(boolean deferSchemaAgreement) {
+			this.deferSchemaAgreement = deferSchemaAgreement;
+			return this;
+		}
+
+		/**
+		 * Number of migrations to run at the same time. Migrations touching the same keyspaces, tables or types
+		 * still run in changelog order.
+		 */
+		public Builder setMigrationParallelism(int migrationParallelism) {
+			this.migrationParallelism = migrationParallelism;
+			return this;
+		}
+
+		/**
+		 * File to keep migration digests in between runs, so unchanged migrations aren't read and hashed again.
+		 */
+		public Builder setDigestCachePath(String digestCachePath) {
+			this.digestCachePath = digestCachePath;
+			return this;
+		}
+
+		/**
+		 * Algorithm newly applied migrations are recorded with: md5, sha256 or murmur3_128. Rows recorded with
+		 * any of them keep verifying when it changes.
+		 */
+		public Builder setDigestAlgorithm(String digestAlgorithm) {
+			this.digestAlgorithm = digestAlgorithm;
+			return this;
+		}
+
+		/**
+		 * Receives lock, statement, schema agreement, ledger and per-migration timings.
+		 */
+		public Builder setMetrics(MigrationMetrics metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+
+		/**
+		 * File to write a JSON report of each run to. When it is a directory, each run gets its own file in it. When
+		 * several keyspaces are migrated together, a file gets the keyspace added to its name, like report-test.json.
+		 */
+		public Builder setReportPath(String reportPath) {
+			this.reportPath = reportPath;
+			return this;
+		}
+
+		/**
+		 * Records progress through a migration every this many statements, so a failed migration is resumed after
+		 * its last checkpoint instead of run again from the top. 0 turns checkpoints off.
+		 */
+		public Builder setCheckpointInterval(int checkpointInterval) {
+			this.checkpointInterval = checkpointInterval;
+			return this;
+		}
+
+		/**
+		 * Seconds the external handler waits for its command to run a migration before killing it, 0 waits forever.
+		 */
+		public Builder setExternalTimeout(int externalTimeout) {
+			this.externalTimeout = externalTimeout;
+			return this;
+		}
+
+		/**
+		 * Snapshot of the schema the migrations in the baseline log file build up, run instead of them on an empty
+		 * keyspace. A classpath resource like the migrations in a log file.
+		 */
+		public Builder setBaselineFile(String baselineFile) {
+			this.baselineFile = baselineFile;
+			return this;
+		}
+
+		/**
+		 * Migrations the baseline replaces, one per line, recorded as applied when the baseline runs.
+		 */
+		public Builder setBaselineLogFile(String baselineLogFile) {
+			this.baselineLogFile = baselineLogFile;
+			return this;
+		}
+
+		/**
+		 * Keep the ledger in the migration_ledger table, one partition per keyspace clustered by migration name, so
+		 * it is read back from a single partition. Rows also record when, by whom and how long each migration ran.
+		 * The migrations table is copied over on the first run with it, after which it has to stay on.
+		 */
+		public Builder setClusteredLedger(boolean clusteredLedger) {
+			this.clusteredLedger = clusteredLedger;
+			return this;
+		}
+
+		public MigrationParameters build() {
+			MigrationParameters parameters;
 			if (session == null) {
-				return new MigrationParameters(false, HandlerClass.MigrationHandler, migrationFile, host, keyspace, null, migrationsPath, password, username, port, truststorePassword, truststorePath, keystorePassword, keystorePath, migrationsLogFile);
+				parameters = new MigrationParameters(false, HandlerClass.MigrationHandler, migrationFile, host, keyspace, null, migrationsPath, password, username, port, truststorePassword, truststorePath, keystorePassword, keystorePath, migrationsLogFile);
 			} else {
-				return new MigrationParameters(migrationsLogFile, keyspace, session);
+				parameters = new MigrationParameters(migrationsLogFile, keyspace, session);
+			}
+			parameters.setPreflight(preflight);
+			parameters.setLockTtl(lockTtl);
+			if (lockRenewThreshold != null) {
+				parameters.setLockRenewThreshold(lockRenewThreshold);
 			}
+			parameters.setLockHeartbeat(lockHeartbeat);
+			parameters.setLockRetryInitialDelay(lockRetryInitialDelay);
+			parameters.setLockRetryMaxDelay(lockRetryMaxDelay);
+			parameters.setLockWaitTimeout(lockWaitTimeout);
+			parameters.setLockWaitForExpiry(lockWaitForExpiry);
+			parameters.setLoaderThreads(loaderThreads);
+			parameters.setPipelineDml(pipelineDml);
+			parameters.setMaxDmlInFlight(maxDmlInFlight);
+			parameters.setBatchDml(batchDml);
+			parameters.setMaxBatchStatements(maxBatchStatements);
+			parameters.setMaxBatchBytes(maxBatchBytes);
+			parameters.setSchemaAgreementTimeout(schemaAgreementTimeout);
+			parameters.setSchemaAgreementDataCenters(schemaAgreementDataCenters);
+			parameters.setSchemaAgreementKeyspaceScope(schemaAgreementKeyspaceScope);
+			parameters.setDeferSchemaAgreement(deferSchemaAgreement);
+			parameters.setMigrationParallelism(migrationParallelism);
+			parameters.setDigestCachePath(digestCachePath);
+			parameters.setDigestAlgorithm(digestAlgorithm);
+			parameters.setMetrics(metrics);
+			parameters.setReportPath(reportPath);
+			parameters.setCheckpointInterval(checkpointInterval);
+			parameters.setExternalTimeout(externalTimeout);
+			parameters.setBaselineFile(baselineFile);
+			parameters.setBaselineLogFile(baselineLogFile);
+			parameters.setClusteredLedger(clusteredLedger);
+			return parameters;
+		}
+	}
+
+	/**
+	 * Half the ttl unless set, and below the ttl either way, otherwise every statement would renew the lock.
+	 */
+	static int renewThreshold(int lockTtl, Integer lockRenewThreshold) {
+		if (lockRenewThreshold == null) {
+			return lockTtl / 2;
 		}
+		return Math.max(0, Math.min(lockRenewThreshold, lockTtl - 1));
 	}
 
 	public enum HandlerClass {
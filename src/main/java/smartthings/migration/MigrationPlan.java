@@ -0,0 +1,129 @@
+package smartthings.migration;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Migrations with the earlier migrations each of them has to wait for, built by {@link MigrationPlanner}.
+ */
+public class MigrationPlan {
+	private static final Logger logger = LoggerFactory.getLogger(MigrationPlan.class);
+
+	private final List<Step> steps;
+
+	MigrationPlan(List<Step> steps) {
+		this.steps = steps;
+	}
+
+	public int size() {
+		return steps.size();
+	}
+
+	/**
+	 * Names of the migrations the named migration has to wait for.
+	 */
+	public List<String> getDependencies(String name) {
+		List<String> names = new ArrayList<>();
+		for (Step step : steps) {
+			if (step.migration.getName().equals(name)) {
+				for (Step dependency : step.dependencies) {
+					names.add(dependency.migration.getName());
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Hands each migration to the handler once everything it depends on has completed, running up to parallelism
+	 * migrations at a time. After the first failure no new migrations are started; the ones already running are
+	 * allowed to finish and the failure is rethrown.
+	 */
+	public void execute(Handler handler, int parallelism) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism), new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat("migration-worker-%d")
+				.build());
+		CompletionService<Step> completion = new ExecutorCompletionService<>(executor);
+		Throwable failure = null;
+		int running = 0;
+		int completed = 0;
+		try {
+			for (Step step : steps) {
+				step.remaining = step.dependencies.size();
+				if (step.remaining == 0) {
+					submit(completion, handler, step);
+					running++;
+				}
+			}
+			while (running > 0) {
+				Future<Step> done = completion.take();
+				running--;
+				try {
+					Step step = done.get();
+					completed++;
+					if (failure != null) {
+						continue;
+					}
+					for (Step dependent : step.dependents) {
+						if (--dependent.remaining == 0) {
+							submit(completion, handler, dependent);
+							running++;
+						}
+					}
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+						logger.error("Migration failed, waiting for {} running migrations before stopping", running);
+					}
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (failure instanceof CassandraMigrationException) {
+			throw (CassandraMigrationException) failure;
+		} else if (failure != null) {
+			throw new CassandraMigrationException("Failed while running migrations.", failure instanceof Exception
+					? (Exception) failure : new RuntimeException(failure));
+		}
+		logger.info("Ran {} migrations with up to {} at a time", completed, parallelism);
+	}
+
+	private static void submit(CompletionService<Step> completion, Handler handler, Step step) {
+		completion.submit(() -> {
+			handler.handle(step.migration);
+			return step;
+		});
+	}
+
+	static class Step {
+		private final MigrationFile migration;
+		private final Set<Step> dependencies = new LinkedHashSet<>();
+		private final List<Step> dependents = new ArrayList<>();
+		private int remaining;
+
+		Step(MigrationFile migration) {
+			this.migration = migration;
+		}
+
+		void dependOn(Step step) {
+			if (step != null && step != this && dependencies.add(step)) {
+				step.dependents.add(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package smartthings.migration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import smartthings.cassandra.CqlStatement;
+import smartthings.cassandra.CqlStatementReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Works out which migrations can run at the same time. Each migration's statements are read to find the keyspaces,
+ * tables, types and other objects it touches, and a migration depends on every earlier migration that touched one
+ * of the same objects, so those keep their changelog order.
+ *
+ * Object access is exclusive, while touching anything in a keyspace is a shared access to the keyspace that only
+ * conflicts with creating, altering or dropping the keyspace itself. Migrations that switch keyspaces with USE, or
+ * contain statements the planner doesn't understand, run on their own with everything before them complete.
+ */
+public class MigrationPlanner {
+	private static final Logger logger = LoggerFactory.getLogger(MigrationPlanner.class);
+
+	private static final String EVERYTHING = "*";
+
+	private final Map<String, MigrationPlan.Step> lastExclusive = new HashMap<>();
+	private final Map<String, List<MigrationPlan.Step>> sharedSince = new HashMap<>();
+
+	private MigrationPlanner() {
+	}
+
+	/**
+	 * @param migrations the migrations to run, in changelog order
+	 * @param keyspace keyspace unqualified names resolve to
+	 */
+	public static MigrationPlan plan(List<MigrationFile> migrations, String keyspace) {
+		return new MigrationPlanner().build(migrations, keyspace);
+	}
+
+	private MigrationPlan build(List<MigrationFile> migrations, String keyspace) {
+		List<Footprint> footprints = new ArrayList<>(migrations.size());
+		Set<String> types = new HashSet<>();
+		for (MigrationFile migration : migrations) {
+			Footprint footprint = new Footprint(migration);
+			footprint.read(keyspace, types);
+			if (footprint.usedKeyspace != null) {
+				keyspace = footprint.usedKeyspace;
+			}
+			footprints.add(footprint);
+		}
+
+		List<MigrationPlan.Step> steps = new ArrayList<>(footprints.size());
+		for (Footprint footprint : footprints) {
+			footprint.addTypeReferences(types);
+			MigrationPlan.Step step = new MigrationPlan.Step(footprint.migration);
+			if (footprint.alone) {
+				exclusive(step, EVERYTHING);
+			} else {
+				shared(step, EVERYTHING);
+				for (String key : footprint.exclusive) {
+					exclusive(step, key);
+				}
+				for (String key : footprint.shared) {
+					if (!footprint.exclusive.contains(key)) {
+						shared(step, key);
+					}
+				}
+			}
+			steps.add(step);
+		}
+		return new MigrationPlan(steps);
+	}
+
+	private void exclusive(MigrationPlan.Step step, String key) {
+		step.dependOn(lastExclusive.get(key));
+		for (MigrationPlan.Step reader : sharedSince.getOrDefault(key, new ArrayList<>())) {
+			step.dependOn(reader);
+		}
+		lastExclusive.put(key, step);
+		sharedSince.remove(key);
+	}
+
+	private void shared(MigrationPlan.Step step, String key) {
+		step.dependOn(lastExclusive.get(key));
+		sharedSince.computeIfAbsent(key, k -> new ArrayList<>()).add(step);
+	}
+
+	private static class Footprint {
+		private final MigrationFile migration;
+		private final Set<String> exclusive = new HashSet<>();
+		private final Set<String> shared = new HashSet<>();
+		// schema changes by the keyspace they were made in, checked for type references once all types are known
+		private final Map<CqlStatement, String> schemaChanges = new LinkedHashMap<>();
+		private boolean alone;
+		private String usedKeyspace;
+
+		Footprint(MigrationFile migration) {
+			this.migration = migration;
+		}
+
+		void read(String keyspace, Set<String> types) {
+			try (CqlStatementReader reader = new CqlStatementReader(migration.getSource().openBufferedStream())) {
+				String text;
+				while ((text = reader.next()) != null) {
+					add(CqlStatement.parse(text), keyspace, types);
+				}
+			} catch (IOException e) {
+				logger.warn("Could not read " + migration.getName() + " to plan it, running it on its own", e);
+				alone = true;
+			}
+		}
+
+		private void add(CqlStatement statement, String keyspace, Set<String> types) {
+			if (statement.getUsedKeyspace() != null) {
+				usedKeyspace = statement.getUsedKeyspace();
+				alone = true;
+				return;
+			}
+			if (statement.isKeyspaceChange()) {
+				exclusive.add(keyspaceKey(statement.getSchemaObject()));
+				return;
+			}
+
+			Set<String> objects = statement.getObjects(keyspace);
+			if (objects.isEmpty()) {
+				alone = true;
+				return;
+			}
+			switch (statement.getKind()) {
+				case DDL:
+					if ("TYPE".equals(statement.getSchemaObjectType())) {
+						types.add(statement.getSchemaObject());
+					}
+					schemaChanges.put(statement, keyspace);
+					break;
+				case DML:
+					break;
+				default:
+					if (!statement.getKeyword().equals("SELECT") && !statement.getKeyword().equals("TRUNCATE")) {
+						alone = true;
+						return;
+					}
+			}
+			for (String object : objects) {
+				exclusive.add(object);
+				shared.add(keyspaceKey(object.substring(0, object.indexOf('.'))));
+			}
+		}
+
+		// a table using a type that another migration creates or alters depends on that migration
+		void addTypeReferences(Set<String> types) {
+			for (Map.Entry<CqlStatement, String> schemaChange : schemaChanges.entrySet()) {
+				for (String type : types) {
+					if (schemaChange.getKey().mentions(Collections.singleton(type))) {
+						exclusive.add(schemaChange.getValue() + "." + type);
+					}
+				}
+			}
+		}
+
+		private static String keyspaceKey(String keyspace) {
+			return keyspace + ".*";
+		}
+	}
+}
@@ -1,50 +1,179 @@
 package smartthings.migration;
 
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Session;
 import com.google.common.base.Charsets;
-import com.google.common.io.CharSource;
-import com.google.common.io.Files;
-import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import smartthings.cassandra.CassandraConnection;
+import smartthings.cassandra.MigrationLedger;
+import smartthings.metrics.CompositeMigrationMetrics;
+import smartthings.metrics.MigrationMetrics;
+import smartthings.metrics.RunReport;
+import smartthings.util.MigrationDigest;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MigrationRunner {
 	private Logger logger = LoggerFactory.getLogger(MigrationRunner.class);
 	private boolean running;
 
-	private String trimLeadingSlash(String s) {
-		if (s.startsWith("/")) {
-			s = s.substring(1);
+	public void run(MigrationParameters migrationParameters) {
+		run(migrationParameters, migrationParameters.getSession(), false);
+	}
+
+	/**
+	 * Migrates several keyspaces over a single cluster, built from the connection settings the parameters share.
+	 * Parameters carrying their own session, or connecting differently from the others, are rejected with an
+	 * IllegalArgumentException before anything runs; migrate those with {@link #run(MigrationParameters)}.
+	 * Migrations use unqualified names, so a session can't be shared by keyspaces being migrated at the same time.
+	 * Up to parallelism keyspaces are migrated at a time, each on a session no other keyspace is using, switched to
+	 * it with USE, so at most parallelism sessions are opened whatever the number of keyspaces. Each keyspace has its
+	 * own ledger and lock, and a report path that is a file gets the keyspace added to its name. After a keyspace
+	 * fails no further keyspaces are started, and the first failure is rethrown once the running ones finish.
+	 */
+	public void run(List<MigrationParameters> keyspaces, int parallelism) {
+		if (keyspaces.isEmpty()) {
+			return;
+		}
+		MigrationParameters first = keyspaces.get(0);
+		for (MigrationParameters parameters : keyspaces) {
+			if (parameters.getSession() != null) {
+				throw new IllegalArgumentException("Keyspace " + parameters.getKeyspace() + " has its own session, keyspaces migrated together share a cluster built from their connection settings");
+			}
+			if (!sameCluster(first, parameters)) {
+				throw new IllegalArgumentException("Keyspace " + parameters.getKeyspace() + " connects differently from keyspace " + first.getKeyspace() + ", keyspaces migrated together share one cluster");
+			}
+		}
+		running = true;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism), new ThreadFactoryBuilder()
+				.setDaemon(true)
+				.setNameFormat("keyspace-migration-%d")
+				.build());
+		AtomicBoolean failed = new AtomicBoolean();
+		// sessions not migrating a keyspace right now, closed with the cluster
+		Queue<Session> idle = new ConcurrentLinkedQueue<>();
+		try (Cluster cluster = new CassandraConnection(keyspaces.get(0), null).buildCluster()) {
+			List<Future<?>> runs = new ArrayList<>();
+			for (MigrationParameters parameters : keyspaces) {
+				runs.add(executor.submit(() -> {
+					if (failed.get()) {
+						logger.warn("Not migrating keyspace " + parameters.getKeyspace() + " after an earlier failure.");
+						return;
+					}
+					Session session = idle.poll();
+					if (session == null) {
+						session = cluster.connect();
+					}
+					try {
+						new MigrationRunner().run(parameters, session, keyspaces.size() > 1);
+					} catch (RuntimeException e) {
+						failed.set(true);
+						throw e;
+					} finally {
+						idle.add(session);
+					}
+				}));
+			}
+
+			CassandraMigrationException failure = null;
+			for (Future<?> run : runs) {
+				try {
+					run.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (failure == null) {
+						failure = cause instanceof CassandraMigrationException ? (CassandraMigrationException) cause
+								: new CassandraMigrationException("Failed while running migrations.", cause instanceof Exception
+										? (Exception) cause : new RuntimeException(cause));
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} catch (CassandraMigrationException e) {
+			throw e;
+		} catch (Exception e) {
+			logger.error("Failed while running migrations.", e);
+			throw new CassandraMigrationException("Failed while running migrations.", e);
+		} finally {
+			executor.shutdownNow();
+			running = false;
 		}
-		return s;
 	}
 
-	private CharSource loadResource(String r) {
-		r = trimLeadingSlash(r);
-		return Resources.asCharSource(Resources.getResource(r), Charsets.UTF_8);
+	private static boolean sameCluster(MigrationParameters a, MigrationParameters b) {
+		return Objects.equals(a.getHost(), b.getHost()) && a.getPort() == b.getPort()
+				&& Objects.equals(a.getUsername(), b.getUsername()) && Objects.equals(a.getPassword(), b.getPassword())
+				&& Objects.equals(a.getTruststorePath(), b.getTruststorePath()) && Objects.equals(a.getTruststorePassword(), b.getTruststorePassword())
+				&& Objects.equals(a.getKeystorePath(), b.getKeystorePath()) && Objects.equals(a.getKeystorePassword(), b.getKeystorePassword());
 	}
 
-	public void run(MigrationParameters migrationParameters) {
+	/**
+	 * @param sharedRun whether other keyspaces are migrated alongside, so a report written to a file is named after the keyspace
+	 */
+	private void run(MigrationParameters migrationParameters, Session session, boolean sharedRun) {
 		running = false;
+		MigrationMetrics metrics = migrationParameters.getMetrics() != null ? migrationParameters.getMetrics() : MigrationMetrics.NOOP;
+		if (migrationParameters.getReportPath() != null) {
+			metrics = new CompositeMigrationMetrics(metrics, new RunReport(new File(migrationParameters.getReportPath()), sharedRun));
+		}
+		long start = System.nanoTime();
+		Exception failure = null;
 
 		try {
 			final String myName = InetAddress.getLocalHost().getHostName().trim();
 
-			try (CassandraConnection connection = new CassandraConnection(migrationParameters, myName)) {
+			MigrationLoader loader = MigrationLoader.start(migrationParameters, metrics);
+
+			try (CassandraConnection connection = new CassandraConnection(migrationParameters, myName, session, metrics)) {
+				long phaseStart = System.nanoTime();
 				connection.connect();
-				connection.acquireLock();
+				phaseStart = phaseCompleted(metrics, "connect", phaseStart);
+				List<MigrationFile> migrations = loader.get();
+				phaseCompleted(metrics, "load", phaseStart);
+				metrics.runStarted(migrationParameters.getKeyspace(), migrations.size());
+
+				boolean preflight = migrationParameters.getPreflight();
+				if (preflight && isUpToDate(connection, migrations)) {
+					logger.info("All " + migrations.size() + " migrations already applied, skipping lock.");
+					return;
+				}
+
+				phaseStart = System.nanoTime();
+				// only give up once the holder is gone, a finished ledger alone could still belong to a run in progress,
+				// and the single row lock read comes first so waiters don't scan the ledger while the holder is still there
+				boolean locked = connection.acquireLock(() -> preflight && !connection.isLocked() && isUpToDate(connection, migrations));
+				phaseCompleted(metrics, "lock", phaseStart);
+				if (!locked) {
+					logger.info("All migrations were applied while waiting for the lock.");
+					return;
+				}
 				running = true;
 
-				doMigration(connection, migrationParameters);
+				doMigration(connection, migrationParameters, migrations, metrics);
 				running = false;
 			}
 		} catch (Exception e) {
 			running = false;
+			failure = e;
 			logger.error("Failed while running migrations.", e);
 
 			if (e instanceof CassandraMigrationException) {
@@ -52,6 +181,8 @@ public class MigrationRunner {
 			}
 
 			throw new CassandraMigrationException("Failed while running migrations.", e);
+		} finally {
+			metrics.runFinished(migrationParameters.getKeyspace(), System.nanoTime() - start, failure);
 		}
 	}
 
@@ -59,7 +190,27 @@ public class MigrationRunner {
 		return running;
 	}
 
-	private void doMigration(CassandraConnection connection, MigrationParameters migrationParameters) throws IOException {
+	/**
+	 * Lock free check of the changelog against a single read of the migrations table. Migrations still marked
+	 * pending may be running or about to be rolled back, so they don't count as applied.
+	 */
+	private boolean isUpToDate(CassandraConnection connection, List<MigrationFile> migrations) {
+		MigrationLedger ledger = connection.readLedger();
+		for (MigrationFile migration : migrations) {
+			if (ledger.isPending(migration.getLedgerName())) {
+				logger.info("Migration " + migration.getName() + " has not finished, migration required.");
+				return false;
+			}
+			if (!migration.matches(ledger.getSha(migration.getLedgerName()))) {
+				logger.info("Migration " + migration.getName() + " has not been applied, migration required.");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void doMigration(CassandraConnection connection, MigrationParameters migrationParameters, List<MigrationFile> migrations,
+			MigrationMetrics metrics) throws InterruptedException, IOException {
 
 
 		MigrationParameters.HandlerClass handlerClass = migrationParameters.getHandlerClass(); //connection:connection, parameters:parameters
@@ -78,41 +229,107 @@ public class MigrationRunner {
 				break;
 		}
 
+		long phaseStart = System.nanoTime();
 		connection.setupMigration();
+		phaseStart = phaseCompleted(metrics, "setup", phaseStart);
 
 		logger.info("Starting Migration.... ");
 
 		connection.backfillMigrations(); //Cleans up old style migrations with full file path
-		if (migrationParameters.getMigrationsLogFile() != null) {
-			logger.info("Using Migration Log File: " + migrationParameters.getMigrationsLogFile());
-			List<String> migrations = loadResource(migrationParameters.getMigrationsLogFile()).readLines();
-			for (String file : migrations) {
-				if (!file.equalsIgnoreCase("")) {
-					String cql;
-					try {
-						cql = loadResource(file).read();
-					} catch (IOException e) {
-						throw new CassandraMigrationException("Error loading cql file " + file, e);
-					}
-					handler.handle(file, cql);
-				}
-			}
-		} else if (migrationParameters.getMigrationFile() != null) {
-			File f = migrationParameters.getMigrationFile();
-			handler.handle(f.getName(), Files.toString(f, Charsets.UTF_8));
+		phaseStart = phaseCompleted(metrics, "backfill", phaseStart);
+		connection.loadLedger();
+		phaseStart = phaseCompleted(metrics, "ledger", phaseStart);
+		if (migrationParameters.getBaselineFile() != null) {
+			applyBaseline(connection, handler, migrationParameters, migrations);
+			phaseStart = phaseCompleted(metrics, "baseline", phaseStart);
+		}
+		int parallelism = migrationParameters.getMigrationParallelism();
+		if (parallelism > 1) {
+			runInParallel(connection, handler, migrations, parallelism);
 		} else {
-			File migrationsDir = migrationParameters.getMigrationsDir();
-			logger.info("Using migrations Directory " + migrationsDir);
-			if (migrationsDir != null) {
-				File[] files = migrationsDir.listFiles();
-				if (files != null) {
-					for (File file : files) {
-						handler.handle(file.getName(), Files.toString(file, Charsets.UTF_8));
-					}
-				} else {
-					logger.warn("No files found in migrations directory.");
-				}
+			for (MigrationFile migration : migrations) {
+				handler.handle(migration);
+			}
+		}
+		phaseCompleted(metrics, "migrate", phaseStart);
+	}
+
+	/**
+	 * Reports the phase that started at the given time and returns the time the next one starts.
+	 */
+	private static long phaseCompleted(MigrationMetrics metrics, String phase, long start) {
+		long now = System.nanoTime();
+		metrics.phaseCompleted(phase, now - start);
+		return now;
+	}
+
+	/**
+	 * On an empty keyspace, hands the baseline snapshot to the handler like any migration, so it is only marked or
+	 * run externally when the handler does that, and records the migrations it replaces as applied, so they are
+	 * skipped like any applied migration. Once the baseline is recorded, replaced migrations missing from the
+	 * ledger are recorded too, in case a run stopped in between, but only while the recorded baseline still matches
+	 * the file: a baseline squashed again under the same name may replace migrations that never ran here.
+	 * Otherwise the baseline is ignored.
+	 */
+	private void applyBaseline(CassandraConnection connection, Handler handler, MigrationParameters migrationParameters,
+			List<MigrationFile> migrations) throws IOException {
+		MigrationLedger ledger = connection.getLedger();
+		MigrationDigest algorithm = MigrationDigest.forName(migrationParameters.getDigestAlgorithm());
+		MigrationFile baseline = new MigrationFile(migrationParameters.getBaselineFile(),
+				MigrationLoader.resource(migrationParameters.getBaselineFile()), algorithm, null);
+		if (!ledger.contains(baseline.getLedgerName())) {
+			if (ledger.size() > 0 || !connection.isKeyspaceEmpty()) {
+				logger.info("Keyspace " + connection.getKeyspace() + " is not empty, ignoring baseline " + baseline.getName());
+				return;
+			}
+			logger.info("Keyspace " + connection.getKeyspace() + " is empty, applying baseline " + baseline.getName());
+			handler.handle(baseline);
+		} else if (!baseline.matches(ledger.getSha(baseline.getLedgerName()))) {
+			logger.warn("Baseline " + baseline.getName() + " changed since it was applied to keyspace " + connection.getKeyspace()
+					+ ", ignoring it");
+			return;
+		}
+
+		if (migrationParameters.getBaselineLogFile() == null) {
+			return;
+		}
+		Map<String, MigrationFile> loaded = new HashMap<>();
+		for (MigrationFile migration : migrations) {
+			loaded.put(migration.getName(), migration);
+		}
+		Map<String, String> replaced = new LinkedHashMap<>();
+		for (String name : MigrationLoader.resource(migrationParameters.getBaselineLogFile()).asCharSource(Charsets.UTF_8).readLines()) {
+			name = name.trim();
+			if (name.isEmpty() || ledger.contains(new File(name).getName())) {
+				continue;
+			}
+			MigrationFile migration = loaded.get(name);
+			if (migration == null) {
+				migration = new MigrationFile(name, MigrationLoader.resource(name), algorithm, null);
+			}
+			replaced.put(name, migration.getDigest());
+		}
+		if (!replaced.isEmpty()) {
+			logger.info("Recording " + replaced.size() + " migrations replaced by baseline " + baseline.getName());
+			connection.markMigrations(replaced);
+		}
+	}
+
+	/**
+	 * Only migrations that still have to run are planned, the rest are handed to the handler straight away.
+	 */
+	private void runInParallel(CassandraConnection connection, Handler handler, List<MigrationFile> migrations, int parallelism) throws InterruptedException {
+		MigrationLedger ledger = connection.getLedger();
+		List<MigrationFile> pending = new ArrayList<>();
+		for (MigrationFile migration : migrations) {
+			if (migration.matches(ledger.getSha(migration.getLedgerName()))) {
+				handler.handle(migration);
+			} else {
+				pending.add(migration);
 			}
 		}
+		MigrationPlan plan = MigrationPlanner.plan(pending, connection.getKeyspace());
+		logger.info("Running " + plan.size() + " pending migrations with up to " + parallelism + " at a time");
+		plan.execute(handler, parallelism);
 	}
 }
@@ -0,0 +1,201 @@
+package smartthings.util;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.stream.Collectors;
+
+/**
+ * Remembers the digests of migration sources between runs, keyed by algorithm, location and a stamp that changes
+ * with the contents: size and modification time for files, size and CRC for jar entries. A source whose stamp
+ * matches is not read at all. Sources without a usable stamp, and files modified too recently for their modification time to
+ * be trusted, are always hashed.
+ *
+ * The cache is a small binary file that several runs, in one JVM or not, can share. Saving merges the entries
+ * this run looked up into the ones already in the file, drops entries no run has looked up for a month, and keeps
+ * at most the most recently used {@value #MAX_ENTRIES}. Saves take turns on a lock file next to the cache, and each
+ * writes its own temporary file and moves it into place, so readers never see partial output.
+ */
+public class DigestCache {
+	private static final Logger logger = LoggerFactory.getLogger(DigestCache.class);
+
+	private static final int MAGIC = 0x4D444332;
+	private static final int MAX_ENTRIES = 10000;
+	private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+	// how stale an entry's last use can get before a run that uses it rewrites the file just to refresh it
+	private static final long TOUCH_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	// a file rewritten within the file system's timestamp resolution can keep its size and modification time
+	private static final long RACY_MILLIS = 2000;
+
+	// file locks are held per JVM, so saves from the same JVM also take turns on one monitor per cache file
+	private static final Map<File, Object> SAVE_MONITORS = new ConcurrentHashMap<>();
+
+	private final File file;
+	private final Map<String, Entry> previous;
+	private final Map<String, Entry> current = new ConcurrentHashMap<>();
+	private volatile boolean changed;
+
+	private DigestCache(File file, Map<String, Entry> previous) {
+		this.file = file;
+		this.previous = previous;
+	}
+
+	/**
+	 * Reads the cache file, starting empty when it is missing or can't be read.
+	 */
+	public static DigestCache load(File file) {
+		return new DigestCache(file, read(file));
+	}
+
+	private static Map<String, Entry> read(File file) {
+		Map<String, Entry> entries = new ConcurrentHashMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("not a digest cache");
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String location = in.readUTF();
+				entries.put(location, new Entry(in.readLong(), in.readLong(), in.readUTF(), in.readLong()));
+			}
+			logger.debug("Loaded {} cached digests from {}", count, file);
+		} catch (FileNotFoundException e) {
+			logger.debug("No digest cache at {}", file);
+		} catch (IOException e) {
+			logger.warn("Ignoring unreadable digest cache " + file, e);
+			entries.clear();
+		}
+		return entries;
+	}
+
+	public String digest(File source, MigrationDigest algorithm) throws IOException {
+		long modified = source.lastModified();
+		if (modified == 0 || System.currentTimeMillis() - modified < RACY_MILLIS) {
+			return algorithm.digest(Files.asByteSource(source));
+		}
+		return digest("file:" + source.getAbsolutePath(), source.length(), modified, Files.asByteSource(source), algorithm);
+	}
+
+	public String digest(URL resource, ByteSource source, MigrationDigest algorithm) throws IOException {
+		if ("file".equals(resource.getProtocol())) {
+			try {
+				return digest(new File(resource.toURI()), algorithm);
+			} catch (URISyntaxException | IllegalArgumentException e) {
+				return algorithm.digest(source);
+			}
+		}
+		if ("jar".equals(resource.getProtocol())) {
+			URLConnection connection = resource.openConnection();
+			JarEntry entry = connection instanceof JarURLConnection ? ((JarURLConnection) connection).getJarEntry() : null;
+			if (entry != null && entry.getCrc() != -1 && entry.getSize() != -1) {
+				return digest(resource.toString(), entry.getSize(), entry.getCrc(), source, algorithm);
+			}
+		}
+		return algorithm.digest(source);
+	}
+
+	/**
+	 * Merges the entries looked up since loading into the file, if any digest had to be computed or the last use
+	 * of an entry needs refreshing. The file is read again first, so entries saved by other runs since this one
+	 * loaded are kept.
+	 */
+	public synchronized void save() throws IOException {
+		long now = System.currentTimeMillis();
+		if (!changed && current.values().stream().allMatch(entry -> now - entry.used < TOUCH_MILLIS)) {
+			return;
+		}
+		File dir = file.getAbsoluteFile().getParentFile();
+		File lockFile = new File(dir, file.getName() + ".lock");
+		List<Map.Entry<String, Entry>> kept;
+		synchronized (SAVE_MONITORS.computeIfAbsent(file.getAbsoluteFile(), key -> new Object())) {
+			try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+					FileLock ignored = channel.lock()) {
+				Map<String, Entry> merged = read(file);
+				previous.forEach(merged::putIfAbsent);
+				for (Map.Entry<String, Entry> entry : current.entrySet()) {
+					merged.put(entry.getKey(), entry.getValue().usedAt(now));
+				}
+				kept = merged.entrySet().stream()
+						.filter(entry -> now - entry.getValue().used < MAX_AGE_MILLIS)
+						.sorted(Comparator.comparingLong((Map.Entry<String, Entry> entry) -> entry.getValue().used).reversed())
+						.limit(MAX_ENTRIES)
+						.collect(Collectors.toList());
+
+				File temp = File.createTempFile(file.getName() + ".save", ".tmp", dir);
+				try {
+					try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+						out.writeInt(MAGIC);
+						out.writeInt(kept.size());
+						for (Map.Entry<String, Entry> entry : kept) {
+							out.writeUTF(entry.getKey());
+							out.writeLong(entry.getValue().size);
+							out.writeLong(entry.getValue().stamp);
+							out.writeUTF(entry.getValue().digest);
+							out.writeLong(entry.getValue().used);
+						}
+					}
+					java.nio.file.Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} finally {
+					temp.delete();
+				}
+			}
+		}
+		logger.debug("Saved {} digests to {}", kept.size(), file);
+	}
+
+	private String digest(String location, long size, long stamp, ByteSource source, MigrationDigest algorithm) throws IOException {
+		String key = algorithm.getName() + " " + location;
+		Entry entry = previous.get(key);
+		if (entry == null || entry.size != size || entry.stamp != stamp) {
+			entry = new Entry(size, stamp, algorithm.digest(source), System.currentTimeMillis());
+			changed = true;
+		}
+		current.put(key, entry);
+		return entry.digest;
+	}
+
+	private static class Entry {
+		private final long size;
+		private final long stamp;
+		private final String digest;
+		// when a run last looked the entry up
+		private final long used;
+
+		Entry(long size, long stamp, String digest, long used) {
+			this.size = size;
+			this.stamp = stamp;
+			this.digest = digest;
+			this.used = used;
+		}
+
+		Entry usedAt(long time) {
+			return new Entry(size, stamp, digest, time);
+		}
+	}
+}
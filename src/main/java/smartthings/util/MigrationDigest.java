@@ -0,0 +1,82 @@
+package smartthings.util;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * How migrations are fingerprinted in the migrations table. The recorded value carries the name of the algorithm
+ * as a prefix, for example {@code sha256:9f86...}, except for MD5 which is stored as bare hex like every row written
+ * before other algorithms were supported. A recorded value can be checked whatever algorithm is configured now.
+ */
+public interface MigrationDigest {
+	MigrationDigest MD5 = new HashFunctionDigest("md5", Hashing.md5());
+	MigrationDigest SHA256 = new HashFunctionDigest("sha256", Hashing.sha256());
+	MigrationDigest MURMUR3_128 = new HashFunctionDigest("murmur3_128", Hashing.murmur3_128());
+
+	List<MigrationDigest> ALL = Arrays.asList(MD5, SHA256, MURMUR3_128);
+
+	String getName();
+
+	/**
+	 * Streams the bytes of the source through the hash and returns the value to record.
+	 */
+	String digest(ByteSource source) throws IOException;
+
+	static MigrationDigest forName(String name) {
+		for (MigrationDigest digest : ALL) {
+			if (digest.getName().equals(name.toLowerCase(Locale.ROOT).replace("-", ""))) {
+				return digest;
+			}
+		}
+		throw new IllegalArgumentException("Unknown digest algorithm " + name);
+	}
+
+	/**
+	 * The algorithm a recorded value was computed with, or null if it doesn't name a supported one.
+	 */
+	static MigrationDigest forRecorded(String recorded) {
+		int colon = recorded.indexOf(':');
+		if (colon == -1) {
+			return MD5;
+		}
+		String name = recorded.substring(0, colon);
+		for (MigrationDigest digest : ALL) {
+			if (digest != MD5 && digest.getName().equals(name)) {
+				return digest;
+			}
+		}
+		return null;
+	}
+
+	class HashFunctionDigest implements MigrationDigest {
+		private final String name;
+		private final HashFunction function;
+
+		HashFunctionDigest(String name, HashFunction function) {
+			this.name = name;
+			this.function = function;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public String digest(ByteSource source) throws IOException {
+			String hex = source.hash(function).toString();
+			return this == MD5 ? hex : name + ":" + hex;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
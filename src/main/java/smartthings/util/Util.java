@@ -2,6 +2,7 @@ package smartthings.util;
 
 import com.google.common.base.Charsets;
 import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
 import com.google.common.io.Files;
 
 import java.io.File;
@@ -11,7 +12,7 @@ public class Util {
 
 	public static String calculateMd5(File file) {
 		try {
-			return calculateMd5(Files.toString(file, Charsets.UTF_8));
+			return calculateMd5(Files.asByteSource(file));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -22,6 +23,13 @@ public class Util {
 		return Hashing.md5().newHasher().putString(text, Charsets.UTF_8).hash().toString();
 	}
 
+	/**
+	 * Streams the bytes of the source through the hash, for UTF-8 text this matches {@link #calculateMd5(String)}.
+	 */
+	public static String calculateMd5(ByteSource source) throws IOException {
+		return source.hash(Hashing.md5()).toString();
+	}
+
 	public static boolean all(String... strings) {
 		for (String string : strings) {
 			if (string == null || string.trim() == "") {
@@ -1,6 +1,7 @@
 package smartthings.cassandra
 
 import com.datastax.driver.core.*
+import com.datastax.driver.core.exceptions.InvalidQueryException
 import smartthings.migration.CassandraMigrationException
 import smartthings.migration.MigrationParameters
 import spock.lang.Specification
@@ -11,11 +12,27 @@ class CassandraConnectionSpec extends Specification {
 
 	Session session = Mock()
 	CassandraLock lock = Mock()
+	SchemaAgreement schemaAgreement = Mock()
+
+	PreparedStatement insertPrepared = Mock()
+	PreparedStatement deletePrepared = Mock()
+	PreparedStatement selectPrepared = Mock()
+	BoundStatement insertBound = Mock()
+	BoundStatement deleteBound = Mock()
+	BoundStatement selectBound = Mock()
 
 	void setup() {
 		MigrationParameters parameters = new MigrationParameters.Builder().setSession(session).build()
 		cassandraConnection = new CassandraConnection(parameters, '')
 		cassandraConnection.lock = lock
+		cassandraConnection.schemaAgreement = schemaAgreement
+	}
+
+	void pipelined(int maxDmlInFlight) {
+		MigrationParameters parameters = new MigrationParameters.Builder().setSession(session).setPipelineDml(true).setMaxDmlInFlight(maxDmlInFlight).build()
+		cassandraConnection = new CassandraConnection(parameters, '')
+		cassandraConnection.lock = lock
+		cassandraConnection.schemaAgreement = schemaAgreement
 	}
 
 	def "Migration is successful"() {
@@ -30,13 +47,14 @@ class CassandraConnectionSpec extends Specification {
 		cassandraConnection.runMigration(migrationFileName, 'CREATE TABLE;', 'SHA1', false)
 
 		then:
-		1 * session.execute('INSERT INTO migrations (name, sha) VALUES (?, ?) IF NOT EXISTS;', [migrationFileName, 'SHA1']) >> migrationsResultSet
+		1 * session.prepare('INSERT INTO migrations (name, sha) VALUES (?, ?) IF NOT EXISTS;') >> insertPrepared
+		1 * insertPrepared.bind(migrationFileName, 'SHA1') >> insertBound
+		1 * session.execute(insertBound) >> migrationsResultSet
 		1 * migrationsResultSet.wasApplied() >> true
 		1 * session.execute('CREATE TABLE;') >> createResultSet
 		1 * createResultSet.getExecutionInfo() >> createExecutionInfo
 		1 * createExecutionInfo.isSchemaInAgreement() >> true
-		_ * lock.isMine() >> true
-		_ * lock.keepAlive()
+		_ * lock.ensureLease()
 		0 * _
 	}
 
@@ -49,10 +67,11 @@ class CassandraConnectionSpec extends Specification {
 		cassandraConnection.runMigration(migrationFileName, 'CREATE TABLE;', 'SHA1', false)
 
 		then:
-		1 * session.execute('INSERT INTO migrations (name, sha) VALUES (?, ?) IF NOT EXISTS;', [migrationFileName, 'SHA1']) >> migrationsResultSet
+		1 * session.prepare('INSERT INTO migrations (name, sha) VALUES (?, ?) IF NOT EXISTS;') >> insertPrepared
+		1 * insertPrepared.bind(migrationFileName, 'SHA1') >> insertBound
+		1 * session.execute(insertBound) >> migrationsResultSet
 		1 * migrationsResultSet.wasApplied() >> false
-		_ * lock.isMine() >> true
-		_ * lock.keepAlive()
+		_ * lock.ensureLease()
 		0 * _
 	}
 
@@ -68,19 +87,87 @@ class CassandraConnectionSpec extends Specification {
 		cassandraConnection.runMigration(migrationFileName, 'CREATE TABLE;', 'SHA1', false)
 
 		then:
-		1 * session.execute('INSERT INTO migrations (name, sha) VALUES (?, ?) IF NOT EXISTS;', [migrationFileName, 'SHA1']) >> migrationsResultSet
+		1 * session.prepare('INSERT INTO migrations (name, sha) VALUES (?, ?) IF NOT EXISTS;') >> insertPrepared
+		1 * insertPrepared.bind(migrationFileName, 'SHA1') >> insertBound
+		1 * session.execute(insertBound) >> migrationsResultSet
 		1 * migrationsResultSet.wasApplied() >> true
 		1 * session.execute('CREATE TABLE;') >> createResultSet
 		1 * createResultSet.getExecutionInfo() >> createExecutionInfo
 		1 * createExecutionInfo.isSchemaInAgreement() >> false
-		1 * session.execute('DELETE FROM migrations WHERE name = ? IF EXISTS', [migrationFileName]) >> removeResultSet
+		1 * schemaAgreement.await(migrationFileName) >> { throw new CassandraMigrationException('Schema is not in agreement') }
+		1 * session.prepare('DELETE FROM migrations WHERE name = ? IF EXISTS') >> deletePrepared
+		1 * deletePrepared.bind(migrationFileName) >> deleteBound
+		1 * session.execute(deleteBound) >> removeResultSet
 		1 * removeResultSet.wasApplied() >> true
-		_ * lock.isMine() >> true
-		_ * lock.keepAlive()
+		_ * lock.ensureLease()
 		0 * _
 		thrown(CassandraMigrationException)
 	}
 
+	def "Migration waits for schema agreement that the driver gave up on"() {
+		setup:
+		ResultSet migrationsResultSet = Mock()
+		ResultSet createResultSet = Mock()
+		ExecutionInfo createExecutionInfo = Mock()
+
+		when:
+		cassandraConnection.runMigration('make-a-table.cql', 'CREATE TABLE;', 'SHA1', false)
+
+		then:
+		1 * session.prepare('INSERT INTO migrations (name, sha) VALUES (?, ?) IF NOT EXISTS;') >> insertPrepared
+		1 * insertPrepared.bind('make-a-table.cql', 'SHA1') >> insertBound
+		1 * session.execute(insertBound) >> migrationsResultSet
+		1 * migrationsResultSet.wasApplied() >> true
+		1 * session.execute('CREATE TABLE;') >> createResultSet
+		1 * createResultSet.getExecutionInfo() >> createExecutionInfo
+		1 * createExecutionInfo.isSchemaInAgreement() >> false
+		1 * schemaAgreement.await('make-a-table.cql') >> 1500
+		_ * lock.ensureLease()
+		0 * _
+	}
+
+	def "Deferred schema agreement waits once before anything depending on the changes"() {
+		setup:
+		MigrationParameters parameters = new MigrationParameters.Builder().setSession(session).setDeferSchemaAgreement(true).build()
+		cassandraConnection = new CassandraConnection(parameters, '')
+		cassandraConnection.lock = lock
+		cassandraConnection.schemaAgreement = schemaAgreement
+		ResultSet migrationsResultSet = Mock()
+		ExecutionInfo executionInfo = Stub() {
+			isSchemaInAgreement() >> false
+		}
+		ResultSet resultSet = Stub() {
+			getExecutionInfo() >> executionInfo
+		}
+
+		when:
+		cassandraConnection.runMigration('tables.cql', '''
+			CREATE TABLE b (id text PRIMARY KEY, v text);
+			CREATE TABLE c (id text PRIMARY KEY);
+			CREATE INDEX ON b (v);
+			CREATE TABLE d (id text PRIMARY KEY);
+		''', 'SHA1', false)
+
+		then:
+		1 * session.prepare('INSERT INTO migrations (name, sha) VALUES (?, ?) IF NOT EXISTS;') >> insertPrepared
+		1 * insertPrepared.bind('tables.cql', 'SHA1') >> insertBound
+		1 * session.execute(insertBound) >> migrationsResultSet
+		1 * migrationsResultSet.wasApplied() >> true
+		1 * session.execute('CREATE TABLE b (id text PRIMARY KEY, v text);') >> resultSet
+		1 * session.execute('CREATE TABLE c (id text PRIMARY KEY);') >> resultSet
+
+		then:
+		1 * schemaAgreement.await('tables.cql')
+
+		then:
+		1 * session.execute('CREATE INDEX ON b (v);') >> resultSet
+		1 * session.execute('CREATE TABLE d (id text PRIMARY KEY);') >> resultSet
+
+		then:
+		1 * schemaAgreement.await('tables.cql')
+		0 * session._
+	}
+
 	def "Gets migration MD5"() {
 		setup:
 		ResultSet resultSet = Mock()
@@ -90,16 +177,123 @@ class CassandraConnectionSpec extends Specification {
 		String result = cassandraConnection.getMigrationMd5('/tmp/add-column.cql')
 
 		then:
-		1 * session.execute('SELECT sha FROM migrations WHERE name=?', ['add-column.cql']) >> resultSet
+		1 * session.prepare('SELECT sha FROM migrations WHERE name=?') >> selectPrepared
+		1 * selectPrepared.bind('add-column.cql') >> selectBound
+		1 * session.execute(selectBound) >> resultSet
 		1 * resultSet.isExhausted() >> false
 		1 * resultSet.one() >> row
 		1 * row.getString('sha') >> '1234567890'
-		_ * lock.isMine() >> true
-		_ * lock.keepAlive()
+		_ * lock.ensureLease()
 		0 * _
 		result == '1234567890'
 	}
 
+	def "Loads the migration ledger in a single paged read"() {
+		setup:
+		SchemaMetadata schemaMetadata = Mock()
+		cassandraConnection.schemaMetadata = schemaMetadata
+		ResultSet ledgerResultSet = Mock()
+		Row row1 = Mock()
+		Row row2 = Mock()
+
+		when:
+		MigrationLedger ledger = cassandraConnection.loadLedger()
+
+		then:
+		1 * schemaMetadata.tableExists('test', 'migrations') >> true
+		1 * schemaMetadata.columnExists('test', 'migrations', 'pending') >> false
+		1 * session.execute({ it instanceof SimpleStatement && it.queryString == 'SELECT name, sha FROM migrations' && it.fetchSize == 500 }) >> ledgerResultSet
+		1 * ledgerResultSet.iterator() >> [row1, row2].iterator()
+		1 * row1.getString('name') >> 'change-1.cql'
+		1 * row1.getString('sha') >> 'abc'
+		1 * row2.getString('name') >> 'change-2.cql'
+		1 * row2.getString('sha') >> 'def'
+		_ * lock.ensureLease()
+		0 * _
+		ledger.size() == 2
+
+		when: 'md5 lookups are answered from the ledger'
+		String md5 = cassandraConnection.getMigrationMd5('/tmp/change-2.cql')
+		String missing = cassandraConnection.getMigrationMd5('change-3.cql')
+
+		then:
+		0 * session._
+		md5 == 'def'
+		missing == null
+	}
+
+	def "Pending column is only added with preflight and tolerates another runner adding it first"() {
+		setup:
+		Cluster cluster = Mock()
+		Metadata metadata = Mock()
+		SchemaMetadata schemaMetadata = Mock()
+		session.getCluster() >> cluster
+		cluster.getMetadata() >> metadata
+		metadata.checkSchemaAgreement() >> true
+		schemaMetadata.tableExists('test', _) >> true
+		schemaMetadata.columnExists('test', 'migrations', 'pending') >> false
+		cassandraConnection.schemaMetadata = schemaMetadata
+
+		when:
+		cassandraConnection.setupMigration()
+
+		then:
+		0 * session.execute('ALTER TABLE migrations ADD pending boolean;')
+		!cassandraConnection.trackPending
+
+		when: 'preflight is on and the schema metadata has not seen the column yet'
+		MigrationParameters parameters = new MigrationParameters.Builder().setSession(session).setPreflight(true).build()
+		cassandraConnection = new CassandraConnection(parameters, '')
+		cassandraConnection.lock = lock
+		cassandraConnection.schemaMetadata = schemaMetadata
+		cassandraConnection.setupMigration()
+
+		then:
+		1 * session.execute('ALTER TABLE migrations ADD pending boolean;') >> {
+			throw new InvalidQueryException('Invalid column name pending because it conflicts with an existing column')
+		}
+		cassandraConnection.trackPending
+	}
+
+	def "Marking and removing migrations updates the loaded ledger"() {
+		setup:
+		cassandraConnection.ledger = new MigrationLedger()
+		ResultSet migrationsResultSet = Mock()
+		ResultSet createResultSet = Mock()
+		ResultSet removeResultSet = Mock()
+		ExecutionInfo createExecutionInfo = Mock()
+
+		when:
+		cassandraConnection.markMigration('change-1.cql', 'SHA1')
+
+		then:
+		1 * session.prepare('INSERT INTO migrations (name, sha) VALUES (?, ?) IF NOT EXISTS;') >> insertPrepared
+		1 * insertPrepared.bind('change-1.cql', 'SHA1') >> insertBound
+		1 * session.execute(insertBound) >> migrationsResultSet
+		1 * migrationsResultSet.wasApplied() >> true
+		_ * lock.ensureLease()
+		cassandraConnection.getMigrationMd5('change-1.cql') == 'SHA1'
+
+		when:
+		cassandraConnection.runMigration('change-2.cql', 'CREATE TABLE;', 'SHA2', false)
+
+		then:
+		1 * insertPrepared.bind('change-2.cql', 'SHA2') >> insertBound
+		1 * session.execute(insertBound) >> migrationsResultSet
+		1 * migrationsResultSet.wasApplied() >> true
+		1 * session.execute('CREATE TABLE;') >> createResultSet
+		1 * createResultSet.getExecutionInfo() >> createExecutionInfo
+		1 * createExecutionInfo.isSchemaInAgreement() >> false
+		1 * schemaAgreement.await('change-2.cql') >> { throw new CassandraMigrationException('Schema is not in agreement') }
+		1 * session.prepare('DELETE FROM migrations WHERE name = ? IF EXISTS') >> deletePrepared
+		1 * deletePrepared.bind('change-2.cql') >> deleteBound
+		1 * session.execute(deleteBound) >> removeResultSet
+		1 * removeResultSet.wasApplied() >> true
+		_ * lock.ensureLease()
+		thrown(CassandraMigrationException)
+		cassandraConnection.getMigrationMd5('change-2.cql') == null
+	}
+
 	def "Get migration MD5 that does not exist"() {
 		setup:
 		ResultSet resultSet = Mock()
@@ -108,11 +302,134 @@ class CassandraConnectionSpec extends Specification {
 		String result = cassandraConnection.getMigrationMd5('/tmp/add-column.cql')
 
 		then:
-		1 * session.execute('SELECT sha FROM migrations WHERE name=?', ['add-column.cql']) >> resultSet
+		1 * session.prepare('SELECT sha FROM migrations WHERE name=?') >> selectPrepared
+		1 * selectPrepared.bind('add-column.cql') >> selectBound
+		1 * session.execute(selectBound) >> resultSet
 		1 * resultSet.isExhausted() >> true
-		_ * lock.isMine() >> true
-		_ * lock.keepAlive()
+		_ * lock.ensureLease()
 		0 * _
 		result == null
 	}
+
+	def "Repeated queries are prepared once and sent as bound statements"() {
+		setup:
+		ResultSet resultSet = Mock()
+
+		when:
+		cassandraConnection.getMigrationMd5('add-column.cql')
+		cassandraConnection.getMigrationMd5('drop-column.cql')
+
+		then:
+		1 * session.prepare('SELECT sha FROM migrations WHERE name=?') >> selectPrepared
+		1 * selectPrepared.bind('add-column.cql') >> selectBound
+		1 * selectPrepared.bind('drop-column.cql') >> selectBound
+		2 * session.execute(selectBound) >> resultSet
+		2 * resultSet.isExhausted() >> true
+		_ * lock.ensureLease()
+		0 * _
+		cassandraConnection.statementCache.size() == 1
+		cassandraConnection.statementCache.stats().hitCount() == 1
+		cassandraConnection.statementCache.stats().missCount() == 1
+	}
+
+	def "Statements run under the lock lease without lock round trips"() {
+		setup:
+		ResultSet resultSet = Mock()
+
+		when:
+		ResultSet result = cassandraConnection.executeWithLock('CREATE TABLE;')
+
+		then:
+		2 * lock.ensureLease()
+		1 * session.execute('CREATE TABLE;') >> resultSet
+		0 * _
+		result == resultSet
+	}
+
+	def "Statements are refused without a lock"() {
+		setup:
+		cassandraConnection.lock = null
+
+		when:
+		cassandraConnection.executeWithLock('CREATE TABLE;')
+
+		then:
+		0 * session._
+		thrown(CassandraLockException)
+	}
+
+	def "Pipelined migrations send writes asynchronously and DDL synchronously"() {
+		setup:
+		pipelined(4)
+		ResultSet migrationsResultSet = Mock()
+		ResultSet ddlResultSet = Mock()
+		ExecutionInfo executionInfo = Mock()
+		List<String> async = []
+
+		when:
+		cassandraConnection.runMigration('data.cql', '''
+			CREATE TABLE b;
+			INSERT INTO b (id) VALUES ('1');
+			INSERT INTO b (id) VALUES ('2');
+			INSERT INTO b (id) VALUES ('3') IF NOT EXISTS;
+			UPDATE b SET v = '1' WHERE id = '1';
+		''', 'SHA1', false)
+
+		then:
+		1 * session.prepare('INSERT INTO migrations (name, sha) VALUES (?, ?) IF NOT EXISTS;') >> insertPrepared
+		1 * insertPrepared.bind('data.cql', 'SHA1') >> insertBound
+		1 * session.execute(insertBound) >> migrationsResultSet
+		1 * migrationsResultSet.wasApplied() >> true
+		1 * session.execute('CREATE TABLE b;') >> ddlResultSet
+		1 * session.execute("INSERT INTO b (id) VALUES ('3') IF NOT EXISTS;") >> ddlResultSet
+		2 * ddlResultSet.getExecutionInfo() >> executionInfo
+		2 * executionInfo.isSchemaInAgreement() >> true
+		3 * session.executeAsync(_ as SimpleStatement) >> { SimpleStatement statement ->
+			async << statement.queryString
+			completed(Mock(ResultSet))
+		}
+		_ * lock.ensureLease()
+		0 * _
+		async == ["INSERT INTO b (id) VALUES ('1');", "INSERT INTO b (id) VALUES ('2');", "UPDATE b SET v = '1' WHERE id = '1';"]
+	}
+
+	def "Pipelined write failures remove the migration mark"() {
+		setup:
+		pipelined(32)
+		ResultSet migrationsResultSet = Mock()
+		ResultSet removeResultSet = Mock()
+
+		when:
+		cassandraConnection.runMigration('data.cql', "INSERT INTO b (id) VALUES ('1'); INSERT INTO c (id) VALUES ('2');", 'SHA1', false)
+
+		then:
+		1 * session.prepare('INSERT INTO migrations (name, sha) VALUES (?, ?) IF NOT EXISTS;') >> insertPrepared
+		1 * insertPrepared.bind('data.cql', 'SHA1') >> insertBound
+		1 * session.execute(insertBound) >> migrationsResultSet
+		1 * migrationsResultSet.wasApplied() >> true
+		1 * session.executeAsync({ it.queryString.startsWith('INSERT INTO b') }) >> completed(Mock(ResultSet))
+		1 * session.executeAsync({ it.queryString.startsWith('INSERT INTO c') }) >> failed(new RuntimeException('unconfigured table c'))
+		1 * session.prepare('DELETE FROM migrations WHERE name = ? IF EXISTS') >> deletePrepared
+		1 * deletePrepared.bind('data.cql') >> deleteBound
+		1 * session.execute(deleteBound) >> removeResultSet
+		1 * removeResultSet.wasApplied() >> true
+		_ * lock.ensureLease()
+		0 * _
+		CassandraMigrationException e = thrown()
+		e.message.contains('statement #2')
+	}
+
+	ResultSetFuture completed(ResultSet resultSet) {
+		Stub(ResultSetFuture) {
+			addListener(_, _) >> { Runnable listener, executor -> listener.run() }
+			getUninterruptibly() >> resultSet
+		}
+	}
+
+	ResultSetFuture failed(Exception e) {
+		Stub(ResultSetFuture) {
+			addListener(_, _) >> { Runnable listener, executor -> listener.run() }
+			getUninterruptibly() >> { throw e }
+		}
+	}
 }
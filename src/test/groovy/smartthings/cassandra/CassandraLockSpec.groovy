@@ -187,4 +187,90 @@ class CassandraLockSpec extends Specification {
 		!lock2.locked
 		lock1.tryLock()
 	}
+
+	def 'lease is tracked locally and only renewed below the threshold'() {
+		given:
+		CassandraConnection connection = new CassandraConnection(params, owner)
+		connection.connect()
+
+		and: 'lock with ttl of 10 seconds renewed when less than 8 seconds remain'
+		CassandraLock lock = new CassandraLock(connection, 10, 8)
+
+		expect: 'no lease before locking'
+		lock.leaseRemainingMillis == 0
+
+		when:
+		lock.ensureLease()
+
+		then:
+		thrown(CassandraLockException)
+
+		when:
+		lock.tryLock()
+		int ttlAfterLock = lock.ttl
+		lock.ensureLease()
+
+		then: 'lease is fresh so the lock row is not rewritten'
+		lock.leaseRemainingMillis > 8000
+		lock.ttl <= ttlAfterLock
+
+		when:
+		Thread.sleep(3000)
+
+		then:
+		lock.leaseRemainingMillis < 8000
+
+		when:
+		lock.ensureLease()
+
+		then: 'lease was renewed'
+		lock.leaseRemainingMillis > 9000
+		lock.ttl > 8
+
+		when:
+		lock.unlock()
+
+		then:
+		lock.leaseRemainingMillis == 0
+	}
+
+	def 'heartbeat keeps the lock past its TTL and reports lost ownership'() {
+		given:
+		CassandraConnection connection = new CassandraConnection(params, owner)
+		connection.connect()
+
+		and: 'lock with ttl of 3 seconds and a heartbeat'
+		CassandraLock lock = new CassandraLock(connection, 3, 1, true)
+		CassandraLockException lostCause = null
+		lock.listener = { CassandraLockException e -> lostCause = e } as CassandraLock.LockListener
+
+		when:
+		lock.tryLock()
+		Thread.sleep(5000)
+
+		then: 'lock is still held after the ttl'
+		lock.mine
+		!lock.lost
+		noExceptionThrown()
+
+		when: 'another owner takes over the lock'
+		connection.execute('DELETE FROM databasechangelock WHERE id = 1')
+		CassandraConnection other = new CassandraConnection(params, 'someone-else')
+		other.connect()
+		new CassandraLock(other, 60).tryLock()
+		Thread.sleep(2000)
+
+		then: 'the heartbeat notices'
+		lock.lost
+		lostCause != null
+
+		when:
+		lock.ensureLease()
+
+		then:
+		thrown(CassandraLockException)
+
+		cleanup:
+		lock.close()
+	}
 }
@@ -0,0 +1,76 @@
+package smartthings.cassandra
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class CqlStatementReaderSpec extends Specification {
+
+	List<String> read(String cql) {
+		CqlStatementReader reader = new CqlStatementReader(new StringReader(cql))
+		List<String> statements = []
+		String statement
+		while ((statement = reader.next()) != null) {
+			statements << statement
+		}
+		statements
+	}
+
+	@Unroll
+	def 'reads #expected from #cql'() {
+		expect:
+		read(cql) == expected
+
+		where:
+		cql                                                         || expected
+		''                                                          || []
+		' ;\n; '                                                    || []
+		'CREATE TABLE a (id text PRIMARY KEY);'                     || ['CREATE TABLE a (id text PRIMARY KEY)']
+		'INSERT INTO a (id) VALUES (\'1\');\nINSERT INTO a (id) VALUES (\'2\')' || ["INSERT INTO a (id) VALUES ('1')", "INSERT INTO a (id) VALUES ('2')"]
+		"INSERT INTO a (id, v) VALUES ('1', 'a;b');"                || ["INSERT INTO a (id, v) VALUES ('1', 'a;b')"]
+		"INSERT INTO a (id, v) VALUES ('1', 'it''s; fine');"        || ["INSERT INTO a (id, v) VALUES ('1', 'it''s; fine')"]
+		'CREATE TABLE "semi;colon" (id text PRIMARY KEY);'          || ['CREATE TABLE "semi;colon" (id text PRIMARY KEY)']
+		'-- a comment; with a semicolon\nDROP TABLE a;'             || ['DROP TABLE a']
+		'// another; comment\nDROP TABLE a; // trailing'            || ['DROP TABLE a']
+		'DROP /* not; here */ TABLE a;'                             || ['DROP   TABLE a']
+		'SELECT * FROM a WHERE v = -1;'                             || ['SELECT * FROM a WHERE v = -1']
+		'SELECT 4/2 FROM a;'                                        || ['SELECT 4/2 FROM a']
+	}
+
+	def 'batches are read as a single statement'() {
+		given:
+		String cql = """
+			BEGIN UNLOGGED BATCH
+				INSERT INTO a (id, v) VALUES ('1', 'x');
+				INSERT INTO a (id, v) VALUES ('2', 'y');
+			APPLY BATCH;
+			INSERT INTO a (id, v) VALUES ('3', 'z');
+		"""
+
+		when:
+		List<String> statements = read(cql)
+
+		then:
+		statements.size() == 2
+		statements[0].startsWith('BEGIN UNLOGGED BATCH')
+		statements[0].endsWith('APPLY BATCH')
+		statements[0].contains("VALUES ('2', 'y');")
+		statements[1] == "INSERT INTO a (id, v) VALUES ('3', 'z')"
+	}
+
+	def 'dollar quoted function bodies are kept intact'() {
+		given:
+		String cql = '''
+			CREATE FUNCTION f (input int) RETURNS NULL ON NULL INPUT RETURNS int LANGUAGE java
+			AS $$ int x = input; return x * 2; $$;
+			DROP FUNCTION f;
+		'''
+
+		when:
+		List<String> statements = read(cql)
+
+		then:
+		statements.size() == 2
+		statements[0].endsWith('AS $$ int x = input; return x * 2; $$')
+		statements[1] == 'DROP FUNCTION f'
+	}
+}
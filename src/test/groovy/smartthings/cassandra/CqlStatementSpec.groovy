@@ -0,0 +1,108 @@
+package smartthings.cassandra
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static smartthings.cassandra.CqlStatement.Kind.*
+
+class CqlStatementSpec extends Specification {
+
+	@Unroll
+	def '#text is #kind, conditional: #conditional, pipelineable: #pipelineable'() {
+		when:
+		CqlStatement statement = CqlStatement.parse(text)
+
+		then:
+		statement.kind == kind
+		statement.conditional == conditional
+		statement.pipelineable == pipelineable
+
+		where:
+		text                                                         || kind  | conditional | pipelineable
+		'CREATE TABLE a (id text PRIMARY KEY)'                       || DDL   | false       | false
+		'alter table a add v text'                                   || DDL   | false       | false
+		'DROP INDEX a_idx'                                           || DDL   | false       | false
+		"INSERT INTO a (id) VALUES ('1')"                            || DML   | false       | true
+		"insert into a (id) values ('1') if not exists"              || DML   | true        | false
+		"UPDATE a SET v = 'if' WHERE id = '1'"                       || DML   | false       | true
+		"UPDATE a SET v = '2' WHERE id = '1' IF v = '1'"             || DML   | true        | false
+		"DELETE FROM a WHERE id = '1' IF EXISTS"                     || DML   | true        | false
+		"BEGIN BATCH INSERT INTO a (id) VALUES ('1'); APPLY BATCH"   || DML   | false       | true
+		'TRUNCATE a'                                                 || OTHER | false       | false
+		'USE test'                                                   || OTHER | false       | false
+		'SELECT * FROM a'                                            || OTHER | false       | false
+	}
+
+	def 'tokenizes literals and identifiers whole'() {
+		expect:
+		CqlStatement.tokenize("INSERT INTO ks.\"My Table\" (id) VALUES ('it''s', \$\$ a b \$\$)") ==
+				['INSERT', 'INTO', 'ks', '.', '"My Table"', '(', 'id', ')', 'VALUES', '(', "'it''s'", ',', '$$ a b $$', ')']
+	}
+
+	@Unroll
+	def 'reads the table and column values of #text'() {
+		when:
+		CqlStatement statement = CqlStatement.parse(text)
+
+		then:
+		statement.keyspace == keyspace
+		statement.table == table
+		statement.columnValues == values
+
+		where:
+		text                                                                        || keyspace | table  | values
+		"INSERT INTO b (id, seq, value) VALUES ('x', 1, 'x-1')"                     || null     | 'b'    | [id: "'x'", seq: '1', value: "'x-1'"]
+		"insert into KS.\"Tbl\" (ID, \"Seq\") values (-1, 123e4567-e89b-12d3-a456-426655440000)" || 'ks' | 'Tbl' | [id: '-1', Seq: '123e4567-e89b-12d3-a456-426655440000']
+		"INSERT INTO b (id, tags, at) VALUES ('x', {'a', 'b'}, now())"              || null     | 'b'    | [id: "'x'", tags: null, at: null]
+		"UPDATE b USING TTL 10 SET value = 'v' WHERE id = 'x' AND seq = 2 IF EXISTS" || null    | 'b'    | [id: "'x'", seq: '2']
+		"DELETE value FROM test.b USING TIMESTAMP 5 WHERE id = 'x' AND seq = 2"     || 'test'   | 'b'    | [id: "'x'", seq: '2']
+		"DELETE FROM b WHERE id IN ('x', 'y')"                                      || null     | null   | null
+		"DELETE FROM b WHERE id = 'x' AND seq > 2"                                  || null     | null   | null
+		"INSERT INTO b JSON '{}'"                                                   || null     | null   | null
+		"BEGIN BATCH INSERT INTO a (id) VALUES ('1'); APPLY BATCH"                  || null     | null   | null
+		'CREATE TABLE b (id text PRIMARY KEY)'                                      || null     | null   | null
+	}
+
+	@Unroll
+	def 'schema object of #text is #object'() {
+		expect:
+		CqlStatement.parse(text).schemaObject == object
+
+		where:
+		text                                                                 || object
+		'CREATE TABLE IF NOT EXISTS test.Users (id text PRIMARY KEY)'        || 'users'
+		'CREATE MATERIALIZED VIEW "ByName" AS SELECT * FROM users'           || 'ByName'
+		'CREATE INDEX users_email ON users (email)'                          || 'users_email'
+		'CREATE INDEX ON users (email)'                                      || null
+		'CREATE OR REPLACE FUNCTION f (a int) RETURNS NULL ON NULL INPUT'    || 'f'
+		'ALTER TYPE address ADD zip text'                                    || 'address'
+		'DROP KEYSPACE IF EXISTS test'                                       || 'test'
+		"INSERT INTO users (id) VALUES ('1')"                                || null
+	}
+
+	def 'finds mentioned names outside of literals'() {
+		given:
+		CqlStatement statement = CqlStatement.parse("CREATE TABLE orders (id text PRIMARY KEY, ship_to frozen<Address>, note text) WITH comment = 'users'")
+
+		expect:
+		statement.mentions(['address'])
+		!statement.mentions(['users'])
+		!statement.mentions(['Address'])
+	}
+
+	@Unroll
+	def 'objects of #text'() {
+		expect:
+		CqlStatement.parse(text).getObjects('ks') == objects as Set
+
+		where:
+		text                                                                       || objects
+		'CREATE TABLE IF NOT EXISTS a (id text PRIMARY KEY, type text)'            || ['ks.a']
+		'CREATE INDEX a_value ON other.a (value)'                                  || ['ks.a_value', 'other.a']
+		'CREATE MATERIALIZED VIEW v AS SELECT * FROM a WHERE id IS NOT NULL'       || ['ks.v', 'ks.a']
+		'TRUNCATE TABLE a'                                                         || ['ks.a']
+		"BEGIN BATCH INSERT INTO a (id) VALUES ('1'); DELETE FROM b WHERE id = '1'; APPLY BATCH" || ['ks.a', 'ks.b']
+		"UPDATE a SET v = 'from' WHERE id = '1'"                                   || ['ks.a']
+		'GRANT SELECT ON ALL KEYSPACES TO reader'                                  || []
+	}
+}
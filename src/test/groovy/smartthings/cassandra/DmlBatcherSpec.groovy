@@ -0,0 +1,104 @@
+package smartthings.cassandra
+
+import com.datastax.driver.core.BatchStatement
+import com.datastax.driver.core.SimpleStatement
+import com.datastax.driver.core.Statement
+import spock.lang.Specification
+
+class DmlBatcherSpec extends Specification {
+
+	List<List> sent = []
+
+	DmlBatcher.KeyResolver keys = { String keyspace, String table ->
+		table == 'b' ? new DmlBatcher.TableKey(['id'], ['seq']) : null
+	}
+
+	DmlBatcher batcher(int maxStatements = 100, int maxBytes = 5120) {
+		new DmlBatcher(keys, { int ordinal, Statement statement -> sent << [ordinal, queries(statement)] }, maxStatements, maxBytes)
+	}
+
+	def 'groups consecutive writes to one partition'() {
+		given:
+		DmlBatcher batcher = batcher()
+
+		when:
+		[
+				"INSERT INTO b (id, seq, value) VALUES ('x', 1, 'x-1')",
+				"INSERT INTO b (id, seq, value) VALUES ('x', 2, 'x-2')",
+				"UPDATE b SET value = 'x-3' WHERE id = 'x' AND seq = 3",
+				"INSERT INTO b (id, seq, value) VALUES ('y', 1, 'y-1')",
+		].eachWithIndex { String text, int i -> assert batcher.add(i + 1, CqlStatement.parse(text)) }
+		batcher.flush()
+
+		then:
+		sent == [
+				[1, ["INSERT INTO b (id, seq, value) VALUES ('x', 1, 'x-1')", "INSERT INTO b (id, seq, value) VALUES ('x', 2, 'x-2')",
+				     "UPDATE b SET value = 'x-3' WHERE id = 'x' AND seq = 3"]],
+				[4, ["INSERT INTO b (id, seq, value) VALUES ('y', 1, 'y-1');"]],
+		]
+	}
+
+	def 'starts a new batch for a second write to the same row'() {
+		given:
+		DmlBatcher batcher = batcher()
+
+		when:
+		batcher.add(1, CqlStatement.parse("INSERT INTO b (id, seq, value) VALUES ('x', 1, 'x-1')"))
+		batcher.add(2, CqlStatement.parse("INSERT INTO b (id, seq, value) VALUES ('x', 2, 'x-2')"))
+		batcher.add(3, CqlStatement.parse("DELETE FROM b WHERE id = 'x' AND seq = 1"))
+		batcher.flush()
+
+		then:
+		sent*.get(0) == [1, 3]
+	}
+
+	def 'limits batches by statements and bytes'() {
+		given:
+		DmlBatcher batcher = batcher(maxStatements, maxBytes)
+
+		when:
+		(1..5).each { batcher.add(it, CqlStatement.parse("INSERT INTO b (id, seq) VALUES ('x', $it)")) }
+		batcher.flush()
+
+		then:
+		sent*.get(0) == ordinals
+
+		where:
+		maxStatements | maxBytes || ordinals
+		2             | 5120     || [1, 3, 5]
+		100           | 80       || [1, 3, 5]
+		100           | 1        || [1, 2, 3, 4, 5]
+	}
+
+	def 'flushes and declines statements it cannot batch'() {
+		given:
+		DmlBatcher batcher = batcher()
+
+		when:
+		boolean first = batcher.add(1, CqlStatement.parse("INSERT INTO b (id, seq) VALUES ('x', 1)"))
+		boolean second = batcher.add(2, CqlStatement.parse(text))
+
+		then:
+		first
+		!second
+		sent == [[1, ["INSERT INTO b (id, seq) VALUES ('x', 1);"]]]
+
+		where:
+		text << [
+				"INSERT INTO b (id, seq) VALUES ('x', 2) IF NOT EXISTS",
+				"INSERT INTO c (id) VALUES ('x')",
+				"DELETE FROM b WHERE id = 'x'",
+				"INSERT INTO b (id, seq) VALUES (?, 2)",
+				"BEGIN BATCH INSERT INTO b (id, seq) VALUES ('x', 2); APPLY BATCH",
+				'CREATE TABLE c (id text PRIMARY KEY)',
+		]
+	}
+
+	List<String> queries(Statement statement) {
+		if (statement instanceof BatchStatement) {
+			assert ((BatchStatement) statement).batchType == BatchStatement.Type.UNLOGGED
+			return statement.statements.collect { ((SimpleStatement) it).queryString }
+		}
+		return [((SimpleStatement) statement).queryString]
+	}
+}
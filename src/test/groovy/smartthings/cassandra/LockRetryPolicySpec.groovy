@@ -0,0 +1,44 @@
+package smartthings.cassandra
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class LockRetryPolicySpec extends Specification {
+
+	@Unroll
+	def 'backoff for attempt #attempt is between #min and #max ms'() {
+		given:
+		LockRetryPolicy policy = new LockRetryPolicy(100, 1000, 0, false)
+
+		expect:
+		(1..50).every {
+			long delay = policy.backoff(attempt)
+			delay >= min && delay <= max
+		}
+
+		where:
+		attempt || min | max
+		0       || 50  | 100
+		1       || 100 | 200
+		3       || 400 | 800
+		4       || 500 | 1000
+		60      || 500 | 1000
+	}
+
+	def 'waiting for expiry sleeps for the remaining ttl'() {
+		given:
+		LockRetryPolicy policy = new LockRetryPolicy(100, 1000, 0, true)
+
+		expect:
+		policy.waitForExpiry
+		policy.untilExpiry(5) >= 5000
+		policy.untilExpiry(5) <= 5100
+		policy.untilExpiry(-1) <= 100
+	}
+
+	def 'deadline is only set with a timeout'() {
+		expect:
+		new LockRetryPolicy(100, 1000, 0, false).deadline(1000) == Long.MAX_VALUE
+		new LockRetryPolicy(100, 1000, 30, false).deadline(1000) == 31000
+	}
+}
@@ -0,0 +1,157 @@
+package smartthings.cassandra
+
+import com.datastax.driver.core.*
+import smartthings.migration.CassandraMigrationException
+import spock.lang.Specification
+
+class SchemaAgreementSpec extends Specification {
+
+	static final UUID v1 = UUID.randomUUID()
+	static final UUID v2 = UUID.randomUUID()
+
+	Session session = Mock()
+	Cluster cluster = Mock()
+	Metadata metadata = Mock()
+	Host host1 = host('10.0.0.1', 'dc1', true)
+	Host host2 = host('10.0.0.2', 'dc2', true)
+	Host host3 = host('10.0.0.3', 'dc1', false)
+
+	void setup() {
+		session.getCluster() >> cluster
+		cluster.getMetadata() >> metadata
+		metadata.getAllHosts() >> ([host1, host2, host3] as Set)
+	}
+
+	def 'trusts the control connection when the whole cluster agrees'() {
+		given:
+		SchemaAgreement agreement = new SchemaAgreement(session, 'test', 1, dataCenters as Set, false)
+
+		when:
+		boolean agreed = agreement.inAgreement
+
+		then:
+		1 * metadata.checkSchemaAgreement() >> true
+		0 * session.execute(_)
+		agreed
+
+		where:
+		dataCenters << [[], ['dc1']]
+	}
+
+	def 'without a data center scope the control connection decides'() {
+		given:
+		SchemaAgreement agreement = new SchemaAgreement(session, 'test', 1, [] as Set, false)
+
+		when:
+		boolean agreed = agreement.inAgreement
+
+		then:
+		1 * metadata.checkSchemaAgreement() >> false
+		0 * session.execute(_)
+		!agreed
+	}
+
+	def 'agrees when every live node in scope has the same version'() {
+		given:
+		SchemaAgreement agreement = new SchemaAgreement(session, 'test', 1, dataCenters as Set, false)
+		metadata.checkSchemaAgreement() >> false
+		session.execute({ it.contains('system.peers') }) >> result(host1, [
+				row('dc2', '10.0.0.2', peerVersion),
+				row('dc1', '10.0.0.3', v2),
+		])
+		session.execute({ it.contains('system.local') }) >> result(host1, [row('dc1', null, v1)])
+
+		expect:
+		agreement.inAgreement == agreed
+
+		where:
+		dataCenters    | peerVersion || agreed
+		['dc1']        | v2          || true
+		['dc2']        | v2          || true
+		['dc1', 'dc2'] | v1          || true
+		['dc1', 'dc2'] | v2          || false
+	}
+
+	def 'does not count the node answering system.peers without its own system.local'() {
+		given:
+		SchemaAgreement agreement = new SchemaAgreement(session, 'test', 1, ['dc1', 'dc2'] as Set, false)
+		metadata.checkSchemaAgreement() >> false
+
+		when:
+		boolean agreed = agreement.inAgreement
+
+		then:
+		1 * session.execute({ it.contains('system.peers') }) >> result(host2, [row('dc1', '10.0.0.1', v1)])
+		1 * session.execute({ it.contains('system.local') }) >> result(host1, [row('dc1', null, v1)])
+		!agreed
+	}
+
+	def 'skips system.local when the node answering system.peers is out of scope'() {
+		given:
+		SchemaAgreement agreement = new SchemaAgreement(session, 'test', 1, ['dc2'] as Set, false)
+		metadata.checkSchemaAgreement() >> false
+
+		when:
+		boolean agreed = agreement.inAgreement
+
+		then:
+		1 * session.execute({ it.contains('system.peers') }) >> result(host1, [row('dc2', '10.0.0.2', v1)])
+		0 * session.execute({ it.contains('system.local') })
+		agreed
+	}
+
+	def 'waits until the nodes agree'() {
+		given:
+		SchemaAgreement agreement = new SchemaAgreement(session, 'test', 5, [] as Set, false)
+		int checks = 0
+		metadata.checkSchemaAgreement() >> { ++checks >= 3 }
+
+		when:
+		agreement.await('test.cql')
+
+		then:
+		checks == 3
+		agreement.waits == 1
+	}
+
+	def 'gives up after the timeout'() {
+		given:
+		SchemaAgreement agreement = new SchemaAgreement(session, 'test', 1, [] as Set, false)
+		metadata.checkSchemaAgreement() >> false
+
+		when:
+		agreement.await('test.cql')
+
+		then:
+		CassandraMigrationException e = thrown()
+		e.message.contains('test.cql')
+		agreement.totalWaitMillis >= 1000
+	}
+
+	Host host(String address, String dataCenter, boolean up) {
+		Stub(Host) {
+			getAddress() >> InetAddress.getByName(address)
+			getDatacenter() >> dataCenter
+			isUp() >> up
+		}
+	}
+
+	ResultSet result(Host coordinator, List<Row> rows) {
+		ExecutionInfo info = Stub() {
+			getQueriedHost() >> coordinator
+		}
+		Stub(ResultSet) {
+			getExecutionInfo() >> info
+			iterator() >> rows.iterator()
+			one() >> rows[0]
+		}
+	}
+
+	Row row(String dataCenter, String address, UUID version) {
+		Stub(Row) {
+			getString('data_center') >> dataCenter
+			getInet('rpc_address') >> (address ? InetAddress.getByName(address) : null)
+			getUUID('schema_version') >> version
+		}
+	}
+}
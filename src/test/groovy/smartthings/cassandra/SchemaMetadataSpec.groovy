@@ -0,0 +1,115 @@
+package smartthings.cassandra
+
+import com.datastax.driver.core.*
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class SchemaMetadataSpec extends Specification {
+
+	Session session = Mock()
+	Cluster cluster = Mock()
+	Metadata metadata = Mock()
+	QueryOptions queryOptions = new QueryOptions()
+	SchemaChangeListener listener
+
+	void setup() {
+		session.getCluster() >> cluster
+		cluster.getMetadata() >> metadata
+		cluster.getConfiguration() >> Stub(Configuration) {
+			getQueryOptions() >> queryOptions
+		}
+		cluster.register(_) >> { SchemaChangeListener l -> listener = l; cluster }
+	}
+
+	def 'answers from the driver metadata without querying'() {
+		given:
+		SchemaMetadata schema = new SchemaMetadata(session)
+		KeyspaceMetadata keyspace = Mock()
+
+		when:
+		boolean migrations = schema.tableExists('test', 'migrations')
+		boolean lock = schema.tableExists('test', 'databasechangelock')
+		boolean other = schema.keyspaceExists('other')
+
+		then:
+		2 * metadata.getKeyspace('test') >> keyspace
+		1 * metadata.getKeyspace('other') >> null
+		1 * keyspace.getTable('migrations') >> Mock(TableMetadata)
+		1 * keyspace.getTable('databasechangelock') >> null
+		0 * session.execute(*_)
+		migrations
+		!lock
+		!other
+	}
+
+	@Unroll
+	def 'falls back to the #table table on Cassandra #version'() {
+		given:
+		queryOptions.setMetadataEnabled(false)
+		SchemaMetadata schema = new SchemaMetadata(session)
+		ResultSet rs = Mock()
+
+		when:
+		boolean exists = schema.tableExists('test', '"Migrations"')
+
+		then:
+		_ * metadata.getAllHosts() >> ([host(version), host('3.11.4')] as Set)
+		1 * session.execute({ it.contains(table) }, 'test', 'Migrations') >> rs
+		1 * rs.one() >> Mock(Row)
+		exists
+
+		where:
+		version  || table
+		'2.1.20' || 'system.schema_columnfamilies'
+		'3.0.9'  || 'system_schema.tables'
+		'4.0.1'  || 'system_schema.tables'
+	}
+
+	def 'remembers tables found in the system schema until they are dropped'() {
+		given:
+		queryOptions.setMetadataEnabled(false)
+		SchemaMetadata schema = new SchemaMetadata(session)
+		metadata.getAllHosts() >> ([host('4.0.1')] as Set)
+		ResultSet found = Stub() {
+			one() >> Stub(Row)
+		}
+		ResultSet missing = Mock()
+
+		when:
+		schema.tableExists('test', 'migrations')
+		schema.tableExists('test', 'Migrations')
+
+		then:
+		1 * session.execute(*_) >> found
+
+		when:
+		listener.onTableRemoved(Stub(TableMetadata) {
+			getName() >> 'migrations'
+			getKeyspace() >> Stub(KeyspaceMetadata) {
+				getName() >> 'test'
+			}
+		})
+		boolean exists = schema.tableExists('test', 'migrations')
+
+		then:
+		1 * session.execute(*_) >> missing
+		!exists
+	}
+
+	def 'stops listening when closed'() {
+		given:
+		SchemaMetadata schema = new SchemaMetadata(session)
+
+		when:
+		schema.close()
+
+		then:
+		1 * cluster.unregister(listener)
+	}
+
+	Host host(String version) {
+		Stub(Host) {
+			getCassandraVersion() >> VersionNumber.parse(version)
+		}
+	}
+}
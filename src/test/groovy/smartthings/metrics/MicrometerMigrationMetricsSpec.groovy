@@ -0,0 +1,45 @@
+package smartthings.metrics
+
+import io.micrometer.core.instrument.Tags
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class MicrometerMigrationMetricsSpec extends Specification {
+
+	SimpleMeterRegistry registry = new SimpleMeterRegistry()
+	MicrometerMigrationMetrics metrics = new MicrometerMigrationMetrics(registry, Tags.of('app', 'test'))
+
+	def 'timings are recorded by outcome'() {
+		when:
+		metrics.lockAcquisition(TimeUnit.MILLISECONDS.toNanos(250), 3, true)
+		metrics.statementExecuted('a.cql', 0, TimeUnit.MILLISECONDS.toNanos(2), true, null)
+		metrics.statementExecuted('a.cql', 0, TimeUnit.MILLISECONDS.toNanos(4), true, null)
+		metrics.statementExecuted('a.cql', 0, TimeUnit.MILLISECONDS.toNanos(8), false, null)
+		metrics.schemaAgreementWait('a.cql', TimeUnit.MILLISECONDS.toNanos(100), false)
+
+		then:
+		registry.get('migration.lock.acquire').tags('app', 'test', 'outcome', 'acquired').timer().totalTime(TimeUnit.MILLISECONDS) == 250
+		registry.get('migration.lock.attempts').summary().totalAmount() == 3
+		registry.get('migration.statement').tag('outcome', 'success').timer().count() == 2
+		registry.get('migration.statement').tag('outcome', 'failure').timer().count() == 1
+		registry.get('migration.schema.agreement').tag('outcome', 'timeout').timer().count() == 1
+		registry.get('migration.schema.agreement').tag('outcome', 'reached').timer().count() == 0
+	}
+
+	def 'migrations are counted by outcome'() {
+		when:
+		metrics.migrationSkipped('a.cql')
+		metrics.migrationSkipped('b.cql')
+		metrics.migrationApplied('c.cql', 1000)
+		metrics.migrationFailed('d.cql', 1000, new RuntimeException())
+		metrics.runFinished('test', 5000, null)
+
+		then:
+		registry.get('migration.files').tag('outcome', 'skipped').counter().count() == 2
+		registry.get('migration.files').tag('outcome', 'applied').counter().count() == 1
+		registry.get('migration.files').tag('outcome', 'failed').counter().count() == 1
+		registry.get('migration.run').tags('keyspace', 'test', 'outcome', 'success').timer().count() == 1
+	}
+}
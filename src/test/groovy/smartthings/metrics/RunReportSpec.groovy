@@ -0,0 +1,120 @@
+package smartthings.metrics
+
+import groovy.json.JsonSlurper
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class RunReportSpec extends Specification {
+
+	File dir = File.createTempDir()
+
+	def cleanup() {
+		dir.deleteDir()
+	}
+
+	def 'events are grouped by migration'() {
+		given:
+		File file = new File(dir, 'report.json')
+		RunReport report = new RunReport(file)
+
+		when:
+		report.phaseCompleted('connect', ms(5))
+		report.migrationLoaded('a.cql', ms(1), ms(2))
+		report.migrationLoaded('b.cql', ms(1), ms(2))
+		report.lockAcquisition(ms(30), 2, true)
+		report.lockRenewal(ms(3), true)
+		report.schemaAgreementWait('migration table creation', ms(40), true)
+		report.ledgerCheck('a.cql', ms(1))
+		report.statementExecuted('a.cql', 1, ms(4), true, InetAddress.getByName('127.0.0.2'))
+		report.statementExecuted('a.cql', 0, ms(6), true, InetAddress.getByName('127.0.0.1'))
+		report.schemaAgreementWait('a.cql', ms(20), false)
+		report.migrationApplied('a.cql', ms(50))
+		report.ledgerWrite(ms(2))
+		report.migrationFailed('b.cql', ms(7), new IllegalStateException('bad "quote"\n'))
+		report.runFinished('test', ms(100), new RuntimeException('failed'))
+		def json = new JsonSlurper().parse(file)
+
+		then:
+		report.file == file
+		json.keyspace == 'test'
+		json.durationMs == 100
+		json.outcome == 'failed'
+		json.phases == [connect: 5]
+		json.lock.waitMs == 30
+		json.lock.attempts == 2
+		json.lock.renewals*.renewed == [true]
+		json.ledger.writes == 1
+		json.schemaAgreement == [[reason: 'migration table creation', waitMs: 40, reached: true]]
+
+		json.migrations*.name == ['a.cql', 'b.cql']
+		json.migrations[0].outcome == 'applied'
+		json.migrations[0].hashMs == 2
+		json.migrations[0].statements.count == 2
+		json.migrations[0].statements.failed == 0
+		json.migrations[0].statements.totalMs == 10
+		json.migrations[0].statements.maxMs == 6
+		json.migrations[0].statements.coordinators == ['127.0.0.1': 1, '127.0.0.2': 1]
+		json.migrations[0].statements.slowest == [
+			[ordinal: 0, latencyMs: 6, succeeded: true, coordinator: '127.0.0.1'],
+			[ordinal: 1, latencyMs: 4, succeeded: true, coordinator: '127.0.0.2'],
+		]
+		json.migrations[0].schemaAgreement*.reached == [false]
+		json.migrations[1].outcome == 'failed'
+		json.migrations[1].failure == 'java.lang.IllegalStateException: bad "quote"\n'
+	}
+
+	def 'only the slowest statements of a migration are kept, failed ones first'() {
+		given:
+		File file = new File(dir, 'report.json')
+		RunReport report = new RunReport(file)
+
+		when:
+		(1..1000).each { report.statementExecuted('a.cql', it, ms(it % 100), true, null) }
+		report.statementExecuted('a.cql', 1001, ms(0), false, null)
+		report.runFinished('test', ms(1), null)
+		def statements = new JsonSlurper().parse(file).migrations[0].statements
+
+		then:
+		statements.count == 1001
+		statements.failed == 1
+		statements.maxMs == 99
+		statements.coordinators == [:]
+		statements.slowest.size() == RunReport.SLOWEST_STATEMENTS
+		statements.slowest.find { !it.succeeded }.ordinal == 1001
+		statements.slowest.findAll { it.succeeded }.every { it.latencyMs == 99 }
+	}
+
+	def 'a directory gets a file per run'() {
+		given:
+		RunReport report = new RunReport(dir)
+
+		when:
+		report.runFinished('test', ms(1), null)
+
+		then:
+		dir.listFiles()*.name == [report.file.name]
+		report.file.name.startsWith('test-')
+		new JsonSlurper().parse(report.file).outcome == 'succeeded'
+	}
+
+	def 'a file shared by several keyspaces gets one per keyspace'() {
+		given:
+		File file = new File(dir, 'report.json')
+		RunReport first = new RunReport(file, true)
+		RunReport second = new RunReport(file, true)
+
+		when:
+		first.runFinished('test', ms(1), null)
+		second.runFinished('test2', ms(1), null)
+
+		then:
+		dir.listFiles()*.name.sort() == ['report-test.json', 'report-test2.json']
+		new JsonSlurper().parse(first.file).keyspace == 'test'
+		new JsonSlurper().parse(second.file).keyspace == 'test2'
+	}
+
+	private static long ms(long millis) {
+		TimeUnit.MILLISECONDS.toNanos(millis)
+	}
+}
@@ -0,0 +1,91 @@
+package smartthings.migration
+
+import smartthings.cassandra.CassandraConnection
+import smartthings.cassandra.CassandraLockException
+import spock.lang.Specification
+
+class ExecuteExternallyHandlerSpec extends Specification {
+
+	File dir = File.createTempDir()
+	File received = new File(dir, 'received.cql')
+
+	CassandraConnection cassandraConnection = Mock()
+
+	def cleanup() {
+		dir.deleteDir()
+	}
+
+	def 'the migration is written to the command and marked when it succeeds'() {
+		given:
+		String query = (1..20000).collect { "INSERT INTO a (id, value) VALUES ('$it', 'value');" }.join('\n')
+		ExecuteExternallyHandler handler = handler('''
+			echo "$@"
+			cat > "$(dirname "$0")/received.cql"
+			echo done >&2
+		''')
+
+		when:
+		handler.handle('/users/foo/data.cql', query)
+
+		then:
+		1 * cassandraConnection.getMigrationMd5('/users/foo/data.cql') >> null
+		1 * cassandraConnection.markMigration('/users/foo/data.cql', _)
+		received.text == query
+	}
+
+	def 'a failing command is not marked'() {
+		given:
+		ExecuteExternallyHandler handler = handler('exit 3')
+
+		when:
+		handler.handle('create-table.cql', 'CREATE TABLE;')
+
+		then:
+		1 * cassandraConnection.getMigrationMd5('create-table.cql') >> null
+		0 * cassandraConnection.markMigration(*_)
+		CassandraMigrationException e = thrown()
+		e.message.contains('exited with 3')
+	}
+
+	def 'a command running past the timeout is killed'() {
+		given:
+		ExecuteExternallyHandler handler = handler('exec sleep 30', 1)
+
+		when:
+		long start = System.currentTimeMillis()
+		handler.handle('create-table.cql', 'CREATE TABLE;')
+
+		then:
+		1 * cassandraConnection.getMigrationMd5('create-table.cql') >> null
+		0 * cassandraConnection.markMigration(*_)
+		thrown(CassandraMigrationException)
+		System.currentTimeMillis() - start < 10000
+	}
+
+	def 'the command is killed when the lock is lost'() {
+		given:
+		ExecuteExternallyHandler handler = handler('exec sleep 30')
+
+		when:
+		handler.handle('create-table.cql', 'CREATE TABLE;')
+
+		then:
+		1 * cassandraConnection.getMigrationMd5('create-table.cql') >> null
+		1 * cassandraConnection.keepLockAlive() >> { throw new CassandraLockException('lock ownership was lost') }
+		0 * cassandraConnection.markMigration(*_)
+		thrown(CassandraLockException)
+	}
+
+	private ExecuteExternallyHandler handler(String script, int timeout = 0) {
+		File command = new File(dir, 'command')
+		command.text = "#!/bin/sh\n${script.stripIndent().trim()}\n"
+		command.setExecutable(true)
+		MigrationParameters parameters = new MigrationParameters.Builder()
+			.setKeyspace('test')
+			.setHost('localhost')
+			.setExternalTimeout(timeout)
+			.build()
+		parameters.location = command.path
+		new ExecuteExternallyHandler(cassandraConnection, parameters)
+	}
+}
@@ -1,7 +1,13 @@
 package smartthings.migration
 
+import com.google.common.io.ByteSource
+import com.google.common.io.CharSource
+import com.google.common.base.Charsets
 import smartthings.cassandra.CassandraConnection
+import smartthings.util.MigrationDigest
+import smartthings.util.Util
 import spock.lang.Specification
+import spock.lang.Unroll
 
 class MigrationHandlerSpec extends Specification {
 
@@ -24,7 +30,7 @@ class MigrationHandlerSpec extends Specification {
 
 		then:
 		1 * cassandraConnection.getMigrationMd5(fileName) >> null
-		1 * cassandraConnection.runMigration(fileName, query, 'db1bda2a977f65e4135f4bca7827cf13', false)
+		1 * cassandraConnection.runMigration(fileName, { it.read() == query }, 'db1bda2a977f65e4135f4bca7827cf13', false)
 		0 * _
 	}
 
@@ -40,4 +46,47 @@ class MigrationHandlerSpec extends Specification {
 		1 * cassandraConnection.getMigrationMd5(fileName) >> 'db1bda2a977f65e4135f4bca7827cf13'
 		0 * _
 	}
+
+	def "Uses the precomputed digest and streams contents to run"() {
+		setup:
+		CharSource source = Mock()
+		MigrationFile applied = new MigrationFile('applied.cql', Mock(ByteSource) { asCharSource(_) >> source }, 'abc')
+		MigrationFile pending = new MigrationFile('pending.cql', Mock(ByteSource) { asCharSource(_) >> source }, 'def')
+
+		when:
+		migrationHandler.handle(applied)
+
+		then:
+		1 * cassandraConnection.getMigrationMd5('applied.cql') >> 'abc'
+		0 * _
+
+		when:
+		migrationHandler.handle(pending)
+
+		then:
+		1 * cassandraConnection.getMigrationMd5('pending.cql') >> null
+		1 * cassandraConnection.runMigration('pending.cql', source, 'def', false)
+		0 * _
+	}
+
+	@Unroll
+	def "A #description file recorded with the md5 of its decoded text is not run again"() {
+		setup:
+		ByteSource source = ByteSource.wrap(bytes as byte[])
+		MigrationFile migration = new MigrationFile('legacy.cql', source, MigrationDigest.MD5.digest(source))
+		String recorded = Util.calculateMd5(new String(bytes as byte[], Charsets.UTF_8))
+
+		when:
+		migrationHandler.handle(migration)
+
+		then:
+		1 * cassandraConnection.getMigrationMd5('legacy.cql') >> recorded
+		updates * cassandraConnection.updateMigrationDigest('legacy.cql', migration.getDigest())
+		0 * _
+
+		where:
+		description    | bytes                                                            || updates
+		'BOM prefixed' | [0xEF, 0xBB, 0xBF] + ('CREATE TABLE;'.getBytes('UTF-8') as List) || 0
+		'Latin-1'      | 'CREATE TABLE caf\u00e9;'.getBytes('ISO-8859-1') as List        || 1
+	}
 }
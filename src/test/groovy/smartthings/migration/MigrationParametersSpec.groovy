@@ -0,0 +1,45 @@
+package smartthings.migration
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class MigrationParametersSpec extends Specification {
+
+	@Unroll
+	def 'lock ttl #ttl with renew threshold #threshold renews below #expected seconds'() {
+		given:
+		def builder = new MigrationParameters.Builder().setLockTtl(ttl)
+		if (threshold != null) {
+			builder.setLockRenewThreshold(threshold)
+		}
+
+		expect:
+		builder.build().lockRenewThreshold == expected
+
+		where:
+		ttl | threshold || expected
+		60  | null      || 30
+		20  | null      || 10
+		20  | 5         || 5
+		20  | 30        || 19
+		1   | 5         || 0
+	}
+
+	def 'the renew threshold stays below the ttl when set through the plain setters'() {
+		given:
+		def parameters = new MigrationParameters.Builder().build()
+
+		when:
+		parameters.lockRenewThreshold = 30
+		parameters.lockTtl = 20
+
+		then:
+		parameters.lockRenewThreshold == 19
+
+		when:
+		parameters.lockTtl = 60
+
+		then:
+		parameters.lockRenewThreshold == 30
+	}
+}
@@ -0,0 +1,135 @@
+package smartthings.migration
+
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class MigrationPlannerSpec extends Specification {
+
+	def 'migrations touching the same objects keep changelog order'() {
+		when:
+		MigrationPlan plan = MigrationPlanner.plan([
+				file('a.cql', 'CREATE TABLE a (id text PRIMARY KEY); INSERT INTO a (id) VALUES (\'1\');'),
+				file('b.cql', 'CREATE TABLE b (id text PRIMARY KEY);'),
+				file('a-data.cql', 'INSERT INTO test.a (id) VALUES (\'2\');'),
+				file('ab.cql', 'BEGIN BATCH INSERT INTO a (id) VALUES (\'3\'); UPDATE b SET v = 1 WHERE id = \'1\'; APPLY BATCH;'),
+				file('other.cql', 'CREATE TABLE other.c (id text PRIMARY KEY);'),
+		], 'test')
+
+		then:
+		plan.size() == 5
+		plan.getDependencies('a.cql') == []
+		plan.getDependencies('b.cql') == []
+		plan.getDependencies('a-data.cql') == ['a.cql']
+		plan.getDependencies('ab.cql').sort() == ['a-data.cql', 'b.cql']
+		plan.getDependencies('other.cql') == []
+	}
+
+	def 'keyspace changes wait for everything in the keyspace and the other way around'() {
+		when:
+		MigrationPlan plan = MigrationPlanner.plan([
+				file('a.cql', 'CREATE TABLE test.a (id text PRIMARY KEY);'),
+				file('b.cql', 'CREATE TABLE other.b (id text PRIMARY KEY);'),
+				file('keyspace.cql', "ALTER KEYSPACE test WITH replication = {'class': 'SimpleStrategy', 'replication_factor': 1};"),
+				file('c.cql', 'CREATE TABLE c (id text PRIMARY KEY);'),
+		], 'test')
+
+		then:
+		plan.getDependencies('keyspace.cql') == ['a.cql']
+		plan.getDependencies('c.cql') == ['keyspace.cql']
+	}
+
+	def 'tables wait for the types they use'() {
+		when:
+		MigrationPlan plan = MigrationPlanner.plan([
+				file('type.cql', 'CREATE TYPE address (street text, zip text);'),
+				file('table.cql', 'CREATE TABLE users (id text PRIMARY KEY, home frozen<address>);'),
+				file('unrelated.cql', 'CREATE TABLE events (id text PRIMARY KEY, at timestamp);'),
+		], 'test')
+
+		then:
+		plan.getDependencies('table.cql') == ['type.cql']
+		plan.getDependencies('unrelated.cql') == []
+	}
+
+	def 'USE and statements the planner does not understand run on their own'() {
+		when:
+		MigrationPlan plan = MigrationPlanner.plan([
+				file('a.cql', 'CREATE TABLE a (id text PRIMARY KEY);'),
+				file('b.cql', 'CREATE TABLE b (id text PRIMARY KEY);'),
+				file('use.cql', 'USE other; CREATE TABLE c (id text PRIMARY KEY);'),
+				file('c.cql', 'INSERT INTO c (id) VALUES (\'1\');'),
+				file('grant.cql', 'GRANT SELECT ON ALL KEYSPACES TO reader;'),
+				file('d.cql', 'CREATE TABLE test.d (id text PRIMARY KEY);'),
+		], 'test')
+
+		then:
+		plan.getDependencies('use.cql').sort() == ['a.cql', 'b.cql']
+		plan.getDependencies('c.cql') == ['use.cql']
+		plan.getDependencies('grant.cql').sort() == ['c.cql', 'use.cql']
+		plan.getDependencies('d.cql') == ['grant.cql']
+	}
+
+	def 'runs independent migrations concurrently'() {
+		given:
+		MigrationPlan plan = MigrationPlanner.plan([
+				file('a.cql', 'CREATE TABLE a (id text PRIMARY KEY);'),
+				file('b.cql', 'CREATE TABLE b (id text PRIMARY KEY);'),
+				file('a-data.cql', 'INSERT INTO a (id) VALUES (\'1\');'),
+		], 'test')
+		CountDownLatch bothStarted = new CountDownLatch(2)
+		Queue<String> order = new ConcurrentLinkedQueue<>()
+		Handler handler = new Handler() {
+			void handle(String name, String contents) {}
+
+			void handle(MigrationFile migration) {
+				if (migration.name != 'a-data.cql') {
+					bothStarted.countDown()
+					assert bothStarted.await(5, TimeUnit.SECONDS)
+				}
+				order << migration.name
+			}
+		}
+
+		when:
+		plan.execute(handler, 2)
+
+		then:
+		order.size() == 3
+		order.toList().indexOf('a.cql') < order.toList().indexOf('a-data.cql')
+	}
+
+	def 'stops starting migrations after a failure'() {
+		given:
+		MigrationPlan plan = MigrationPlanner.plan([
+				file('a.cql', 'CREATE TABLE a (id text PRIMARY KEY);'),
+				file('a-data.cql', 'INSERT INTO a (id) VALUES (\'1\');'),
+				file('b.cql', 'CREATE TABLE b (id text PRIMARY KEY);'),
+		], 'test')
+		Queue<String> handled = new ConcurrentLinkedQueue<>()
+		Handler handler = new Handler() {
+			void handle(String name, String contents) {}
+
+			void handle(MigrationFile migration) {
+				handled << migration.name
+				if (migration.name == 'a.cql') {
+					throw new CassandraMigrationException('boom')
+				}
+			}
+		}
+
+		when:
+		plan.execute(handler, 1)
+
+		then:
+		CassandraMigrationException e = thrown()
+		e.message == 'boom'
+		!handled.contains('a-data.cql')
+	}
+
+	MigrationFile file(String name, String contents) {
+		new MigrationFile(name, contents)
+	}
+}
@@ -2,11 +2,16 @@ package smartthings.migration
 
 import com.datastax.driver.core.Cluster
 import com.datastax.driver.core.ResultSet
+import groovy.json.JsonSlurper
 import org.cassandraunit.CassandraCQLUnit
 import org.cassandraunit.dataset.CQLDataSet
 import org.cassandraunit.dataset.cql.ClassPathCQLDataSet
 import smartthings.cassandra.CassandraLock
+import smartthings.cassandra.CassandraLockException
+import smartthings.metrics.MigrationMetrics
+import smartthings.util.Util
 import spock.lang.Specification
+import spock.lang.Unroll
 import smartthings.cassandra.CassandraConnection
 import spock.util.concurrent.PollingConditions
 
@@ -71,6 +76,99 @@ class MigrationRunnerSpec extends Specification {
 		data2 == [[id: '1', value: 'success'], [id: '2', value: 'success-2']]
 	}
 
+	def 'reports metrics for a run'() {
+		given:
+		MigrationMetrics metrics = Mock()
+		def params = new MigrationParameters.Builder()
+			.setHost('localhost')
+			.setPort(9142)
+			.setKeyspace(keyspace)
+			.setMigrationsLogFile('/cassandra/success2.changelog')
+			.setMetrics(metrics)
+			.build()
+
+		when:
+		runner.run(params)
+
+		then:
+		1 * metrics.runStarted(keyspace, 2)
+		1 * metrics.lockAcquisition(_, 1, true)
+		3 * metrics.statementExecuted(_, _, _, true, _)
+		2 * metrics.ledgerRead(_, 0)
+		5 * metrics.ledgerWrite(_)
+		1 * metrics.migrationApplied('/cassandra/migrations/change-1.cql', _)
+		1 * metrics.migrationApplied('/cassandra/migrations/change-2.cql', _)
+		1 * metrics.runFinished(keyspace, _, null)
+		0 * metrics.migrationFailed(*_)
+
+		when:
+		runner.run(params)
+
+		then:
+		2 * metrics.migrationSkipped(_)
+		1 * metrics.ledgerRead(_, 2)
+		0 * metrics.migrationApplied(*_)
+		0 * metrics.statementExecuted(*_)
+	}
+
+	def 'writes a report of the run'() {
+		given:
+		File report = File.createTempFile('migration-report', '.json')
+		def params = new MigrationParameters.Builder()
+			.setHost('localhost')
+			.setPort(9142)
+			.setKeyspace(keyspace)
+			.setMigrationsLogFile('/cassandra/success2.changelog')
+			.setReportPath(report.path)
+			.build()
+
+		when:
+		runner.run(params)
+		def json = new JsonSlurper().parse(report)
+
+		then:
+		json.keyspace == keyspace
+		json.outcome == 'succeeded'
+		json.phases.keySet() == ['connect', 'load', 'lock', 'setup', 'backfill', 'ledger', 'migrate'] as Set
+		json.lock.acquired
+		json.ledger.writes == 5
+		json.migrations*.name == ['/cassandra/migrations/change-1.cql', '/cassandra/migrations/change-2.cql']
+		json.migrations*.outcome == ['applied', 'applied']
+		json.migrations.every { it.statements.count > 0 && it.statements.coordinators.keySet() == ['127.0.0.1'] as Set }
+		json.migrations.every { it.hashMs >= 0 && it.ledgerCheckMs >= 0 }
+
+		cleanup:
+		report.delete()
+	}
+
+	def 'rows recorded with md5 keep verifying after switching algorithm'() {
+		given:
+		def params = new MigrationParameters.Builder()
+			.setHost('localhost')
+			.setPort(9142)
+			.setKeyspace(keyspace)
+			.setMigrationsLogFile('/cassandra/success.changelog')
+			.build()
+
+		CassandraConnection connection = new CassandraConnection(params, owner)
+		connection.connect()
+		runner.run(params)
+
+		when:
+		params.digestAlgorithm = 'murmur3_128'
+		params.migrationsLogFile = '/cassandra/success2.changelog'
+		runner.run(params)
+
+		then:
+		def migrations = processRows(connection.execute('SELECT * from migrations'))
+		migrations[0] == [name: 'change-1.cql', sha: '834bd37fb41f231e3df36dcd2c51afda']
+		migrations[1].name == 'change-2.cql'
+		migrations[1].sha ==~ /murmur3_128:[0-9a-f]{32}/
+
+		cleanup:
+		connection.close()
+	}
+
 	def 'run migrations via session'() {
 		given:
 
@@ -203,11 +301,722 @@ class MigrationRunnerSpec extends Specification {
 		!lock.locked
 	}
 
+	def 'preflight skips the lock when every migration is applied'() {
+		given:
+		def params = new MigrationParameters.Builder()
+				.setHost('localhost')
+				.setPort(9142)
+				.setKeyspace(keyspace)
+				.setMigrationsLogFile('/cassandra/success.changelog')
+				.setPreflight(true)
+				.build()
+
+		and: 'migrations have been applied once'
+		runner.run(params)
+
+		and: 'someone else holds the lock'
+		CassandraConnection connection = new CassandraConnection(params, 'someone-else')
+		connection.connect()
+		CassandraLock lock = new CassandraLock(connection)
+		lock.tryLock()
+
+		when: 'run again with nothing pending'
+		runner.run(params)
+
+		then: 'the run returns without waiting for the lock'
+		!runner.running
+		lock.mine
+
+		when: 'a new migration is pending'
+		params.migrationsLogFile = '/cassandra/success2.changelog'
+		def t = Thread.start {
+			runner.run(params)
+		}
+		Thread.sleep(2000)
+
+		then: 'the run waits for the lock'
+		t.alive
+		!runner.running
+
+		when:
+		lock.unlock()
+		t.join()
+
+		then:
+		processRows(connection.execute('SELECT * from migrations')).size() == 2
+	}
+
+	def 'preflight does not trust migrations that are still pending'() {
+		given:
+		def params = new MigrationParameters.Builder()
+				.setHost('localhost')
+				.setPort(9142)
+				.setKeyspace(keyspace)
+				.setMigrationsLogFile('/cassandra/success.changelog')
+				.setPreflight(true)
+				.build()
+
+		and: 'another process holds the lock and has marked the migration before running it'
+		CassandraConnection connection = new CassandraConnection(params, 'someone-else')
+		connection.connect()
+		CassandraLock lock = new CassandraLock(connection)
+		lock.tryLock()
+		connection.execute('CREATE TABLE IF NOT EXISTS migrations (name text, sha text, pending boolean, PRIMARY KEY (name))')
+		connection.execute("INSERT INTO migrations (name, sha, pending) VALUES ('change-1.cql', '834bd37fb41f231e3df36dcd2c51afda', true)")
+
+		when:
+		def t = Thread.start {
+			runner.run(params)
+		}
+		Thread.sleep(2000)
+
+		then: 'the run waits for the lock'
+		t.alive
+		!runner.running
+
+		when: 'the holder finishes the migration'
+		connection.execute("UPDATE migrations SET pending = null WHERE name = 'change-1.cql'")
+		lock.unlock()
+		t.join()
+
+		then:
+		processRows(connection.execute('SELECT * from migrations')) == [[name: 'change-1.cql', sha: '834bd37fb41f231e3df36dcd2c51afda']]
+
+		cleanup:
+		connection.close()
+	}
+
+	def 'a locked run clears the mark left by a run that never finished'() {
+		given:
+		def params = new MigrationParameters.Builder()
+				.setHost('localhost')
+				.setPort(9142)
+				.setKeyspace(keyspace)
+				.setMigrationsLogFile('/cassandra/success.changelog')
+				.setPreflight(true)
+				.build()
+
+		and: 'a run crashed after marking the migration'
+		CassandraConnection connection = new CassandraConnection(params, 'someone-else')
+		connection.connect()
+		connection.execute('CREATE TABLE IF NOT EXISTS migrations (name text, sha text, pending boolean, PRIMARY KEY (name))')
+		connection.execute("INSERT INTO migrations (name, sha, pending) VALUES ('change-1.cql', '834bd37fb41f231e3df36dcd2c51afda', true)")
+		CassandraLock lock = new CassandraLock(connection)
+
+		when: 'the next run takes the lock'
+		runner.run(params)
+
+		then: 'the mark is cleared'
+		processRows(connection.execute('SELECT * from migrations')) == [[name: 'change-1.cql', sha: '834bd37fb41f231e3df36dcd2c51afda']]
+
+		when: 'someone else holds the lock and the run is repeated'
+		lock.tryLock()
+		def t = Thread.start {
+			runner.run(params)
+		}
+		t.join(10000)
+
+		then: 'preflight skips the lock'
+		!t.alive
+		!runner.running
+		lock.mine
+
+		cleanup:
+		lock.unlock()
+		connection.close()
+	}
+
+	def 'waiting runner gives up once the lock holder has applied everything'() {
+		given:
+		def params = new MigrationParameters.Builder()
+				.setHost('localhost')
+				.setPort(9142)
+				.setKeyspace(keyspace)
+				.setMigrationsLogFile('/cassandra/success.changelog')
+				.setPreflight(true)
+				.setLockRetryInitialDelay(100)
+				.setLockRetryMaxDelay(500)
+				.build()
+
+		and: 'another process holds the lock'
+		CassandraConnection connection = new CassandraConnection(params, 'someone-else')
+		connection.connect()
+		CassandraLock lock = new CassandraLock(connection)
+		lock.tryLock()
+
+		when:
+		def t = Thread.start {
+			runner.run(params)
+		}
+		Thread.sleep(1000)
+
+		then: 'runner is waiting'
+		t.alive
+		!runner.running
+
+		when: 'the holder applies the migration'
+		connection.execute('CREATE TABLE IF NOT EXISTS migrations (name text, sha text, pending boolean, PRIMARY KEY (name))')
+		connection.execute("INSERT INTO migrations (name, sha) VALUES ('change-1.cql', '834bd37fb41f231e3df36dcd2c51afda')")
+		Thread.sleep(1000)
+
+		then: 'runner keeps waiting while the holder has the lock'
+		t.alive
+		!runner.running
+
+		when: 'the holder releases the lock'
+		lock.unlock()
+		t.join(10000)
+
+		then: 'runner returns without running anything'
+		!t.alive
+		!runner.running
+		processRows(connection.execute('SELECT * from migrations')) == [[name: 'change-1.cql', sha: '834bd37fb41f231e3df36dcd2c51afda']]
+
+		cleanup:
+		connection.close()
+	}
+
+	def 'waiting runner does not give up on a migration the holder fails after marking'() {
+		given:
+		def params = new MigrationParameters.Builder()
+				.setHost('localhost')
+				.setPort(9142)
+				.setKeyspace(keyspace)
+				.setMigrationsLogFile('/cassandra/success.changelog')
+				.setPreflight(true)
+				.setLockRetryInitialDelay(100)
+				.setLockRetryMaxDelay(500)
+				.build()
+
+		and: 'another process holds the lock and has marked the migration'
+		CassandraConnection connection = new CassandraConnection(params, 'someone-else')
+		connection.connect()
+		CassandraLock lock = new CassandraLock(connection)
+		lock.tryLock()
+		connection.execute('CREATE TABLE IF NOT EXISTS migrations (name text, sha text, pending boolean, PRIMARY KEY (name))')
+		connection.execute("INSERT INTO migrations (name, sha, pending) VALUES ('change-1.cql', '834bd37fb41f231e3df36dcd2c51afda', true)")
+
+		when:
+		def t = Thread.start {
+			runner.run(params)
+		}
+		Thread.sleep(1000)
+
+		then: 'runner is waiting'
+		t.alive
+		!runner.running
+
+		when: 'the holder fails, removes its mark and releases the lock'
+		connection.execute("DELETE FROM migrations WHERE name = 'change-1.cql'")
+		lock.unlock()
+		t.join(10000)
+
+		then: 'runner takes the lock and applies the migration itself'
+		!t.alive
+		processRows(connection.execute('SELECT * from migrations')) == [[name: 'change-1.cql', sha: '834bd37fb41f231e3df36dcd2c51afda']]
+		processRows(connection.execute('SELECT * FROM a')) == [[id: '1', value: 'success']]
+
+		cleanup:
+		connection.close()
+	}
+
+	def 'runner fails when the lock wait times out'() {
+		given:
+		def params = new MigrationParameters.Builder()
+				.setHost('localhost')
+				.setPort(9142)
+				.setKeyspace(keyspace)
+				.setMigrationsLogFile('/cassandra/success.changelog')
+				.setLockWaitTimeout(2)
+				.build()
+
+		and:
+		CassandraConnection connection = new CassandraConnection(params, 'someone-else')
+		connection.connect()
+		new CassandraLock(connection).tryLock()
+
+		when:
+		runner.run(params)
+
+		then:
+		CassandraMigrationException e = thrown()
+		e.cause instanceof CassandraLockException
+	}
+
+	@Unroll
+	def 'run data migrations with pipelined writes #pipelineDml and batched writes #batchDml'() {
+		given:
+		def params = new MigrationParameters.Builder()
+				.setHost('localhost')
+				.setPort(9142)
+				.setKeyspace(keyspace)
+				.setMigrationsLogFile('/cassandra/data.changelog')
+				.setPipelineDml(pipelineDml)
+				.setMaxDmlInFlight(2)
+				.setBatchDml(batchDml)
+				.setMaxBatchStatements(3)
+				.setDeferSchemaAgreement(true)
+				.build()
+
+		CassandraConnection connection = new CassandraConnection(params, owner)
+		connection.connect()
+
+		when:
+		runner.run(params)
+
+		then:
+		processRows(connection.execute('SELECT * from migrations')).collect { it.name }.sort() == ['change-1.cql', 'data-1.cql']
+		connection.schemaAgreement.inAgreement
+		processRows(connection.execute('SELECT * FROM a')).sort() == [[id: '1', value: 'success'], [id: '4', value: 'data']]
+		connection.execute('SELECT id, seq, value FROM b').all().collect { [it.getString('id'), it.getInt('seq'), it.getString('value')] }.toSet() == [
+				['x', 1, 'x-1'],
+				['x', 2, 'x-2-updated'],
+				['x', 3, 'x-3'],
+				['y', 1, 'y-1'],
+				['y', 2, 'y-2; with a semicolon'],
+				['y', 3, 'y-3'],
+				['y', 4, 'y-4'],
+		] as Set
+
+		where:
+		pipelineDml | batchDml
+		true        | false
+		false       | true
+		true        | true
+	}
+
+	def 'run independent migrations in parallel'() {
+		given:
+		def params = new MigrationParameters.Builder()
+				.setHost('localhost')
+				.setPort(9142)
+				.setKeyspace(keyspace)
+				.setMigrationsLogFile('/cassandra/parallel.changelog')
+				.setMigrationParallelism(3)
+				.build()
+
+		CassandraConnection connection = new CassandraConnection(params, owner)
+		connection.connect()
+
+		when:
+		runner.run(params)
+
+		then:
+		processRows(connection.execute('SELECT * from migrations')).collect { it.name }.sort() ==
+				['change-1.cql', 'change-2.cql', 'data-1.cql', 'parallel-c.cql', 'parallel-d.cql']
+		processRows(connection.execute('SELECT * FROM a')).sort { it.id } ==
+				[[id: '1', value: 'success'], [id: '2', value: 'success-2'], [id: '4', value: 'data']]
+		processRows(connection.execute('SELECT * FROM c')) == [[id: '1', value: 'c-1']]
+		processRows(connection.execute('SELECT * FROM d')) == [[id: '1', value: 'd-1']]
+		connection.execute('SELECT count(*) FROM b').one().getLong(0) == 7
+	}
+
+	def 'a failed migration resumes from its last checkpoint'() {
+		given:
+		File dir = File.createTempDir()
+		File migration = new File(dir, 'counts.cql')
+		migration.text = '''
+			CREATE TABLE counts (id int PRIMARY KEY, n counter);
+			UPDATE counts SET n = n + 1 WHERE id = 1;
+			UPDATE counts SET n = n + 1 WHERE id = 2;
+			UPDATE counts SET n = n + 1 WHERE id = 3;
+			UPDATE missing SET n = n + 1 WHERE id = 4;
+		'''
+		def params = new MigrationParameters.Builder()
+			.setHost('localhost')
+			.setPort(9142)
+			.setKeyspace(keyspace)
+			.setMigrationsPath(dir.path)
+			.setCheckpointInterval(2)
+			.build()
+
+		CassandraConnection connection = new CassandraConnection(params, owner)
+		connection.connect()
+
+		when:
+		runner.run(params)
+
+		then:
+		thrown(CassandraMigrationException)
+		connection.execute('SELECT ordinal FROM migration_checkpoints WHERE name = ?', 'counts.cql').one().getInt('ordinal') == 4
+
+		when: 'the failing statement is fixed'
+		migration.text = migration.text.replace('UPDATE missing', 'UPDATE counts')
+		runner.run(params)
+
+		then: 'the checkpointed statements are not run again'
+		connection.execute('SELECT id, n FROM counts').all().collectEntries { [it.getInt('id'), it.getLong('n')] } == [1: 1, 2: 1, 3: 1, 4: 1]
+		connection.execute('SELECT name FROM migrations').all()*.getString('name') == ['counts.cql']
+		connection.execute('SELECT * FROM migration_checkpoints').all().empty
+
+		cleanup:
+		connection.close()
+		dir.deleteDir()
+	}
+
+	def 'a resumed migration records only the statements it ran'() {
+		given:
+		File dir = File.createTempDir()
+		File migration = new File(dir, 'counts.cql')
+		migration.text = '''
+			CREATE TABLE counts (id int PRIMARY KEY, n counter);
+			UPDATE counts SET n = n + 1 WHERE id = 1;
+			UPDATE counts SET n = n + 1 WHERE id = 2;
+			UPDATE counts SET n = n + 1 WHERE id = 3;
+			UPDATE missing SET n = n + 1 WHERE id = 4;
+		'''
+		def params = new MigrationParameters.Builder()
+			.setHost('localhost')
+			.setPort(9142)
+			.setKeyspace(keyspace)
+			.setMigrationsPath(dir.path)
+			.setCheckpointInterval(2)
+			.setClusteredLedger(true)
+			.build()
+
+		CassandraConnection connection = new CassandraConnection(params, owner)
+		connection.connect()
+
+		when:
+		runner.run(params)
+
+		then:
+		thrown(CassandraMigrationException)
+
+		when: 'the failing statement is fixed'
+		migration.text = migration.text.replace('UPDATE missing', 'UPDATE counts')
+		runner.run(params)
+
+		then: 'the four checkpointed statements are not counted'
+		connection.execute('SELECT statements FROM migration_ledger WHERE ledger = ? AND name = ?', keyspace, 'counts.cql').one().getInt('statements') == 1
+
+		cleanup:
+		connection.close()
+		dir.deleteDir()
+	}
+
+	def 'a migration whose checkpointed statements changed runs from the start'() {
+		given:
+		File dir = File.createTempDir()
+		File migration = new File(dir, 'counts.cql')
+		migration.text = '''
+			CREATE TABLE IF NOT EXISTS counts (id int PRIMARY KEY, n counter);
+			UPDATE counts SET n = n + 1 WHERE id = 1;
+			UPDATE missing SET n = n + 1 WHERE id = 2;
+		'''
+		def params = new MigrationParameters.Builder()
+			.setHost('localhost')
+			.setPort(9142)
+			.setKeyspace(keyspace)
+			.setMigrationsPath(dir.path)
+			.setCheckpointInterval(2)
+			.build()
+
+		CassandraConnection connection = new CassandraConnection(params, owner)
+		connection.connect()
+
+		when:
+		runner.run(params)
+
+		then:
+		thrown(CassandraMigrationException)
+
+		when:
+		migration.text = migration.text.replace('WHERE id = 1', 'WHERE id = 3').replace('UPDATE missing', 'UPDATE counts')
+		runner.run(params)
+
+		then:
+		connection.execute('SELECT id, n FROM counts').all().collectEntries { [it.getInt('id'), it.getLong('n')] } == [1: 1, 2: 1, 3: 1]
+
+		cleanup:
+		connection.close()
+		dir.deleteDir()
+	}
+
+	def 'an empty keyspace is set up from the baseline'() {
+		given:
+		def params = new MigrationParameters.Builder()
+			.setHost('localhost')
+			.setPort(9142)
+			.setKeyspace(keyspace)
+			.setMigrationsLogFile('/cassandra/success2.changelog')
+			.setBaselineFile('/cassandra/baseline/snapshot.cql')
+			.setBaselineLogFile('/cassandra/baseline/snapshot.changelog')
+			.build()
+
+		CassandraConnection connection = new CassandraConnection(params, owner)
+		connection.connect()
+
+		when:
+		runner.run(params)
+
+		then: 'the replaced migration is recorded without running'
+		processRows(connection.execute('SELECT * from migrations')).sort { it.name } == [
+			[name: 'change-1.cql', sha: '834bd37fb41f231e3df36dcd2c51afda'],
+			[name: 'change-2.cql', sha: 'd00f97fc30b437bf887a2d7eb557f2c5'],
+			[name: 'snapshot.cql', sha: Util.calculateMd5(getClass().getResource('/cassandra/baseline/snapshot.cql').text)],
+		]
+		processRows(connection.execute('SELECT * FROM a')).sort { it.id } == [[id: '1', value: 'baseline'], [id: '2', value: 'success-2']]
+
+		cleanup:
+		connection.close()
+	}
+
+	def 'the baseline is only marked when migrations are marked without running'() {
+		given:
+		def params = new MigrationParameters.Builder()
+			.setHost('localhost')
+			.setPort(9142)
+			.setKeyspace(keyspace)
+			.setMigrationsLogFile('/cassandra/success2.changelog')
+			.setBaselineFile('/cassandra/baseline/snapshot.cql')
+			.setBaselineLogFile('/cassandra/baseline/snapshot.changelog')
+			.build()
+		params.handlerClass = MigrationParameters.HandlerClass.MarkRunHandler
+
+		CassandraConnection connection = new CassandraConnection(params, owner)
+		connection.connect()
+
+		when:
+		runner.run(params)
+
+		then: 'everything is recorded and nothing ran'
+		processRows(connection.execute('SELECT * from migrations')).collect { it.name }.sort() == ['change-1.cql', 'change-2.cql', 'snapshot.cql']
+		!connection.tableExists('a')
+
+		cleanup:
+		connection.close()
+	}
+
+	def 'replaced migrations are not recorded when the recorded baseline differs from the file'() {
+		given:
+		def params = new MigrationParameters.Builder()
+			.setHost('localhost')
+			.setPort(9142)
+			.setKeyspace(keyspace)
+			.setMigrationsLogFile('/cassandra/success2.changelog')
+			.setBaselineFile('/cassandra/baseline/snapshot.cql')
+			.setBaselineLogFile('/cassandra/baseline/snapshot.changelog')
+			.build()
+
+		and: 'an older baseline under the same name was recorded'
+		CassandraConnection connection = new CassandraConnection(params, owner)
+		connection.connect()
+		connection.execute('CREATE TABLE IF NOT EXISTS migrations (name text, sha text, pending boolean, PRIMARY KEY (name))')
+		connection.execute("INSERT INTO migrations (name, sha) VALUES ('snapshot.cql', '00000000000000000000000000000000')")
+
+		when:
+		runner.run(params)
+
+		then: 'the replaced migration runs instead of being recorded'
+		processRows(connection.execute('SELECT * from migrations')).sort { it.name } == [
+			[name: 'change-1.cql', sha: '834bd37fb41f231e3df36dcd2c51afda'],
+			[name: 'change-2.cql', sha: 'd00f97fc30b437bf887a2d7eb557f2c5'],
+			[name: 'snapshot.cql', sha: '00000000000000000000000000000000'],
+		]
+		processRows(connection.execute('SELECT * FROM a')).sort { it.id } == [[id: '1', value: 'success'], [id: '2', value: 'success-2']]
+
+		cleanup:
+		connection.close()
+	}
+
+	def 'the baseline is ignored on a keyspace that was already migrated'() {
+		given:
+		def params = new MigrationParameters.Builder()
+			.setHost('localhost')
+			.setPort(9142)
+			.setKeyspace(keyspace)
+			.setMigrationsLogFile('/cassandra/success.changelog')
+			.setBaselineFile('/cassandra/baseline/snapshot.cql')
+			.setBaselineLogFile('/cassandra/baseline/snapshot.changelog')
+			.build()
+		params.baselineFile = null
+		runner.run(params)
+
+		CassandraConnection connection = new CassandraConnection(params, owner)
+		connection.connect()
+
+		when:
+		params.baselineFile = '/cassandra/baseline/snapshot.cql'
+		params.migrationsLogFile = '/cassandra/success2.changelog'
+		runner.run(params)
+
+		then:
+		processRows(connection.execute('SELECT * from migrations')).collect { it.name }.sort() == ['change-1.cql', 'change-2.cql']
+		processRows(connection.execute('SELECT * FROM a')).sort { it.id } == [[id: '1', value: 'success'], [id: '2', value: 'success-2']]
+
+		cleanup:
+		connection.close()
+	}
+
+	def 'migrations recorded with their path are backfilled once'() {
+		given:
+		def params = new MigrationParameters.Builder()
+			.setHost('localhost')
+			.setPort(9142)
+			.setKeyspace(keyspace)
+			.setMigrationsLogFile('/cassandra/success.changelog')
+			.build()
+
+		CassandraConnection connection = new CassandraConnection(params, owner)
+		connection.connect()
+		connection.execute('CREATE TABLE migrations (name text, sha text, PRIMARY KEY (name))')
+		connection.execute("INSERT INTO migrations (name, sha) VALUES ('/old/path/change-1.cql', '834bd37fb41f231e3df36dcd2c51afda')")
+		connection.execute("CREATE TABLE a (id text, value text, PRIMARY KEY (id))")
+
+		when:
+		runner.run(params)
+
+		then:
+		processRows(connection.execute('SELECT * from migrations')).collect { it.name }.sort() == ['/old/path/change-1.cql', 'change-1.cql']
+		processRows(connection.execute('SELECT * from migrations_metadata')) == [[key: 'ledger_version', value: '1']]
+
+		when: 'the ledger is already at the current version'
+		connection.execute("INSERT INTO migrations (name, sha) VALUES ('/old/path/change-2.cql', 'd00f97fc30b437bf887a2d7eb557f2c5')")
+		runner.run(params)
+
+		then: 'it is not scanned again'
+		processRows(connection.execute('SELECT * from migrations')).collect { it.name }.sort() == ['/old/path/change-1.cql', '/old/path/change-2.cql', 'change-1.cql']
+
+		cleanup:
+		connection.close()
+	}
+
+	def 'the migrations table is moved to the clustered ledger'() {
+		given:
+		def params = new MigrationParameters.Builder()
+			.setHost('localhost')
+			.setPort(9142)
+			.setKeyspace(keyspace)
+			.setMigrationsLogFile('/cassandra/success.changelog')
+			.build()
+		runner.run(params)
+
+		CassandraConnection connection = new CassandraConnection(params, owner)
+		connection.connect()
+
+		when:
+		params.clusteredLedger = true
+		params.migrationsLogFile = '/cassandra/success2.changelog'
+		runner.run(params)
+
+		then: 'the applied migration is copied and the new one recorded with its run'
+		def ledger = connection.execute("SELECT * FROM migration_ledger WHERE ledger = 'test'").all()
+		ledger.collect { [it.getString('name'), it.getString('sha')] } == [
+			['change-1.cql', '834bd37fb41f231e3df36dcd2c51afda'],
+			['change-2.cql', 'd00f97fc30b437bf887a2d7eb557f2c5'],
+		]
+		ledger[1].getString('applied_by') == InetAddress.getLocalHost().getHostName().trim()
+		ledger[1].getTimestamp('applied_at') != null
+		ledger[1].getInt('statements') == 1
+		ledger[1].getString('digest_algorithm') == 'md5'
+		processRows(connection.execute('SELECT * from migrations_metadata')) == [[key: 'ledger_version', value: '2']]
+		processRows(connection.execute('SELECT * FROM a')).sort { it.id } == [[id: '1', value: 'success'], [id: '2', value: 'success-2']]
+
+		when: 'run without the clustered ledger'
+		params.clusteredLedger = false
+		runner.run(params)
+
+		then:
+		thrown(CassandraMigrationException)
+
+		cleanup:
+		connection.close()
+	}
+
+	def 'run migrations for several keyspaces over one cluster'() {
+		given:
+		def params = { String ks, String changelog ->
+			new MigrationParameters.Builder()
+					.setHost('localhost')
+					.setPort(9142)
+					.setKeyspace(ks)
+					.setMigrationsLogFile(changelog)
+					.build()
+		}
+		def first = params(keyspace, '/cassandra/success.changelog')
+		CassandraConnection connection = new CassandraConnection(first, owner)
+		connection.connect()
+		connection.execute("CREATE KEYSPACE test2 WITH replication = {'class': 'SimpleStrategy', 'replication_factor': 1}")
+
+		when:
+		runner.run([first, params('test2', '/cassandra/success2.changelog')], 2)
+
+		then:
+		processRows(connection.execute('SELECT * FROM test.migrations')).collect { it.name } == ['change-1.cql']
+		connection.execute('SELECT name FROM test2.migrations').all().collect { it.getString('name') }.sort() == ['change-1.cql', 'change-2.cql']
+		connection.execute('SELECT id, value FROM test2.a').all().collect { [it.getString('id'), it.getString('value')] }.sort() == [['1', 'success'], ['2', 'success-2']]
+		connection.execute('SELECT * FROM test2.databasechangelock').one() == null
+
+		cleanup:
+		connection.execute('DROP KEYSPACE IF EXISTS test2')
+		connection.close()
+	}
+
+	def 'keyspaces that do not share connection settings are rejected'() {
+		given:
+		def params = { String ks, int port ->
+			new MigrationParameters.Builder()
+					.setHost('localhost')
+					.setPort(port)
+					.setKeyspace(ks)
+					.setMigrationsLogFile('/cassandra/success.changelog')
+					.build()
+		}
+		def withSession = new MigrationParameters.Builder()
+				.setSession(Mock(com.datastax.driver.core.Session))
+				.setKeyspace('test2')
+				.setMigrationsLogFile('/cassandra/success.changelog')
+				.build()
+
+		when:
+		runner.run([params(keyspace, 9142), params('test2', 9042)], 2)
+
+		then:
+		thrown(IllegalArgumentException)
+
+		when:
+		runner.run([params(keyspace, 9142), withSession], 2)
+
+		then:
+		thrown(IllegalArgumentException)
+		!runner.running
+	}
+
+	def 'stops migrating keyspaces after one fails'() {
+		given:
+		def params = { String ks, String changelog ->
+			new MigrationParameters.Builder()
+					.setHost('localhost')
+					.setPort(9142)
+					.setKeyspace(ks)
+					.setMigrationsLogFile(changelog)
+					.build()
+		}
+		def first = params(keyspace, '/cassandra/failure.changelog')
+		CassandraConnection connection = new CassandraConnection(first, owner)
+		connection.connect()
+		connection.execute("CREATE KEYSPACE test2 WITH replication = {'class': 'SimpleStrategy', 'replication_factor': 1}")
+
+		when:
+		runner.run([first, params('test2', '/cassandra/success.changelog')], 1)
+
+		then: 'the second keyspace was never touched, not even its ledger or lock'
+		thrown(CassandraMigrationException)
+		connection.execute("SELECT table_name FROM system_schema.tables WHERE keyspace_name = 'test2'").all().empty
+		!runner.running
+
+		cleanup:
+		connection.execute('DROP KEYSPACE IF EXISTS test2')
+		connection.close()
+	}
+
+	// columns that were never set, like pending on finished migrations, are left out
 	List<Map> processRows(ResultSet results) {
 		results.all().collect { row ->
-			row.columnDefinitions.collect { column ->
+			row.columnDefinitions.findAll { !row.isNull(it.name) }.collect { column ->
 				assert column.keyspace == keyspace
-				[column.name, row.getString(column.name)]
+				[column.name, row.getObject(column.name)]
 			}.collectEntries()
 		}
 	}
@@ -0,0 +1,160 @@
+package smartthings.util
+
+import com.google.common.io.Files
+import com.google.common.io.Resources
+import spock.lang.Specification
+
+import java.util.jar.JarEntry
+import java.util.jar.JarOutputStream
+
+class DigestCacheSpec extends Specification {
+
+	File dir = File.createTempDir()
+	File cacheFile = new File(dir, 'digests')
+
+	def cleanup() {
+		dir.deleteDir()
+	}
+
+	def 'unchanged files are not read again'() {
+		given:
+		File migration = migration('a.cql', 'CREATE TABLE;', 100000)
+		DigestCache first = DigestCache.load(cacheFile)
+		first.digest(migration, MigrationDigest.MD5)
+		first.save()
+
+		when: 'contents change without the size or modification time changing'
+		migration.text = 'CREATE INDEX;'
+		migration.lastModified = 100000
+
+		then:
+		DigestCache.load(cacheFile).digest(migration, MigrationDigest.MD5) == Util.calculateMd5('CREATE TABLE;')
+	}
+
+	def 'stale entries are hashed again'() {
+		given:
+		File migration = migration('a.cql', 'CREATE TABLE;', 100000)
+		DigestCache first = DigestCache.load(cacheFile)
+		first.digest(migration, MigrationDigest.MD5)
+		first.save()
+
+		when:
+		migration.text = 'CREATE TABLE b;'
+		migration.lastModified = modified
+
+		then:
+		DigestCache.load(cacheFile).digest(migration, MigrationDigest.MD5) == Util.calculateMd5('CREATE TABLE b;')
+
+		where:
+		modified << [100000, 200000, System.currentTimeMillis()]
+	}
+
+	def 'recently modified files are hashed every time'() {
+		given:
+		File migration = migration('a.cql', 'CREATE TABLE;', System.currentTimeMillis())
+		DigestCache first = DigestCache.load(cacheFile)
+		first.digest(migration, MigrationDigest.MD5)
+		first.save()
+
+		when:
+		migration.text = 'CREATE INDEX;'
+
+		then:
+		DigestCache.load(cacheFile).digest(migration, MigrationDigest.MD5) == Util.calculateMd5('CREATE INDEX;')
+	}
+
+	def 'jar entries are keyed by their crc'() {
+		given:
+		File jar = new File(dir, 'migrations.jar')
+		new JarOutputStream(new FileOutputStream(jar)).withCloseable { out ->
+			out.putNextEntry(new JarEntry('a.cql'))
+			out << 'CREATE TABLE;'.getBytes('UTF-8')
+			out.closeEntry()
+		}
+		URL url = new URL("jar:${jar.toURI()}!/a.cql")
+		DigestCache first = DigestCache.load(cacheFile)
+
+		when:
+		String md5 = first.digest(url, Resources.asByteSource(url), MigrationDigest.MD5)
+		first.save()
+
+		then:
+		md5 == Util.calculateMd5('CREATE TABLE;')
+		DigestCache.load(cacheFile).digest(url, Resources.asByteSource(new URL('file:/does/not/exist')), MigrationDigest.MD5) == md5
+	}
+
+	def 'digests are cached per algorithm'() {
+		given:
+		File migration = migration('a.cql', 'CREATE TABLE;', 100000)
+		DigestCache first = DigestCache.load(cacheFile)
+		first.digest(migration, MigrationDigest.MD5)
+		first.save()
+
+		when:
+		migration.text = 'CREATE INDEX;'
+		migration.lastModified = 100000
+
+		then:
+		DigestCache.load(cacheFile).digest(migration, MigrationDigest.SHA256) == MigrationDigest.SHA256.digest(Files.asByteSource(migration))
+	}
+
+	def 'caches saving to the same file keep each other's entries'() {
+		given:
+		File a = migration('a.cql', 'CREATE TABLE a;', 100000)
+		File b = migration('b.cql', 'CREATE TABLE b;', 100000)
+		DigestCache first = DigestCache.load(cacheFile)
+		DigestCache second = DigestCache.load(cacheFile)
+		first.digest(a, MigrationDigest.MD5)
+		second.digest(b, MigrationDigest.MD5)
+
+		when:
+		[first, second].collect { cache -> Thread.start { cache.save() } }*.join()
+
+		and: 'both files change without their size or modification time changing'
+		a.text = 'CREATE INDEX a;'
+		a.lastModified = 100000
+		b.text = 'CREATE INDEX b;'
+		b.lastModified = 100000
+		DigestCache third = DigestCache.load(cacheFile)
+
+		then: 'whichever saved last, the other one's entry is still there'
+		third.digest(a, MigrationDigest.MD5) == Util.calculateMd5('CREATE TABLE a;')
+		third.digest(b, MigrationDigest.MD5) == Util.calculateMd5('CREATE TABLE b;')
+		!dir.list().any { it.endsWith('.tmp') }
+	}
+
+	def 'entries used by other runs are kept'() {
+		given:
+		File a = migration('a.cql', 'CREATE TABLE a;', 100000)
+		File b = migration('b.cql', 'CREATE TABLE b;', 100000)
+		DigestCache first = DigestCache.load(cacheFile)
+		first.digest(a, MigrationDigest.MD5)
+		first.save()
+
+		when: 'a later run only uses another file'
+		DigestCache second = DigestCache.load(cacheFile)
+		second.digest(b, MigrationDigest.MD5)
+		second.save()
+		a.text = 'CREATE INDEX a;'
+		a.lastModified = 100000
+
+		then:
+		DigestCache.load(cacheFile).digest(a, MigrationDigest.MD5) == Util.calculateMd5('CREATE TABLE a;')
+	}
+
+	def 'an unreadable cache starts empty'() {
+		given:
+		cacheFile.text = 'garbage'
+		File migration = migration('a.cql', 'CREATE TABLE;', 100000)
+
+		expect:
+		DigestCache.load(cacheFile).digest(migration, MigrationDigest.MD5) == Util.calculateMd5('CREATE TABLE;')
+	}
+
+	private File migration(String name, String text, long modified) {
+		File file = new File(dir, name)
+		file.text = text
+		file.lastModified = modified
+		file
+	}
+}
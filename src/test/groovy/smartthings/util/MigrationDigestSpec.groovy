@@ -0,0 +1,58 @@
+package smartthings.util
+
+import com.google.common.io.ByteSource
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class MigrationDigestSpec extends Specification {
+
+	@Unroll
+	def '#algorithm digests are recorded as #pattern'() {
+		expect:
+		algorithm.digest(ByteSource.wrap('CREATE TABLE;'.getBytes('UTF-8'))) ==~ pattern
+
+		where:
+		algorithm                     || pattern
+		MigrationDigest.MD5           || /[0-9a-f]{32}/
+		MigrationDigest.SHA256        || /sha256:[0-9a-f]{64}/
+		MigrationDigest.MURMUR3_128   || /murmur3_128:[0-9a-f]{32}/
+	}
+
+	def 'md5 digests match the string md5'() {
+		expect:
+		MigrationDigest.MD5.digest(ByteSource.wrap('CREATE TABLE;'.getBytes('UTF-8'))) == Util.calculateMd5('CREATE TABLE;')
+	}
+
+	@Unroll
+	def 'recorded value #recorded was computed with #expected'() {
+		expect:
+		MigrationDigest.forRecorded(recorded) == expected
+
+		where:
+		recorded                                   || expected
+		'db1bda2a977f65e4135f4bca7827cf13'         || MigrationDigest.MD5
+		'sha256:abc'                               || MigrationDigest.SHA256
+		'murmur3_128:abc'                          || MigrationDigest.MURMUR3_128
+		'crc32:abc'                                || null
+	}
+
+	@Unroll
+	def 'algorithm #name is found by name'() {
+		expect:
+		MigrationDigest.forName(name) == expected
+
+		where:
+		name          || expected
+		'md5'         || MigrationDigest.MD5
+		'SHA-256'     || MigrationDigest.SHA256
+		'murmur3_128' || MigrationDigest.MURMUR3_128
+	}
+
+	def 'unknown algorithms are rejected'() {
+		when:
+		MigrationDigest.forName('crc32')
+
+		then:
+		thrown(IllegalArgumentException)
+	}
+}
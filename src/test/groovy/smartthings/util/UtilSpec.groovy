@@ -1,5 +1,6 @@
 package smartthings.util
 
+import com.google.common.io.ByteSource
 import spock.lang.Specification
 import spock.lang.Unroll
 
@@ -16,4 +17,23 @@ class UtilSpec extends Specification {
 		['foo', null]  || false
 		['foo', '']    || false
 	}
+
+	@Unroll
+	def 'streamed md5 of #text matches the string md5'() {
+		expect:
+		Util.calculateMd5(ByteSource.wrap(text.getBytes('UTF-8'))) == Util.calculateMd5(text)
+
+		where:
+		text << ['', 'CREATE TABLE;', "INSERT INTO a (id, value) VALUES ('1', 'ünïcødé ✓');\n"]
+	}
+
+	def 'md5 of a file is streamed from disk'() {
+		given:
+		File file = File.createTempFile('migration', '.cql')
+		file.deleteOnExit()
+		file.text = 'CREATE TABLE;'
+
+		expect:
+		Util.calculateMd5(file) == 'db1bda2a977f65e4135f4bca7827cf13'
+	}
 }